@@ -0,0 +1,76 @@
+package main.java.bench;
+
+import main.java.core.ImageUtils;
+import main.java.core.ParallelEngine;
+import main.java.core.TrainingVectorCollector;
+import main.java.model.Codebook;
+import main.java.model.GrayscaleImage;
+import main.java.model.TrainingSet;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+
+/**
+ * Inputs shared by the benchmarks: synthetic images of any size and the bundled test images,
+ * plus codebooks drawn from them. Everything is seeded, so every run sees the same data.
+ *
+ * Image names: "synthetic-N" (N x N), or a file under -Dpkc.images (default
+ * src/main/resources/images, relative to the working directory), e.g. "cat256" or "lena512".
+ */
+final class BenchInputs {
+    static final long SEED = 1234L;
+
+    private BenchInputs() {}
+
+    static GrayscaleImage image(String name) throws IOException, InterruptedException {
+        if (name.startsWith("synthetic-")) {
+            int size = Integer.parseInt(name.substring("synthetic-".length()));
+            return synthetic(size, size);
+        }
+        Path dir = Path.of(System.getProperty("pkc.images", "src/main/resources/images"));
+        return ImageUtils.read(dir.resolve(name + ".png"), 1);
+    }
+
+    // Smooth gradients and rings with mild noise: compresses like a photo, not like white noise
+    static GrayscaleImage synthetic(int width, int height) {
+        SplittableRandom rnd = new SplittableRandom(SEED);
+        byte[] pixels = new byte[width * height];
+        double cx = width * 0.4, cy = height * 0.6;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double r = Math.hypot(x - cx, y - cy);
+                double v = 96 + 64.0 * x / width + 48 * Math.sin(r / 9.0) + rnd.nextInt(-6, 7);
+                pixels[y * width + x] = (byte) Math.max(0, Math.min(255, (int) v));
+            }
+        }
+        return new GrayscaleImage(width, height, pixels);
+    }
+
+    // "2x2" -> {2, 2}
+    static int[] kernel(String spec) {
+        String[] parts = spec.split("x");
+        return new int[]{Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+    }
+
+    static TrainingSet training(GrayscaleImage img, int[] kernel) throws InterruptedException {
+        return TrainingVectorCollector.collect(img, kernel[0], kernel[1], 0.25, SEED, 1);
+    }
+
+    // k training windows picked at random: a codebook of realistic centroids without training
+    static Codebook sampledCodebook(TrainingSet training, int[] kernel, int k) {
+        SplittableRandom rnd = new SplittableRandom(SEED);
+        float[][] centroids = new float[k][];
+        for (int c = 0; c < k; c++) {
+            centroids[c] = training.getVector(rnd.nextInt(training.size()));
+        }
+        return new Codebook(kernel[0], kernel[1], centroids);
+    }
+
+    // Install a shared engine of the given size for the parallel paths; returns it for tearDown
+    static ParallelEngine engine(int threads) {
+        ParallelEngine engine = new ParallelEngine(threads);
+        ParallelEngine.setShared(engine);
+        return engine;
+    }
+}
@@ -0,0 +1,91 @@
+package main.java.bench;
+
+import main.java.core.BlockEncoder;
+import main.java.core.CodebookTrainer;
+import main.java.core.ParallelEngine;
+import main.java.model.Codebook;
+import main.java.model.EncodedImage;
+import main.java.model.GrayscaleImage;
+import main.java.model.TreeCodebook;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Block -> codeword mapping and its inverse, with and without the encoder's memo cache, plus
+ * the mapping through a tree-structured codebook of the same size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class BlockCodingBench {
+    static final int CACHE_SIZE = 1 << 16;
+
+    @Param({"synthetic-512", "synthetic-2048", "cat256", "lena512"})
+    String image;
+
+    @Param({"16", "256"})
+    int k;
+
+    @Param({"2x2", "4x4"})
+    String kernel;
+
+    @Param({"1", "4"})
+    int threads;
+
+    GrayscaleImage img;
+    Codebook codebook;
+    TreeCodebook tree;
+    EncodedImage encoded;
+    ParallelEngine engine;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        engine = BenchInputs.engine(threads);
+        int[] kw = BenchInputs.kernel(kernel);
+        img = BenchInputs.image(image);
+        codebook = BenchInputs.sampledCodebook(BenchInputs.training(img, kw), kw, k);
+        tree = CodebookTrainer.trainTreeStructured(BenchInputs.training(img, kw), kw[0], kw[1], k, 5, 1234L, 1);
+        encoded = BlockEncoder.encode(img, codebook, CACHE_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    @Benchmark
+    public EncodedImage encode() throws Exception {
+        return threads == 1
+                ? BlockEncoder.encode(img, codebook, CACHE_SIZE)
+                : BlockEncoder.encodeParallel(img, codebook, threads, CACHE_SIZE);
+    }
+
+    @Benchmark
+    public EncodedImage encodeUncached() throws Exception {
+        return threads == 1
+                ? BlockEncoder.encode(img, codebook, 0)
+                : BlockEncoder.encodeParallel(img, codebook, threads, 0);
+    }
+
+    @Benchmark
+    public EncodedImage encodeTreeUncached() throws Exception {
+        return threads == 1
+                ? BlockEncoder.encode(img, tree, 0)
+                : BlockEncoder.encodeParallel(img, tree, threads, 0);
+    }
+
+    @Benchmark
+    public GrayscaleImage decode() throws Exception {
+        return threads == 1 ? BlockEncoder.decode(encoded) : BlockEncoder.decodeParallel(encoded, threads);
+    }
+
+    @Benchmark
+    public BufferedImage decodeToImage() throws Exception {
+        return BlockEncoder.decodeToImage(encoded, threads);
+    }
+}
@@ -0,0 +1,100 @@
+package main.java.bench;
+
+import main.java.core.HuffmanCodec;
+import main.java.core.HuffmanDecodeTable;
+import main.java.io.BitInputStream;
+import main.java.io.BitOutputStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Entropy coding of codeword indices: code construction, bit packing and table decoding.
+ * Symbols follow a geometric-like distribution whose steepness is set by skew.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class HuffmanBench {
+    static final int SYMBOLS = 1 << 18;
+
+    @Param({"256", "4096"})
+    int k;
+
+    @Param({"0.9", "0.99"})
+    double skew;
+
+    int[] freq;
+    int[] symbols;
+    int[] codeLen;
+    int[] codeBits;
+    byte[] coded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SplittableRandom rnd = new SplittableRandom(BenchInputs.SEED);
+        double[] cdf = new double[k];
+        double p = 1, sum = 0;
+        for (int s = 0; s < k; s++) {
+            sum += p;
+            cdf[s] = sum;
+            p *= skew;
+        }
+        freq = new int[k];
+        symbols = new int[SYMBOLS];
+        for (int i = 0; i < SYMBOLS; i++) {
+            double r = rnd.nextDouble() * sum;
+            int s = 0;
+            while (s < k - 1 && cdf[s] <= r) s++;
+            symbols[i] = s;
+            freq[s]++;
+        }
+        for (int s = 0; s < k; s++) {
+            if (freq[s] == 0) freq[s] = 1; // every codeword gets a code, as in streaming mode
+        }
+        codeLen = HuffmanCodec.buildCodeLengths(freq, HuffmanCodec.DEFAULT_MAX_CODE_LENGTH);
+        codeBits = new int[k];
+        HuffmanCodec.buildCanonicalCodes(codeLen, codeBits);
+        coded = encode();
+    }
+
+    @Benchmark
+    public int[] buildCodeLengths() {
+        return HuffmanCodec.buildCodeLengths(freq, HuffmanCodec.DEFAULT_MAX_CODE_LENGTH);
+    }
+
+    @Benchmark
+    public HuffmanDecodeTable buildDecodeTable() {
+        int[] bits = new int[k];
+        HuffmanCodec.buildCanonicalCodes(codeLen, bits);
+        return new HuffmanDecodeTable(codeLen, bits);
+    }
+
+    @Benchmark
+    public byte[] encode() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(SYMBOLS);
+        try (BitOutputStream bout = new BitOutputStream(out)) {
+            for (int s : symbols) {
+                bout.writeBits(codeBits[s], codeLen[s]);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public int decode() throws Exception {
+        HuffmanDecodeTable table = new HuffmanDecodeTable(codeLen, codeBits);
+        BitInputStream bin = new BitInputStream(ByteBuffer.wrap(coded));
+        int check = 0;
+        for (int i = 0; i < SYMBOLS; i++) {
+            check += table.decodeSymbol(bin);
+        }
+        return check;
+    }
+}
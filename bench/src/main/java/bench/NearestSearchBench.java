@@ -0,0 +1,68 @@
+package main.java.bench;
+
+import main.java.model.Codebook;
+import main.java.model.CodebookIndex;
+import main.java.model.FlatCodebook;
+import main.java.model.GrayscaleImage;
+import main.java.model.TrainingSet;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/** Nearest-codeword search for a batch of training vectors: the inner loop of training and encoding. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class NearestSearchBench {
+    static final int QUERIES = 4096;
+
+    @Param({"16", "256", "1024", "4096"})
+    int k;
+
+    @Param({"2x2", "4x4"})
+    String kernel;
+
+    Codebook codebook;
+    FlatCodebook flat;
+    CodebookIndex index;
+    float[][] queries;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        int[] kw = BenchInputs.kernel(kernel);
+        GrayscaleImage img = BenchInputs.synthetic(512, 512);
+        TrainingSet training = BenchInputs.training(img, kw);
+        codebook = BenchInputs.sampledCodebook(training, kw, k);
+        flat = new FlatCodebook(codebook);
+        index = new CodebookIndex(codebook);
+        queries = new float[QUERIES][];
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = training.getVector((int) ((long) i * training.size() / QUERIES));
+        }
+    }
+
+    @Benchmark
+    public void codebookFindNearest(Blackhole bh) {
+        for (float[] q : queries) {
+            bh.consume(codebook.findNearest(q));
+        }
+    }
+
+    @Benchmark
+    public void flatFindNearest(Blackhole bh) {
+        for (float[] q : queries) {
+            bh.consume(flat.findNearest(q));
+        }
+    }
+
+    @Benchmark
+    public void indexFindNearest(Blackhole bh) {
+        for (float[] q : queries) {
+            bh.consume(index.findNearest(q));
+        }
+    }
+}
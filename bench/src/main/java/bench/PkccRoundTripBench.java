@@ -0,0 +1,79 @@
+package main.java.bench;
+
+import main.java.core.BlockEncoder;
+import main.java.core.CodebookTrainer;
+import main.java.core.ParallelEngine;
+import main.java.io.PkccReader;
+import main.java.io.PkccWriter;
+import main.java.model.Codebook;
+import main.java.model.EncodedImage;
+import main.java.model.GrayscaleImage;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/** .pkcc container: tiled Huffman writing and reading from a stream or a memory-mapped file. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class PkccRoundTripBench {
+    static final int MAX_CODE_LENGTH = 16;
+
+    @Param({"synthetic-1024", "synthetic-4096", "cat256", "lena512"})
+    String image;
+
+    @Param({"1", "4"})
+    int threads;
+
+    EncodedImage encoded;
+    byte[] file;
+    Path mapped;
+    ParallelEngine engine;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        engine = BenchInputs.engine(threads);
+        int[] kw = {2, 2};
+        GrayscaleImage img = BenchInputs.image(image);
+        Codebook cb = CodebookTrainer.trainKMeans(BenchInputs.training(img, kw), kw[0], kw[1], 256, 3, BenchInputs.SEED);
+        encoded = BlockEncoder.encode(img, cb, 1 << 16);
+        file = write();
+        mapped = Files.createTempFile("pkc-bench", ".pkcc");
+        Files.write(mapped, file);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(mapped);
+        engine.shutdown();
+    }
+
+    @Benchmark
+    public byte[] write() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PkccWriter.write(out, encoded, MAX_CODE_LENGTH, PkccWriter.DEFAULT_TILE_ROWS, threads);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public EncodedImage readStream() throws Exception {
+        return PkccReader.read(new ByteArrayInputStream(file), threads);
+    }
+
+    @Benchmark
+    public EncodedImage readMapped() throws Exception {
+        return PkccReader.read(mapped, threads);
+    }
+
+    @Benchmark
+    public EncodedImage roundTrip() throws Exception {
+        return PkccReader.read(new ByteArrayInputStream(write()), threads);
+    }
+}
@@ -0,0 +1,67 @@
+package main.java.bench;
+
+import main.java.core.CodebookTrainer;
+import main.java.core.ParallelEngine;
+import main.java.model.Codebook;
+import main.java.model.TrainingSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Lloyd k-means over an image's training vectors, serial and on the shared engine. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class TrainingBench {
+    static final int MAX_ITER = 5;
+
+    @Param({"synthetic-256", "synthetic-1024", "cat256", "lena512"})
+    String image;
+
+    @Param({"64", "256"})
+    int k;
+
+    @Param({"2x2", "4x4"})
+    String kernel;
+
+    @Param({"1", "4"})
+    int threads;
+
+    int[] kw;
+    TrainingSet training;
+    List<float[]> vectors;
+    ParallelEngine engine;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        engine = BenchInputs.engine(threads);
+        kw = BenchInputs.kernel(kernel);
+        training = BenchInputs.training(BenchInputs.image(image), kw);
+        vectors = training.toList();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    // List form: one float[] per vector
+    @Benchmark
+    public Codebook trainKMeansList() throws Exception {
+        return threads == 1
+                ? CodebookTrainer.trainKMeans(vectors, kw[0], kw[1], k, MAX_ITER, BenchInputs.SEED)
+                : CodebookTrainer.trainKMeansParallel(vectors, kw[0], kw[1], k, MAX_ITER, BenchInputs.SEED, threads);
+    }
+
+    // Flat byte-packed form
+    @Benchmark
+    public Codebook trainKMeansFlat() throws Exception {
+        return threads == 1
+                ? CodebookTrainer.trainKMeans(training, kw[0], kw[1], k, MAX_ITER, BenchInputs.SEED)
+                : CodebookTrainer.trainKMeansParallel(training, kw[0], kw[1], k, MAX_ITER, BenchInputs.SEED, threads);
+    }
+}
@@ -0,0 +1,347 @@
+package main.java.app;
+
+import main.java.model.Codebook;
+import main.java.model.EncodedImage;
+import main.java.model.GrayscaleImage;
+import main.java.model.TreeCodebook;
+import main.java.core.ImageUtils;
+import main.java.core.ParallelEngine;
+import main.java.io.CodebookStore;
+import main.java.io.PkccWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Compresses many images in one JVM, as a pipeline of stages joined by bounded queues:
+ *
+ *   read (decode + grayscale) -> train -> encode -> entropy code -> write
+ *
+ * While one file is being trained, the next is already being decoded and the previous one
+ * encoded or written, and JVM startup and JIT warm-up are paid once for the whole batch.
+ *
+ * The I/O stages (read, write) run on virtual threads where the runtime has them. The CPU stages
+ * run on platform threads, and a semaphore with one permit per core is held only around their
+ * computation, so together they never keep more than that many files' work on the CPUs. Queue
+ * capacities bound how many decoded images are in flight.
+ *
+ * Each file gets the same output as single-file compression with the same multithreading flag.
+ * Given a stored codebook, the train stage only passes it on and every file references it.
+ * A file that fails is reported and skips its remaining stages; the rest of the batch goes on.
+ */
+public final class BatchCompressor {
+    public static final int QUEUE_CAPACITY = 4; // jobs waiting between two stages
+    public static final int IO_WORKERS = 4;     // concurrent reads and writes
+    public static final String[] IMAGE_SUFFIXES = {".png", ".jpg", ".jpeg", ".bmp", ".gif"};
+
+    private static final String[] STAGE_NAMES = {"read", "train", "encode", "entropy", "write"};
+    private static final Job POISON = new Job(null);
+
+    private final List<Path> sources;
+    private final boolean multithreading;
+    private final CodebookStore.Entry stored; // null: train per file
+    private boolean treeStructured;           // train tree-structured codebooks, encode through the tree
+    private final int cores = ParallelEngine.shared().getParallelism();
+    private final Semaphore cpu = new Semaphore(cores);
+
+    public BatchCompressor(List<Path> sources, boolean multithreading) {
+        this(sources, multithreading, null);
+    }
+
+    public BatchCompressor(List<Path> sources, boolean multithreading, CodebookStore.Entry stored) {
+        if (stored != null) {
+            PkcCompressor.checkStoredCodebook(stored);
+        }
+        checkTargets(sources);
+        this.sources = sources;
+        this.multithreading = multithreading;
+        this.stored = stored;
+    }
+
+    // Two sources writing the same .pkcc file would silently overwrite each other's output
+    private static void checkTargets(List<Path> sources) {
+        Map<Path, Path> sourceOf = new HashMap<>();
+        for (Path source : sources) {
+            Path target = PkcCompressor.compressedPath(source).toAbsolutePath().normalize();
+            Path other = sourceOf.putIfAbsent(target, source);
+            if (other != null) {
+                throw new IllegalArgumentException(other + " and " + source + " would both be compressed to " + target);
+            }
+        }
+    }
+
+    /** Train tree-structured codebooks per file; see {@link PkcCompressor#useTreeStructuredCodebook}. */
+    public void useTreeStructuredCodebook(boolean tree) {
+        this.treeStructured = tree;
+    }
+
+    /**
+     * Images to compress: the image files directly inside a directory, or the paths listed one
+     * per line in a text file (blank lines and lines starting with '#' are skipped).
+     */
+    public static List<Path> listSources(Path batch) throws IOException {
+        List<Path> sources = new ArrayList<>();
+        if (Files.isDirectory(batch)) {
+            try (Stream<Path> files = Files.list(batch)) {
+                files.filter(p -> Files.isRegularFile(p) && isImage(p)).sorted().forEach(sources::add);
+            }
+        } else {
+            for (String line : Files.readAllLines(batch)) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                sources.add(Path.of(line));
+            }
+        }
+        return sources;
+    }
+
+    private static boolean isImage(Path p) {
+        String name = p.getFileName().toString().toLowerCase(Locale.ROOT);
+        for (String suffix : IMAGE_SUFFIXES) {
+            if (name.endsWith(suffix)) return true;
+        }
+        return false;
+    }
+
+    /** Run the whole batch and print per-file and aggregate throughput; returns the number of failed files. */
+    public int run() throws InterruptedException {
+        PkcCompressor.checkK(PkcCompressor.K);
+        final int threads = multithreading ? cores : 1;
+        System.out.printf("Batch of %d files, %d CPU permits, intra-file threads: %d%n", sources.size(), cores, threads);
+
+        List<BlockingQueue<Job>> queues = new ArrayList<>();
+        for (int s = 0; s <= STAGE_NAMES.length; s++) {
+            queues.add(new ArrayBlockingQueue<>(QUEUE_CAPACITY));
+        }
+        ThreadFactory io = ioThreadFactory();
+        ThreadFactory compute = r -> {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            return t;
+        };
+        // Serial files: up to one per core in each CPU stage. Multithreaded files already use every
+        // core, so each CPU stage works on one file at a time.
+        final int cpuWorkers = multithreading ? 1 : cores;
+
+        long start = System.nanoTime();
+        List<Thread> workers = new ArrayList<>();
+
+        // 1) Read and convert to grayscale
+        workers.addAll(stage(0, queues, io, IO_WORKERS, false, job -> {
+            job.image = ImageUtils.read(job.source, threads);
+        }));
+        // 2) Collect training vectors and train the codebook
+        workers.addAll(stage(1, queues, compute, cpuWorkers, true, job -> {
+            if (stored != null) {
+                job.codebook = stored.getCodebook();
+            } else if (treeStructured) {
+                job.tree = PkcCompressor.trainTreeCodebook(job.image, multithreading, cores);
+            } else {
+                job.codebook = PkcCompressor.trainCodebook(job.image, multithreading, cores);
+            }
+        }));
+        // 3) Map blocks to codeword indices
+        workers.addAll(stage(2, queues, compute, cpuWorkers, true, job -> {
+            job.encoded = job.tree != null ? PkcCompressor.encode(job.image, job.tree, multithreading, cores)
+                    : PkcCompressor.encode(job.image, job.codebook, multithreading, cores);
+            job.width = job.image.getWidth();
+            job.height = job.image.getHeight();
+            job.image = null;
+            job.codebook = null;
+            job.tree = null;
+        }));
+        // 4) Huffman code into an in-memory .pkcc
+        workers.addAll(stage(3, queues, compute, cpuWorkers, true, job -> {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            PkccWriter.write(bytes, job.encoded, PkcCompressor.maxCodeLength(job.encoded.getCodebook()),
+                    PkccWriter.DEFAULT_TILE_ROWS, threads,
+                    PkcCompressor.REFERENCE_STORED_CODEBOOK ? stored : null);
+            job.encoded = null;
+            job.bytes = bytes;
+        }));
+        // 5) Write the file
+        workers.addAll(stage(4, queues, io, IO_WORKERS, false, job -> {
+            try (OutputStream out = Files.newOutputStream(job.target)) {
+                job.bytes.writeTo(out);
+            }
+            job.compressedSize = job.bytes.size();
+            job.bytes = null;
+        }));
+
+        // Feed the pipeline; the last queue collects finished jobs
+        Thread feeder = compute.newThread(() -> {
+            try {
+                for (Path source : sources) {
+                    queues.get(0).put(new Job(source));
+                }
+                queues.get(0).put(POISON);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        feeder.start();
+
+        List<Job> done = new ArrayList<>();
+        BlockingQueue<Job> finished = queues.get(STAGE_NAMES.length);
+        for (Job job = finished.take(); job != POISON; job = finished.take()) {
+            job.finishedAt = System.nanoTime();
+            report(job, start);
+            done.add(job);
+        }
+        long wall = System.nanoTime() - start;
+        feeder.join();
+        for (Thread t : workers) {
+            t.join();
+        }
+
+        return summarize(done, wall);
+    }
+
+    private interface Step {
+        void run(Job job) throws Exception;
+    }
+
+    /**
+     * Start workers that move jobs from queue s to queue s + 1. A poison job is handed back to
+     * the input queue for the sibling workers; the last worker to see it passes it on.
+     */
+    private List<Thread> stage(int s, List<BlockingQueue<Job>> queues, ThreadFactory factory, int count,
+                               boolean cpuBound, Step step) {
+        final BlockingQueue<Job> in = queues.get(s), out = queues.get(s + 1);
+        final AtomicInteger running = new AtomicInteger(count);
+        List<Thread> threads = new ArrayList<>(count);
+        for (int w = 0; w < count; w++) {
+            Thread t = factory.newThread(() -> {
+                try {
+                    while (true) {
+                        Job job = in.take();
+                        if (job == POISON) {
+                            in.put(POISON);
+                            if (running.decrementAndGet() == 0) {
+                                out.put(POISON);
+                            }
+                            return;
+                        }
+                        if (job.error == null) {
+                            if (cpuBound) cpu.acquire();
+                            long t0 = System.nanoTime();
+                            try {
+                                step.run(job);
+                            } catch (Throwable e) {
+                                // Anything the step throws fails this file only; a worker that died
+                                // here would never pass the job or the poison on, hanging the batch
+                                job.fail(STAGE_NAMES[s], e);
+                            } finally {
+                                job.stageNanos[s] = System.nanoTime() - t0;
+                                if (cpuBound) cpu.release();
+                            }
+                        }
+                        out.put(job);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            t.setName("pkc-batch-" + STAGE_NAMES[s] + "-" + w);
+            t.start();
+            threads.add(t);
+        }
+        return threads;
+    }
+
+    private static void report(Job job, long start) {
+        if (job.error != null) {
+            System.out.printf("FAILED %s in %s stage: %s%n", job.source, job.failedStage, job.error);
+            return;
+        }
+        double latency = (job.finishedAt - job.createdAt) / 1e6;
+        System.out.printf("Done %s: %dx%d, %d bytes (%.2f bits/pixel), stages ms [%s], latency %.1f ms, "
+                        + "finished at %.1f ms%n",
+                job.source, job.width, job.height, job.compressedSize,
+                8.0 * job.compressedSize / ((double) job.width * job.height), stageMillis(job.stageNanos),
+                latency, (job.finishedAt - start) / 1e6);
+    }
+
+    private static int summarize(List<Job> done, long wallNanos) {
+        int failed = 0;
+        long pixels = 0, compressed = 0;
+        long[] stageTotals = new long[STAGE_NAMES.length];
+        for (Job job : done) {
+            if (job.error != null) {
+                failed++;
+                continue;
+            }
+            pixels += (long) job.width * job.height;
+            compressed += job.compressedSize;
+            for (int s = 0; s < stageTotals.length; s++) stageTotals[s] += job.stageNanos[s];
+        }
+        double seconds = wallNanos / 1e9;
+        int ok = done.size() - failed;
+        System.out.printf("%nBatch: %d compressed, %d failed in %.1f ms%n", ok, failed, wallNanos / 1e6);
+        System.out.printf("Throughput: %.2f files/s, %.2f MP/s, %.2f bits/pixel overall%n",
+                ok / seconds, pixels / 1e6 / seconds, pixels == 0 ? 0.0 : 8.0 * compressed / pixels);
+        System.out.printf("Summed stage time ms [%s]%n", stageMillis(stageTotals));
+        return failed;
+    }
+
+    private static String stageMillis(long[] nanos) {
+        StringBuilder sb = new StringBuilder();
+        for (int s = 0; s < nanos.length; s++) {
+            if (s > 0) sb.append(", ");
+            sb.append(String.format(Locale.ROOT, "%s %.1f", STAGE_NAMES[s], nanos[s] / 1e6));
+        }
+        return sb.toString();
+    }
+
+    // Virtual threads for the I/O stages
+    private static ThreadFactory ioThreadFactory() {
+        return Thread.ofVirtual().name("pkc-batch-io-", 0).factory();
+    }
+
+    /** One file moving through the pipeline; each stage clears what later stages no longer need. */
+    private static final class Job {
+        final Path source;
+        final Path target;
+        final long createdAt = System.nanoTime();
+        final long[] stageNanos = new long[STAGE_NAMES.length];
+        GrayscaleImage image;
+        Codebook codebook;
+        TreeCodebook tree;
+        EncodedImage encoded;
+        ByteArrayOutputStream bytes;
+        int width, height;
+        long compressedSize;
+        long finishedAt;
+        String failedStage;
+        Throwable error;
+
+        Job(Path source) {
+            this.source = source;
+            this.target = source == null ? null : PkcCompressor.compressedPath(source);
+        }
+
+        void fail(String stage, Throwable e) {
+            failedStage = stage;
+            error = e;
+            image = null;
+            codebook = null;
+            tree = null;
+            encoded = null;
+            bytes = null;
+        }
+    }
+}
@@ -1,41 +1,76 @@
 package main.java.app;
 
+import main.java.core.Metrics;
+import main.java.io.CodebookStore;
+
 import java.io.IOException;
 import java.lang.reflect.Array;
+import java.nio.file.Path;
+import java.util.List;
 
 public class Main {
-    public static final byte VERSION = 0x0002;
+    public static final byte VERSION = 0x0007;
 
     public static void main(String[] args) throws IOException, InterruptedException {
         long start = System.nanoTime();
         System.out.printf("Parallel-Kernel Codebook Compression Codec v%s\n\n", VERSION);
+        if (hasFlag(args, "-v", "--verbose")) {
+            Metrics.setLogging(true); // progress lines plus per-stage and per-iteration metrics
+        }
         PkcCompressor compressor = new PkcCompressor(args[0]);
 
-        if(args[0].endsWith(".pkcc")) {
+        if(hasFlag(args, "-b", "--batch")) {
+            System.out.printf("Compressing batch %s\n", args[0]);
+            List<Path> sources = BatchCompressor.listSources(Path.of(args[0]));
+            String codebook = flagValue(args, "-c", "--codebook");
+            if (hasFlag(args, "-r", "--refine")) {
+                throw new IllegalArgumentException("--refine takes a single image; a batch uses the stored codebook as is");
+            }
+            if (flagValue(args, null, "--residual") != null) {
+                throw new IllegalArgumentException("--residual takes a single image");
+            }
+            if (flagValue(args, null, "--save-codebook") != null) {
+                throw new IllegalArgumentException("--save-codebook takes a single image; pass the stored codebook to a batch with -c");
+            }
+            BatchCompressor batch = new BatchCompressor(sources, hasFlag(args, "-m", "--multithread"),
+                    codebook == null ? null : CodebookStore.shared().load(codebook));
+            batch.useTreeStructuredCodebook(hasFlag(args, "-t", "--tree"));
+            int failed = batch.run();
+            if (failed > 0) {
+                System.out.printf("%d of %d files failed\n", failed, sources.size());
+            }
+
+        } else if(args[0].endsWith(".pkcc")) {
             System.out.printf("Decompressing image file %s\n", args[0]);
             try {
-                if(args[1].equalsIgnoreCase("-m") || args[1].equalsIgnoreCase("--multithread")) {
-                    compressor.decompress(true);
-                } else {
-                    compressor.decompress(false);
-                }
-            } catch (ArrayIndexOutOfBoundsException e) {
-                compressor.decompress(false);
+                compressor.decompress(hasFlag(args, "-m", "--multithread"));
             } catch (Exception e) {
                 throw new RuntimeException("Failed to decompress image.", e);
             }
 
         } else {
             System.out.printf("Compressing image file %s\n", args[0]);
+            boolean multithreading = hasFlag(args, "-m", "--multithread");
+            String codebook = flagValue(args, "-c", "--codebook");
+            if (codebook != null) {
+                compressor.useStoredCodebook(codebook);
+                compressor.refineStoredCodebook(hasFlag(args, "-r", "--refine"));
+            }
+            String saveAs = flagValue(args, null, "--save-codebook");
+            if (saveAs != null) {
+                compressor.saveCodebookAs(saveAs);
+            }
+            compressor.useTreeStructuredCodebook(hasFlag(args, "-t", "--tree"));
+            String residual = flagValue(args, null, "--residual");
+            if (residual != null) {
+                compressor.useResidualCodebook(blockSize(residual, 0), blockSize(residual, 1));
+            }
             try {
-                if(args[1].equalsIgnoreCase("-m") || args[1].equalsIgnoreCase("--multithread")) {
-                    compressor.compress(true);
+                if(hasFlag(args, "-s", "--stream")) {
+                    compressor.compressStreaming(multithreading);
                 } else {
-                    compressor.compress(false);
+                    compressor.compress(multithreading);
                 }
-
-            } catch (ArrayIndexOutOfBoundsException e) {
-                compressor.compress(false);
             } catch (Exception e) {
                 throw new RuntimeException("Failed to compress image.", e);
             }
@@ -44,4 +79,34 @@ public class Main {
         double millis = (end - start) / 1000000.0;
         System.out.println("End-to-end execution time in milliseconds: "+millis);
     }
+
+    private static boolean hasFlag(String[] args, String shortFlag, String longFlag) {
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equalsIgnoreCase(shortFlag) || args[i].equalsIgnoreCase(longFlag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Side 0 (width) or 1 (height) of a "WxH" block size
+    private static int blockSize(String size, int side) {
+        String[] sides = size.toLowerCase().split("x");
+        try {
+            if (sides.length == 2) return Integer.parseInt(sides[side]);
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Block size must be given as WxH, e.g. 4x4: " + size);
+    }
+
+    // Argument following the flag, or null if the flag is absent
+    private static String flagValue(String[] args, String shortFlag, String longFlag) {
+        for (int i = 1; i < args.length - 1; i++) {
+            if (args[i].equalsIgnoreCase(shortFlag) || args[i].equalsIgnoreCase(longFlag)) {
+                return args[i + 1];
+            }
+        }
+        return null;
+    }
 }
\ No newline at end of file
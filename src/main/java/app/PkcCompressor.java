@@ -1,11 +1,21 @@
 package main.java.app;
 
 import main.java.core.BlockEncoder;
+import main.java.core.CodebookRefiner;
 import main.java.core.CodebookTrainer;
+import main.java.core.HuffmanCodec;
 import main.java.core.ImageUtils;
+import main.java.core.KMeansSeeding;
+import main.java.core.Metrics;
+import main.java.core.ParallelEngine;
+import main.java.core.StripImageReader;
+import main.java.core.TrainingReservoir;
 import main.java.core.TrainingVectorCollector;
+import main.java.core.VectorHistogram;
 import main.java.model.*;
+import main.java.io.CodebookStore;
 import main.java.io.PkccReader;
+import main.java.io.PkccTileWriter;
 import main.java.io.PkccWriter;
 
 import javax.imageio.ImageIO;
@@ -13,77 +23,493 @@ import java.awt.image.BufferedImage;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.List;
+import java.util.Arrays;
 
 
 public class PkcCompressor {
     public static final int KERNEL_WIDTH = 2;
     public static final int KERNEL_HEIGHT = 2;
-    public static final int K = 256;
+    public static final int K = 256; // up to PkccWriter.MAX_K; from FlatCodebook.INDEX_MIN_SIZE on, encoding searches an index
     public static final float SAMPLE_RATE = 0.25F;
-    public static final int MAX_ITER = 10;
+    public static final int MAX_ITER = 5; // with k-means++ seeding, below the distortion of 10 randomly seeded iterations
+    public static final int MAX_CODE_LENGTH = 16; // raised for codebooks too large to code well within it
+    public static final int MAX_TRAINING_VECTORS = 1 << 20; // training sample cap for streaming mode
+    public static final String SEEDING = "kmeans++"; // "random", "kmeans++" or "kmeans||"
+    public static final int MINI_BATCH_THRESHOLD = 1 << 21; // training sets larger than this use mini-batch k-means
+    public static final int MINI_BATCH_SIZE = 1 << 14;
+    public static final int MINI_BATCH_MAX_ITER = 300;
+    public static final double MINI_BATCH_TOLERANCE = 1e-3; // mean squared centroid movement per batch
+    public static final int ENCODE_CACHE_SIZE = 1 << 16; // block -> index memo entries per encoder thread
     public static final String OUTPUT_FORMAT = "png";
+    public static final boolean REFERENCE_STORED_CODEBOOK = true; // false embeds stored codebooks like trained ones
+    public static final int REFINE_MAX_ITER = MAX_ITER;
+    public static final double REFINE_MIN_GAIN = 0.02; // share of MSE a refined codebook must remove to replace the stored one
+    public static final int RESIDUAL_STAGES = 2; // residual VQ: codebooks per block
+    public static final int RESIDUAL_K = 256;    // codewords per residual VQ stage
+    public static final int RESIDUAL_MAX_TRAINING_VECTORS = 1 << 18; // 8x8 vectors are 16 times the size of 2x2 ones
+    public static final int STRIP_HEAP_SHARE = 4; // streaming strips take up to 1/STRIP_HEAP_SHARE of the max heap
+
+    private static final int TILE_HEIGHT = PkccWriter.DEFAULT_TILE_ROWS * KERNEL_HEIGHT; // pixel rows per tile
+    // Strip bytes per pixel: the decoded image (up to 4), its grayscale copy and the block indices
+    private static final int STRIP_BYTES_PER_PIXEL = 6;
 
     private final String originalFilePath;
+    private CodebookStore.Entry storedCodebook; // use instead of training
+    private String saveCodebookAs;              // store the trained codebook under this name
+    private boolean refineStoredCodebook;       // warm-start training from the stored codebook
+    private boolean treeStructured;             // train a tree-structured codebook and encode through it
+    private int residualWidth, residualHeight;  // residual VQ block size, 0 if off
 
     public PkcCompressor(String origFilePath) throws IOException {
         this.originalFilePath = origFilePath;
     }
 
+    /** Compress with a codebook from the store (e.g. "scans" or "scans@3") and skip training. */
+    public void useStoredCodebook(String id) throws IOException {
+        CodebookStore.Entry stored = CodebookStore.shared().load(id);
+        checkStoredCodebook(stored);
+        this.storedCodebook = stored;
+    }
 
-    public void compress(boolean multithreading) throws IOException, InterruptedException {
-        System.out.println("Using multithreading: "+multithreading);
-        int cores = Runtime.getRuntime().availableProcessors();
-        if (K > 256) {
-            throw new IllegalArgumentException("This codec currently supports K <= 256 (one-byte indices).");
+    /**
+     * Refine the stored codebook on this image's vectors. If that lowers the distortion by at
+     * least REFINE_MIN_GAIN, the refined codebook is used (and embedded, or saved if a name was
+     * given); otherwise the stored one is used as is.
+     */
+    public void refineStoredCodebook(boolean refine) {
+        this.refineStoredCodebook = refine;
+    }
+
+    /**
+     * Train a tree-structured codebook and encode by descending it: about log2(K) dot products
+     * per block instead of a search of all K codewords, for a little more distortion. Files are
+     * unchanged in format. Has no effect with a stored codebook, which is searched in full.
+     */
+    public void useTreeStructuredCodebook(boolean tree) {
+        this.treeStructured = tree;
+    }
+
+    /**
+     * Compress width x height blocks (e.g. 4x4 or 8x8) with RESIDUAL_STAGES residual VQ
+     * codebooks of RESIDUAL_K codewords each instead of one KERNEL_WIDTH x KERNEL_HEIGHT codebook.
+     * Not combined with stored or tree-structured codebooks, nor with streaming compression.
+     */
+    public void useResidualCodebook(int width, int height) {
+        if (width < 1 || height < 1 || width > 255 || height > 255) {
+            throw new IllegalArgumentException("Residual VQ block size must be 1..255 on each side, got "
+                    + width + "x" + height);
         }
+        this.residualWidth = width;
+        this.residualHeight = height;
+    }
+
+    /** Store the trained codebook as the next version of name, and reference it from the file. */
+    public void saveCodebookAs(String name) {
+        this.saveCodebookAs = name;
+    }
 
-        // 1) Process image into grayscale format
-        GrayscaleImage image = new GrayscaleImage(originalFilePath);
-        System.out.println("Input image: " + image.getWidth() + "x" + image.getHeight());
 
-        // 2) Collect training vectors (overlapping 2x2 with subsampling)
+    public void compress(boolean multithreading) throws IOException, InterruptedException {
+        Metrics.log("Using multithreading: %s%n", multithreading);
+        int cores = ParallelEngine.shared().getParallelism();
+        if (residualWidth > 0) {
+            compressResidual(multithreading, cores);
+            return;
+        }
+        checkK(K);
 
-        List<float[]> training = TrainingVectorCollector.collectTrainingVectors(image, KERNEL_WIDTH, KERNEL_HEIGHT, SAMPLE_RATE, 1234L);
-        System.out.println("Training vectors: " + training.size());
+        // 1) Process image into grayscale format
+        GrayscaleImage image = ImageUtils.read(Path.of(originalFilePath), multithreading ? cores : 1);
+        Metrics.log("Input image: %dx%d%n", image.getWidth(), image.getHeight());
 
-        // 3) Train codebook
+        // 2) + 3) Collect training vectors and train codebook, unless a stored one is given
+        CodebookStore.Entry stored = storedCodebook;
         Codebook cb;
-        if(multithreading) {
-            cb = CodebookTrainer.trainKMeansParallel(training, KERNEL_WIDTH, KERNEL_HEIGHT, K, MAX_ITER, 1234L, cores);
+        TreeCodebook tree = null;
+        if (stored != null && refineStoredCodebook) {
+            TrainingSet training = collect(image, multithreading, cores);
+            Metrics.Timer timer = Metrics.start(Metrics.Stage.TRAIN);
+            cb = refineStored(training, multithreading, cores);
+            timer.stop(training.getPixels().length, codebookBytes(cb));
+            if (cb != stored.getCodebook()) {
+                stored = saveCodebookAs != null ? CodebookStore.shared().save(saveCodebookAs, cb) : null;
+                if (stored != null) cb = stored.getCodebook();
+            }
+        } else if (stored != null) {
+            cb = stored.getCodebook();
+            Metrics.log("Using stored codebook %s, skipping training%n", stored.getId());
         } else {
-            cb = CodebookTrainer.trainKMeans(training, KERNEL_WIDTH, KERNEL_HEIGHT, K, MAX_ITER, 1234L);
+            if (treeStructured) {
+                tree = trainTreeCodebook(image, multithreading, cores);
+                cb = tree.getLeaves();
+            } else {
+                cb = trainCodebook(image, multithreading, cores);
+            }
+            if (saveCodebookAs != null) {
+                stored = CodebookStore.shared().save(saveCodebookAs, cb);
+                cb = stored.getCodebook(); // quantized, as the decoder will see it
+            }
         }
-        System.out.println("Codebook size: " + cb.getSize());
 
         // 4) Encode image with codebook
+        EncodedImage encoded = tree != null ? encode(image, tree, multithreading, cores)
+                : encode(image, cb, multithreading, cores);
+
+        // 5) Write to file
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(compressedPath(originalFilePath)))) {
+            Metrics.log("About to write .pkcc file...%n");
+            PkccWriter.write(out, encoded, maxCodeLength(cb), PkccWriter.DEFAULT_TILE_ROWS, multithreading ? cores : 1,
+                    REFERENCE_STORED_CODEBOOK ? stored : null);
+            Metrics.log("Finished writing .pkcc file.%n");
+        }
+
+    }
+
+    /**
+     * Compress strip by strip, so peak memory is bounded by one strip rather than the whole
+     * image. Strips are whole tiles of PkccWriter.DEFAULT_TILE_ROWS block rows, as many as fit
+     * in 1/STRIP_HEAP_SHARE of the maximum heap, so each one costs one decoder call. The image
+     * is read twice through source regions, or once if a single strip holds all of it:
+     *   1) keep a fixed-capacity reservoir of training windows (at most MAX_TRAINING_VECTORS)
+     *      across all tiles and train;
+     *   2) encode each strip and append its tiles, each Huffman-coded on its own.
+     * Windows are offered tile by tile, so the sample (and the file) does not depend on the
+     * strip size. Since tiles are written before all indices are known, the Huffman code is built
+     * from the codeword frequencies of the training sample, with every codeword given a nonzero count.
+     */
+    public void compressStreaming(boolean multithreading) throws IOException, InterruptedException {
+        if (residualWidth > 0) {
+            throw new IllegalArgumentException("Residual VQ is not supported in streaming mode");
+        }
+        Metrics.log("Using multithreading: %s%n", multithreading);
+        int cores = ParallelEngine.shared().getParallelism();
+        checkK(K);
+
+        try (StripImageReader reader = new StripImageReader(Path.of(originalFilePath))) {
+            int width  = reader.getWidth();
+            int height = reader.getHeight();
+            int blocksY = height / KERNEL_HEIGHT;
+            int tiles = (blocksY + PkccWriter.DEFAULT_TILE_ROWS - 1) / PkccWriter.DEFAULT_TILE_ROWS;
+            int stripTiles = stripTiles(width, tiles);
+            int strips = (tiles + stripTiles - 1) / stripTiles;
+            Metrics.log("Input image: %dx%d, streaming %d tiles in %d strips%n", width, height, tiles, strips);
+
+            // 1) Collect a bounded training sample, tile by tile
+            long windows = (long) Math.max(0, width - KERNEL_WIDTH + 1) * Math.max(0, height - KERNEL_HEIGHT + 1);
+            int capacity = (int) Math.max(1, Math.min(MAX_TRAINING_VECTORS, Math.ceil(SAMPLE_RATE * windows)));
+            TrainingReservoir reservoir = new TrainingReservoir(KERNEL_WIDTH, KERNEL_HEIGHT, capacity, 1234L);
+            GrayscaleImage whole = null; // the only strip, kept for step 4
+            for (int s = 0; s < strips; s++) {
+                GrayscaleImage strip = readStrip(reader, s * stripTiles, stripTiles, blocksY);
+                Metrics.Timer timer = Metrics.start(Metrics.Stage.COLLECT);
+                for (int t = 0; t * TILE_HEIGHT < strip.getHeight(); t++) {
+                    reservoir.offer(tileOf(strip, t), (s * stripTiles + t) * TILE_HEIGHT, multithreading ? cores : 1);
+                }
+                timer.stop(strip.getPixels().length, -1); // the reservoir only grows up to its capacity
+                if (strips == 1) whole = strip;
+            }
+            TrainingSet training = reservoir.toTrainingSet();
+            Metrics.log("Training vectors: %d of %d%n", training.size(), reservoir.getOffered());
+
+            // 2) Train codebook, unless a stored one is given
+            CodebookStore.Entry stored = storedCodebook;
+            Codebook cb;
+            TreeCodebook tree = null;
+            if (stored != null && refineStoredCodebook) {
+                Metrics.Timer timer = Metrics.start(Metrics.Stage.TRAIN);
+                cb = refineStored(training, multithreading, cores);
+                timer.stop(training.getPixels().length, codebookBytes(cb));
+                if (cb != stored.getCodebook()) {
+                    stored = saveCodebookAs != null ? CodebookStore.shared().save(saveCodebookAs, cb) : null;
+                    if (stored != null) cb = stored.getCodebook();
+                }
+            } else if (stored != null) {
+                cb = stored.getCodebook();
+                Metrics.log("Using stored codebook %s, skipping training%n", stored.getId());
+            } else {
+                if (treeStructured) {
+                    tree = trainTree(training, multithreading, cores);
+                    cb = tree.getLeaves();
+                } else {
+                    cb = train(training, multithreading, cores);
+                }
+                if (saveCodebookAs != null) {
+                    stored = CodebookStore.shared().save(saveCodebookAs, cb);
+                    cb = stored.getCodebook();
+                }
+            }
+
+            // 3) Huffman code from sampled codeword frequencies
+            int[] freq = new int[cb.getSize()];
+            Arrays.fill(freq, 1);
+            CodewordSearch search = tree != null ? tree : new FlatCodebook(cb);
+            float[] v = new float[training.getVectorLength()];
+            for (int i = 0; i < training.size(); i++) {
+                training.get(i, v);
+                freq[search.findNearest(v, -1)]++;
+            }
+            training = null; // release the sample before encoding
+            int[] codeLen = HuffmanCodec.buildCodeLengths(freq, maxCodeLength(cb));
+
+            // 4) Encode and write strip by strip
+            try (PkccTileWriter writer = new PkccTileWriter(compressedPath(originalFilePath), width, height, cb,
+                    REFERENCE_STORED_CODEBOOK ? stored : null, codeLen, maxCodeLength(cb), PkccWriter.DEFAULT_TILE_ROWS)) {
+                Metrics.log("About to write .pkcc file...%n");
+                int tileBlocks = PkccWriter.DEFAULT_TILE_ROWS * (width / KERNEL_WIDTH);
+                for (int s = 0; s < strips; s++) {
+                    GrayscaleImage strip = whole != null ? whole : readStrip(reader, s * stripTiles, stripTiles, blocksY);
+                    whole = null;
+                    int[] indices = (tree != null ? encode(strip, tree, multithreading, cores)
+                            : encode(strip, cb, multithreading, cores)).getBlockIndices();
+                    for (int from = 0; from < indices.length; from += tileBlocks) {
+                        writer.writeTile(Arrays.copyOfRange(indices, from, Math.min(indices.length, from + tileBlocks)));
+                    }
+                }
+            }
+            Metrics.log("Finished writing .pkcc file.%n");
+        }
+    }
+
+    /**
+     * compress() with residual VQ: train RESIDUAL_STAGES codebooks on residualWidth x
+     * residualHeight windows, encode every block greedily through them and write all stages.
+     */
+    private void compressResidual(boolean multithreading, int cores) throws IOException, InterruptedException {
+        if (storedCodebook != null || saveCodebookAs != null || treeStructured) {
+            throw new IllegalArgumentException("Residual VQ cannot be combined with stored or tree-structured codebooks");
+        }
+        checkK(RESIDUAL_K);
+        int threads = multithreading ? cores : 1;
+
+        // 1) Process image into grayscale format
+        GrayscaleImage image = ImageUtils.read(Path.of(originalFilePath), threads);
+        Metrics.log("Input image: %dx%d, residual VQ on %dx%d blocks%n", image.getWidth(), image.getHeight(),
+                residualWidth, residualHeight);
+
+        // 2) Collect training windows of the residual block size
+        Metrics.Timer timer = Metrics.start(Metrics.Stage.COLLECT);
+        TrainingSet training = TrainingVectorCollector.collect(image, residualWidth, residualHeight, SAMPLE_RATE, 1234L, threads)
+                .sample(RESIDUAL_MAX_TRAINING_VECTORS, 1234L);
+        timer.stop(image.getPixels().length, training.getPixels().length);
+        Metrics.log("Training vectors: %d%n", training.size());
+
+        // 3) Train the stages
+        timer = Metrics.start(Metrics.Stage.TRAIN);
+        int[] stageSizes = new int[RESIDUAL_STAGES];
+        Arrays.fill(stageSizes, RESIDUAL_K);
+        ResidualCodebook rvq = CodebookTrainer.trainResidual(training, residualWidth, residualHeight, stageSizes,
+                MAX_ITER, 1234L, threads);
+        long bytes = 0;
+        for (int st = 0; st < rvq.getStages(); st++) bytes += codebookBytes(rvq.getCodebook(st));
+        timer.stop(training.getPixels().length, bytes);
+        training = null; // release the sample before encoding
+
+        // 4) Encode
+        timer = Metrics.start(Metrics.Stage.ENCODE);
+        EncodedImage encoded = BlockEncoder.encodeResidual(image, rvq, threads);
+        timer.stop(image.getPixels().length, (long) rvq.getStages() * encoded.getBlockIndices().length * Integer.BYTES);
+        Metrics.log("Encoded blocks: %d, %d stages%n", encoded.getBlockIndices().length, rvq.getStages());
+
+        // 5) Write to file
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(compressedPath(originalFilePath)))) {
+            Metrics.log("About to write .pkcc file...%n");
+            PkccWriter.write(out, encoded, maxCodeLength(rvq.getCodebook(0)), PkccWriter.DEFAULT_TILE_ROWS, threads, null);
+            Metrics.log("Finished writing .pkcc file.%n");
+        }
+    }
+
+    static void checkK(int k) {
+        if (k < 1 || k > PkccWriter.MAX_K) {
+            throw new IllegalArgumentException("This codec supports 1 <= K <= " + PkccWriter.MAX_K + ", got " + k);
+        }
+    }
+
+    // Huffman code length limit for cb's indices
+    static int maxCodeLength(Codebook cb) {
+        return HuffmanCodec.lengthLimit(cb.getSize(), MAX_CODE_LENGTH);
+    }
+
+    // Stored codebooks must fit the fixed block size
+    static void checkStoredCodebook(CodebookStore.Entry stored) {
+        Codebook cb = stored.getCodebook();
+        if (cb.getBlockWidth() != KERNEL_WIDTH || cb.getBlockHeight() != KERNEL_HEIGHT) {
+            throw new IllegalArgumentException("Stored codebook " + stored.getId() + " has " + cb.getBlockWidth() + "x"
+                    + cb.getBlockHeight() + " blocks, expected " + KERNEL_WIDTH + "x" + KERNEL_HEIGHT);
+        }
+        checkK(cb.getSize());
+    }
+
+    // Warm-started refinement of the stored codebook; the stored one itself if the gain is too small
+    private Codebook refineStored(TrainingSet training, boolean multithreading, int cores) throws InterruptedException {
+        Codebook start = storedCodebook.getCodebook();
+        CodebookRefiner.Result refined = CodebookRefiner.refine(training, start, REFINE_MAX_ITER, 1234L,
+                multithreading ? cores : 1);
+        if (refined.getRelativeImprovement() < REFINE_MIN_GAIN) {
+            Metrics.log("Refinement gains %.1f%% MSE, using stored codebook %s%n",
+                    100 * refined.getRelativeImprovement(), storedCodebook.getId());
+            return start;
+        }
+        Metrics.log("Refinement gains %.1f%% MSE, using the refined codebook%n",
+                100 * refined.getRelativeImprovement());
+        return refined.getCodebook();
+    }
+
+    // Collect training vectors (overlapping windows with subsampling)
+    static TrainingSet collect(GrayscaleImage image, boolean multithreading, int cores) throws InterruptedException {
+        Metrics.Timer timer = Metrics.start(Metrics.Stage.COLLECT);
+        TrainingSet training = TrainingVectorCollector.collect(image, KERNEL_WIDTH, KERNEL_HEIGHT, SAMPLE_RATE, 1234L, multithreading ? cores : 1);
+        timer.stop(image.getPixels().length, training.getPixels().length);
+        Metrics.log("Training vectors: %d%n", training.size());
+        return training;
+    }
+
+    // Collect training vectors and train a codebook
+    static Codebook trainCodebook(GrayscaleImage image, boolean multithreading, int cores) throws InterruptedException {
+        return train(collect(image, multithreading, cores), multithreading, cores);
+    }
+
+    // Train a tree-structured codebook on the image's vectors
+    static TreeCodebook trainTreeCodebook(GrayscaleImage image, boolean multithreading, int cores) throws InterruptedException {
+        return trainTree(collect(image, multithreading, cores), multithreading, cores);
+    }
+
+    static EncodedImage encode(GrayscaleImage image, Codebook cb, boolean multithreading, int cores) throws InterruptedException {
+        return encode(image, cb, null, multithreading, cores);
+    }
+
+    // Encode by descending the tree instead of searching its leaves
+    static EncodedImage encode(GrayscaleImage image, TreeCodebook tree, boolean multithreading, int cores) throws InterruptedException {
+        return encode(image, tree.getLeaves(), tree, multithreading, cores);
+    }
+
+    private static EncodedImage encode(GrayscaleImage image, Codebook cb, TreeCodebook tree, boolean multithreading, int cores)
+            throws InterruptedException {
+        Metrics.Timer timer = Metrics.start(Metrics.Stage.ENCODE);
         EncodedImage encoded;
-        if(multithreading) {
-            encoded = BlockEncoder.encodeParallel(image, cb, cores);
+        if (tree != null) {
+            encoded = multithreading ? BlockEncoder.encodeParallel(image, tree, cores, ENCODE_CACHE_SIZE)
+                    : BlockEncoder.encode(image, tree, ENCODE_CACHE_SIZE);
+        } else if(multithreading) {
+            encoded = BlockEncoder.encodeParallel(image, cb, cores, ENCODE_CACHE_SIZE);
         } else {
-            encoded = BlockEncoder.encode(image, cb);
+            encoded = BlockEncoder.encode(image, cb, ENCODE_CACHE_SIZE);
         }
-        System.out.println("Encoded blocks: " + encoded.getBlockIndices().length);
+        timer.stop(image.getPixels().length, (long) encoded.getBlockIndices().length * Integer.BYTES);
+        Metrics.log("Encoded blocks: %d%n", encoded.getBlockIndices().length);
+        return encoded;
+    }
 
-        // 5) Write to file
-        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(Path.of(originalFilePath.split("\\.")[0] + "-compressed.pkcc")))) {
-            System.out.println("About to write .pkcc file...");
-            PkccWriter.write(out, encoded);
-            System.out.println("Finished writing .pkcc file.");
+    // Train a codebook, reported as one TRAIN stage
+    private static Codebook train(TrainingSet training, boolean multithreading, int cores) throws InterruptedException {
+        Metrics.Timer timer = Metrics.start(Metrics.Stage.TRAIN);
+        Codebook cb = trainUntimed(training, multithreading, cores);
+        timer.stop(training.getPixels().length, codebookBytes(cb));
+        Metrics.log("Codebook size: %d%n", cb.getSize());
+        return cb;
+    }
+
+    // Train a tree-structured codebook, reported as one TRAIN stage
+    private static TreeCodebook trainTree(TrainingSet training, boolean multithreading, int cores) throws InterruptedException {
+        Metrics.Timer timer = Metrics.start(Metrics.Stage.TRAIN);
+        int threads = multithreading ? cores : 1;
+        TreeCodebook tree = CodebookTrainer.trainTreeStructured(VectorHistogram.build(training), KERNEL_WIDTH,
+                KERNEL_HEIGHT, K, MAX_ITER, 1234L, threads);
+        timer.stop(training.getPixels().length, codebookBytes(tree.getLeaves()));
+        Metrics.log("Codebook size: %d, tree depth %d%n", tree.getSize(), tree.getDepth());
+        return tree;
+    }
+
+    // Bytes of the quantized codebook as stored in .pkcc files
+    private static long codebookBytes(Codebook cb) {
+        return (long) cb.getSize() * cb.getVectorLength();
+    }
+
+    /**
+     * Training sets above MINI_BATCH_THRESHOLD: mini-batch k-means, seeded from a uniform sample.
+     * Otherwise k-means with Hamerly bounds over the de-duplicated vectors, weighted by count;
+     * it gives the same codebook as plain Lloyd iterations over every vector, in less time.
+     */
+    private static Codebook trainUntimed(TrainingSet training, boolean multithreading, int cores) throws InterruptedException {
+        int threads = multithreading ? cores : 1;
+        if (training.size() > MINI_BATCH_THRESHOLD) {
+            float[][] init = seed(VectorHistogram.build(training.sample(4 * MINI_BATCH_SIZE, 1234L)), threads);
+            return init != null
+                    ? CodebookTrainer.trainKMeansMiniBatch(training, KERNEL_WIDTH, KERNEL_HEIGHT, init, MINI_BATCH_SIZE,
+                            MINI_BATCH_MAX_ITER, MINI_BATCH_TOLERANCE, 1234L, threads)
+                    : CodebookTrainer.trainKMeansMiniBatch(training, KERNEL_WIDTH, KERNEL_HEIGHT, K, MINI_BATCH_SIZE,
+                            MINI_BATCH_MAX_ITER, MINI_BATCH_TOLERANCE, 1234L, threads);
         }
+        VectorHistogram hist = VectorHistogram.build(training);
+        Metrics.log("Unique training vectors: %d%n", hist.getUniqueCount());
+        float[][] init = seed(hist, threads);
+        return init != null
+                ? CodebookTrainer.trainKMeansWeightedHamerlyParallel(hist, KERNEL_WIDTH, KERNEL_HEIGHT, init, MAX_ITER,
+                        1234L, threads, null)
+                : CodebookTrainer.trainKMeansWeightedHamerlyParallel(hist, KERNEL_WIDTH, KERNEL_HEIGHT, K, MAX_ITER,
+                        1234L, threads, null);
+    }
 
+    // Initial centroids per SEEDING, or null to let the trainer pick K random training vectors
+    private static float[][] seed(VectorHistogram hist, int threads) throws InterruptedException {
+        switch (SEEDING) {
+            case "random":
+                return null;
+            case "kmeans++":
+                return KMeansSeeding.kMeansPlusPlus(hist, K, 1234L, threads);
+            case "kmeans||":
+                return KMeansSeeding.kMeansParallel(hist, K, KMeansSeeding.DEFAULT_ROUNDS,
+                        KMeansSeeding.DEFAULT_OVERSAMPLING, 1234L, threads);
+            default:
+                throw new IllegalArgumentException("Unknown seeding: " + SEEDING);
+        }
     }
 
-    public void decompress(boolean multithreading) throws InterruptedException {
-        System.out.println("Using multithreading: "+multithreading);
-        try (InputStream in = new BufferedInputStream(Files.newInputStream(Path.of(originalFilePath)))) {
-            System.out.println("Opened InputStream for PKCC file");
+    // Pixel rows covered by tile t (full block rows only, like BlockEncoder.encode)
+    // Tiles per streaming strip: as many as fit in the heap share, at least one and at most all
+    private static int stripTiles(int width, int tiles) {
+        long rowBytes = (long) STRIP_BYTES_PER_PIXEL * Math.max(1, width);
+        long fit = Runtime.getRuntime().maxMemory() / STRIP_HEAP_SHARE / rowBytes / TILE_HEIGHT;
+        return (int) Math.max(1, Math.min(tiles, fit));
+    }
+
+    // Pixel rows of 'count' tiles from 'tile' on, clipped to the blocksY block rows that are coded
+    private static GrayscaleImage readStrip(StripImageReader reader, int tile, int count, int blocksY)
+            throws IOException {
+        int rows = Math.min(count * PkccWriter.DEFAULT_TILE_ROWS, blocksY - tile * PkccWriter.DEFAULT_TILE_ROWS);
+        return reader.readStrip(tile * TILE_HEIGHT, rows * KERNEL_HEIGHT);
+    }
 
-            // 2) Read encoded image structure
-            EncodedImage encoded = PkccReader.read(in);
-            System.out.println("PkccReader.read() returned EncodedImage");
+    // Tile t of a strip that starts on a tile boundary
+    private static GrayscaleImage tileOf(GrayscaleImage strip, int t) {
+        int y0 = t * TILE_HEIGHT, y1 = Math.min(strip.getHeight(), y0 + TILE_HEIGHT);
+        if (y0 == 0 && y1 == strip.getHeight()) {
+            return strip;
+        }
+        int width = strip.getWidth();
+        return new GrayscaleImage(width, y1 - y0, Arrays.copyOfRange(strip.getPixels(), y0 * width, y1 * width));
+    }
+
+    static Path compressedPath(String originalFilePath) {
+        return compressedPath(Path.of(originalFilePath));
+    }
+
+    // source's sibling named after its file name without the last extension
+    static Path compressedPath(Path source) {
+        return source.resolveSibling(stem(source.getFileName().toString()) + "-compressed.pkcc");
+    }
 
-            System.out.printf("EncodedImage: %dx%d, block=%dx%d, codebookSize=%d, blocks=%d%n",
+    private static String stem(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot > 0 ? fileName.substring(0, dot) : fileName;
+    }
+
+    public void decompress(boolean multithreading) throws InterruptedException {
+        Metrics.log("Using multithreading: %s%n", multithreading);
+        try {
+            // 2) Read encoded image structure (memory-mapped)
+            int cores = multithreading ? ParallelEngine.shared().getParallelism() : 1;
+            EncodedImage encoded = PkccReader.read(Path.of(originalFilePath), cores);
+            Metrics.log("EncodedImage: %dx%d, block=%dx%d, codebookSize=%d, blocks=%d%n",
                     encoded.getWidth(),
                     encoded.getHeight(),
                     encoded.getBlockWidth(),
@@ -91,27 +517,19 @@ public class PkcCompressor {
                     encoded.getCodebook().getSize(),
                     encoded.getBlockIndices().length);
 
-            // 3) Decode indices → GrayscaleImage
-            GrayscaleImage gray;
-            if(multithreading) {
-                int cores = Runtime.getRuntime().availableProcessors();
-                gray = BlockEncoder.decodeParallel(encoded, cores);
-                System.out.println("BlockEncoder.decodeParallel() produced GrayscaleImage: "
-                        + gray.getWidth() + "x" + gray.getHeight());
-            } else {
-                gray = BlockEncoder.decode(encoded);
-                System.out.println("BlockEncoder.decode() produced GrayscaleImage: "
-                        + gray.getWidth() + "x" + gray.getHeight());
-            }
-
-            // 4) Convert GrayscaleImage → BufferedImage
-            BufferedImage output = ImageUtils.fromGrayscale(gray);
-            System.out.println("Converted GrayscaleImage to BufferedImage");
+            // 3) + 4) Decode indices straight into a TYPE_BYTE_GRAY BufferedImage
+            Metrics.Timer timer = Metrics.start(Metrics.Stage.DECODE);
+            BufferedImage output = BlockEncoder.decodeToImage(encoded, cores);
+            long pixels = (long) output.getWidth() * output.getHeight();
+            timer.stop((long) encoded.getBlockIndices().length * Integer.BYTES, pixels);
+            Metrics.log("Decoded %dx%d image with %d threads%n", output.getWidth(), output.getHeight(), cores);
 
             // 5) Write to desired image format
-            Path outputImagePath = Path.of(originalFilePath.split("\\.pkcc")[0]+"-recon."+OUTPUT_FORMAT);
+            Path source = Path.of(originalFilePath);
+            Path outputImagePath = source.resolveSibling(stem(source.getFileName().toString()) + "-recon." + OUTPUT_FORMAT);
+            timer = Metrics.start(Metrics.Stage.WRITE);
             boolean ok = ImageIO.write(output, OUTPUT_FORMAT, outputImagePath.toFile());
-            System.out.println("ImageIO.write returned: " + ok);
+            timer.stop(pixels, ok && Metrics.enabled() ? Files.size(outputImagePath) : 0);
 
             if (!ok) {
                 throw new IOException("No appropriate writer found for format: " + OUTPUT_FORMAT);
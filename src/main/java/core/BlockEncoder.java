@@ -1,20 +1,49 @@
 package main.java.core;
 
 import main.java.model.Codebook;
+import main.java.model.CodewordSearch;
 import main.java.model.EncodedImage;
+import main.java.model.FlatCodebook;
 import main.java.model.GrayscaleImage;
+import main.java.model.ResidualCodebook;
+import main.java.model.TreeCodebook;
 
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 public final class BlockEncoder {
+    // Smallest number of blocks encoded or decoded by one parallel task
+    private static final int ROW_GRAIN_BLOCKS = 4096;
 
     public static EncodedImage encode(GrayscaleImage img, Codebook codebook) {
+        return encode(img, codebook, 0);
+    }
+
+    /**
+     * Encode with an exact block -> index memo cache of the given capacity (0 disables it).
+     * Repeated blocks, common in flat regions, skip the codebook search entirely.
+     */
+    public static EncodedImage encode(GrayscaleImage img, Codebook codebook, int cacheCapacity) {
+        return encode(img, codebook, new FlatCodebook(codebook), cacheCapacity);
+    }
+
+    /**
+     * Encode by descending a tree-structured codebook: about log2(K) dot products per block
+     * instead of a search of all K codewords, for a little more distortion. The image refers to
+     * the tree's leaves, so it is written and decoded like any other.
+     */
+    public static EncodedImage encode(GrayscaleImage img, TreeCodebook tree, int cacheCapacity) {
+        return encode(img, tree.getLeaves(), tree, cacheCapacity);
+    }
+
+    private static EncodedImage encode(GrayscaleImage img, Codebook codebook, CodewordSearch search, int cacheCapacity) {
         int width  = img.getWidth();
         int height = img.getHeight();
         int blockW = codebook.getBlockWidth();
@@ -26,32 +55,59 @@ public final class BlockEncoder {
 
         int[] indices = new int[totalBlocks];
 
+        BlockIndexCache cache = cacheCapacity > 0 ? new BlockIndexCache(blockW * blockH, cacheCapacity) : null;
         float[] v = new float[blockW * blockH];
+        byte[] block = new byte[blockW * blockH];
 
         int idx = 0;
         for (int by = 0; by < blocksY; by++) {
             int y0 = by * blockH;
+            int prev = -1; // left neighbour's index: the search starts from it
             for (int bx = 0; bx < blocksX; bx++) {
                 int x0 = bx * blockW;
 
                 int t = 0;
                 for (int dy = 0; dy < blockH; dy++) {
                     for (int dx = 0; dx < blockW; dx++) {
-                        v[t++] = img.get(x0 + dx, y0 + dy);
+                        int p = img.get(x0 + dx, y0 + dy);
+                        v[t] = p;
+                        block[t++] = (byte) p;
                     }
                 }
 
-                int codeIdx = codebook.findNearest(v);
+                int codeIdx = cache != null ? cache.nearest(block, v, search, prev) : search.findNearest(v, prev);
                 indices[idx++] = codeIdx;
+                prev = codeIdx;
             }
         }
 
+        if (cache != null) {
+            printCacheStats("encode", cache.getHits(), cache.getMisses(), cache.getEvictions());
+        }
+
         // TODO: handle leftover right/bottom edges (for now will assert width%2==0 and height%2==0)
 
         return new EncodedImage(width, height, blockW, blockH, codebook, indices);
     }
 
     public static EncodedImage encodeParallel(GrayscaleImage img, Codebook codebook, int numThreads) throws InterruptedException {
+        return encodeParallel(img, codebook, numThreads, 0);
+    }
+
+    // Parallel encode; each worker gets its own memo cache of cacheCapacity entries (0 disables)
+    public static EncodedImage encodeParallel(GrayscaleImage img, Codebook codebook, int numThreads, int cacheCapacity)
+            throws InterruptedException {
+        return encodeParallel(img, codebook, new FlatCodebook(codebook), numThreads, cacheCapacity);
+    }
+
+    // Parallel form of encode with a tree-structured codebook
+    public static EncodedImage encodeParallel(GrayscaleImage img, TreeCodebook tree, int numThreads, int cacheCapacity)
+            throws InterruptedException {
+        return encodeParallel(img, tree.getLeaves(), tree, numThreads, cacheCapacity);
+    }
+
+    private static EncodedImage encodeParallel(GrayscaleImage img, Codebook codebook, CodewordSearch search,
+                                               int numThreads, int cacheCapacity) throws InterruptedException {
         int width  = img.getWidth();
         int height = img.getHeight();
         int blockW = codebook.getBlockWidth();   // 2
@@ -63,170 +119,292 @@ public final class BlockEncoder {
         int totalBlocks = blocksX * blocksY;
         int[] indices = new int[totalBlocks];
 
-        System.out.printf("encodeParallel: %dx%d blocks (%dx%d), blocksX=%d blocksY=%d totalBlocks=%d%n",
+        Metrics.log("encodeParallel: %dx%d blocks (%dx%d), blocksX=%d blocksY=%d totalBlocks=%d%n",
                 width, height, blockW, blockH, blocksX, blocksY, totalBlocks);
 
         if (blocksY == 0 || blocksX == 0) {
-            System.out.println("encodeParallel: no blocks to encode");
+            Metrics.log("encodeParallel: no blocks to encode%n");
             return new EncodedImage(width, height, blockW, blockH, codebook, indices);
         }
 
         int threads = Math.max(1, Math.min(numThreads, blocksY));
-        System.out.printf("encodeParallel: initializing %d threads\n", threads);
-        ExecutorService pool = Executors.newFixedThreadPool(threads);
-        List<Future<?>> futures = new ArrayList<>();
-
-        // Partition by *block rows*
-        for (int t = 0; t < threads; t++) {
-            final int byStart = (blocksY * t) / threads;
-            final int byEnd   = (blocksY * (t + 1)) / threads;
-
-            Runnable task = () -> {
-                float[] v = new float[blockW * blockH]; // thread-local temp
-                for (int by = byStart; by < byEnd; by++) {
-                    int y0 = by * blockH;
-                    for (int bx = 0; bx < blocksX; bx++) {
-                        int x0 = bx * blockW;
-
-                        // Build vector for this block
-                        int pos = 0;
-                        for (int dy = 0; dy < blockH; dy++) {
-                            for (int dx = 0; dx < blockW; dx++) {
-                                v[pos++] = img.get(x0 + dx, y0 + dy);
-                            }
+        Metrics.log("encodeParallel: %d threads%n", threads);
+
+        // Caches are handed from one row range to the next, so there is at most one per worker
+        ConcurrentLinkedQueue<BlockIndexCache> caches = new ConcurrentLinkedQueue<>();
+        List<BlockIndexCache> allCaches = Collections.synchronizedList(new ArrayList<>());
+
+        ParallelEngine.RangeTask task = (byStart, byEnd) -> {
+            BlockIndexCache cache = null;
+            if (cacheCapacity > 0) {
+                cache = caches.poll();
+                if (cache == null) {
+                    cache = new BlockIndexCache(blockW * blockH, cacheCapacity);
+                    allCaches.add(cache);
+                }
+            }
+            float[] v = new float[blockW * blockH]; // thread-local temp
+            byte[] block = new byte[blockW * blockH];
+            for (int by = byStart; by < byEnd; by++) {
+                int y0 = by * blockH;
+                int prev = -1; // left neighbour's index: the search starts from it
+                for (int bx = 0; bx < blocksX; bx++) {
+                    int x0 = bx * blockW;
+
+                    // Build vector for this block
+                    int pos = 0;
+                    for (int dy = 0; dy < blockH; dy++) {
+                        for (int dx = 0; dx < blockW; dx++) {
+                            int p = img.get(x0 + dx, y0 + dy);
+                            v[pos] = p;
+                            block[pos++] = (byte) p;
                         }
+                    }
 
-                        int codeIdx = codebook.findNearest(v);
+                    int codeIdx = cache != null ? cache.nearest(block, v, search, prev) : search.findNearest(v, prev);
+                    prev = codeIdx;
 
-                        int blockIndex = by * blocksX + bx; // row-major over blocks
-                        indices[blockIndex] = codeIdx;
-                    }
+                    int blockIndex = by * blocksX + bx; // row-major over blocks
+                    indices[blockIndex] = codeIdx;
                 }
-            };
-
-            futures.add(pool.submit(task));
+            }
+            if (cache != null) {
+                caches.add(cache);
+            }
+        };
+
+        // Partition by *block rows*, in ranges the engine can split further
+        try {
+            if (threads == 1) {
+                task.run(0, blocksY);
+            } else {
+                ParallelEngine.shared().forRange(blocksY, rowGrain(blocksX), task);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("encodeParallel worker failed",
+                    e instanceof ExecutionException ? e.getCause() : e);
         }
 
-        // Wait for all tasks
-        for (Future<?> f : futures) {
-            try {
-                f.get();
-            } catch (ExecutionException e) {
-                pool.shutdownNow();
-                throw new RuntimeException("encodeParallel worker failed", e.getCause());
+        if (cacheCapacity > 0) {
+            long hits = 0, misses = 0, evictions = 0;
+            for (BlockIndexCache cache : allCaches) {
+                hits += cache.getHits();
+                misses += cache.getMisses();
+                evictions += cache.getEvictions();
             }
+            printCacheStats("encodeParallel", hits, misses, evictions);
         }
 
-        pool.shutdown();
-
         return new EncodedImage(width, height, blockW, blockH, codebook, indices);
     }
 
-    public static GrayscaleImage decodeParallel(EncodedImage encoded, int numThreads) throws InterruptedException {
-        int width  = encoded.getWidth();
-        int height = encoded.getHeight();
-
-        int blockW = encoded.getBlockWidth();
-        int blockH = encoded.getBlockHeight();
-        int[] indices = encoded.getBlockIndices();
-        Codebook codebook = encoded.getCodebook();
+    /**
+     * Encode with a residual codebook: one index per stage and block, chosen greedily stage by
+     * stage (see {@link ResidualCodebook}). Each stage's search starts from the left neighbour's
+     * index in that stage. There is no memo cache: with blocks of 16 or 64 pixels exact repeats
+     * are rare outside flat regions.
+     */
+    public static EncodedImage encodeResidual(GrayscaleImage img, ResidualCodebook rvq, int numThreads)
+            throws InterruptedException {
+        int width  = img.getWidth();
+        int height = img.getHeight();
+        int blockW = rvq.getBlockWidth();
+        int blockH = rvq.getBlockHeight();
+        int stages = rvq.getStages();
 
         int blocksX = width  / blockW;
         int blocksY = height / blockH;
+        int[][] indices = new int[stages][blocksX * blocksY];
 
-        byte[] pixels = new byte[width * height];
-        GrayscaleImage img = new GrayscaleImage(width, height, pixels);
-
-        System.out.printf("decodeParallel: %dx%d blocks (%dx%d), blocksX=%d blocksY=%d totalBlocks=%d%n",
-                width, height, blockW, blockH, blocksX, blocksY, indices.length);
-
-        if (blocksY == 0 || blocksX == 0) {
-            System.out.println("decodeParallel: no blocks to decode");
-            return img;
-        }
-
-        int threads = Math.max(1, Math.min(numThreads, blocksY));
-        System.out.printf("decodeParallel: initializing %d thread\n", threads);
-        ExecutorService pool = Executors.newFixedThreadPool(threads);
-        List<Future<?>> futures = new ArrayList<>();
-
-        for (int t = 0; t < threads; t++) {
-            final int byStart = (blocksY * t) / threads;
-            final int byEnd   = (blocksY * (t + 1)) / threads;
-
-            Runnable task = () -> {
+        if (blocksY > 0 && blocksX > 0) {
+            ParallelEngine.RangeTask task = (byStart, byEnd) -> {
+                float[] v = new float[blockW * blockH];
+                int[] codes = new int[stages];
+                int[] prev = new int[stages];
                 for (int by = byStart; by < byEnd; by++) {
                     int y0 = by * blockH;
+                    Arrays.fill(prev, -1);
                     for (int bx = 0; bx < blocksX; bx++) {
-                        int blockIndex = by * blocksX + bx;
-                        int codeIdx = indices[blockIndex];
-                        float[] c = codebook.getCentroid(codeIdx);
-
+                        int x0 = bx * blockW;
                         int pos = 0;
                         for (int dy = 0; dy < blockH; dy++) {
-                            int yy = y0 + dy;
                             for (int dx = 0; dx < blockW; dx++) {
-                                int xx = bx * blockW + dx;
-                                int gray = Math.round(c[pos++]);
-                                if (gray < 0) gray = 0;
-                                if (gray > 255) gray = 255;
-                                img.set(xx, yy, gray);
+                                v[pos++] = img.get(x0 + dx, y0 + dy);
                             }
                         }
+                        rvq.encode(v, codes, prev);
+                        int blockIndex = by * blocksX + bx;
+                        for (int s = 0; s < stages; s++) {
+                            indices[s][blockIndex] = codes[s];
+                            prev[s] = codes[s];
+                        }
                     }
                 }
             };
-
-            futures.add(pool.submit(task));
-        }
-
-        for (Future<?> f : futures) {
             try {
-                f.get();
-            } catch (ExecutionException e) {
-                pool.shutdownNow();
-                throw new RuntimeException("decodeParallel worker failed", e.getCause());
+                if (numThreads <= 1 || blocksY == 1) {
+                    task.run(0, blocksY);
+                } else {
+                    ParallelEngine.shared().forRange(blocksY, rowGrain(blocksX), task);
+                }
+            } catch (InterruptedException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException("encodeResidual worker failed",
+                        e instanceof ExecutionException ? e.getCause() : e);
             }
         }
+        return new EncodedImage(width, height, blockW, blockH, rvq.getCodebooks(), indices);
+    }
 
-        pool.shutdown();
-        return img;
+    private static void printCacheStats(String stage, long hits, long misses, long evictions) {
+        long total = hits + misses;
+        Metrics.log("%s: block cache hits=%d misses=%d evictions=%d hitRate=%.1f%%%n",
+                stage, hits, misses, evictions, total == 0 ? 0.0 : 100.0 * hits / total);
+    }
+
+    public static GrayscaleImage decodeParallel(EncodedImage encoded, int numThreads) throws InterruptedException {
+        byte[] pixels = new byte[encoded.getWidth() * encoded.getHeight()];
+        decodeInto(encoded, pixels, numThreads);
+        return new GrayscaleImage(encoded.getWidth(), encoded.getHeight(), pixels);
     }
 
     public static GrayscaleImage decode(EncodedImage encoded) throws IOException {
-        int width  = encoded.getWidth();
-        int height = encoded.getHeight();
+        byte[] pixels = new byte[encoded.getWidth() * encoded.getHeight()];
+        try {
+            decodeInto(encoded, pixels, 1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding", e);
+        }
+        return new GrayscaleImage(encoded.getWidth(), encoded.getHeight(), pixels);
+    }
 
-        int blockW = encoded.getBlockWidth();
-        int blockH = encoded.getBlockHeight();
-        int[] indices = encoded.getBlockIndices();
-        Codebook codebook = encoded.getCodebook();
+    /**
+     * Decode straight into the pixel buffer of a TYPE_BYTE_GRAY image, ready for ImageIO, without
+     * an intermediate GrayscaleImage copy.
+     */
+    public static BufferedImage decodeToImage(EncodedImage encoded, int numThreads) throws InterruptedException {
+        BufferedImage img = new BufferedImage(encoded.getWidth(), encoded.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+        // One byte per pixel, scanline stride == width
+        byte[] pixels = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+        decodeInto(encoded, pixels, numThreads);
+        return img;
+    }
 
-        int blocksX = width  / blockW;
-        int blocksY = height / blockH;
+    /**
+     * Decode into a row-major width * height byte buffer. The codebook is quantized once into a
+     * byte table, and each block is filled by copying its codeword's rows from the table;
+     * pixels right of or below the last whole block are left untouched. Residual images add up
+     * their stages' codewords instead (see {@link #residualRows}).
+     */
+    private static void decodeInto(EncodedImage encoded, byte[] pixels, int numThreads) throws InterruptedException {
+        final int blocksX = encoded.getWidth() / encoded.getBlockWidth();
+        final int blocksY = encoded.getHeight() / encoded.getBlockHeight();
+        if (blocksY == 0 || blocksX == 0) {
+            return;
+        }
 
-        byte[] pixels = new byte[width * height];
-        GrayscaleImage img = new GrayscaleImage(width, height, pixels);
+        ParallelEngine.RangeTask task = encoded.getStages() > 1 ? residualRows(encoded, pixels) : copyRows(encoded, pixels);
 
-        int idx = 0;
-        for (int by = 0; by < blocksY; by++) {
-            int y0 = by * blockH;
-            for (int bx = 0; bx < blocksX; bx++) {
-                int codeIdx = indices[idx++];
-                float[] c = codebook.getCentroid(codeIdx);
+        int threads = Math.max(1, Math.min(numThreads, blocksY));
+        try {
+            if (threads == 1) {
+                task.run(0, blocksY);
+            } else {
+                ParallelEngine.shared().forRange(blocksY, rowGrain(blocksX), task);
+            }
+        } catch (InterruptedException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("decodeParallel worker failed",
+                    e instanceof ExecutionException ? e.getCause() : e);
+        }
+    }
 
-                int t = 0;
+    // Decodes block rows of a single-stage image by copying each codeword's rows from the byte table
+    private static ParallelEngine.RangeTask copyRows(EncodedImage encoded, byte[] pixels) {
+        final int width  = encoded.getWidth();
+        final int blockW = encoded.getBlockWidth();
+        final int blockH = encoded.getBlockHeight();
+        final int[] indices = encoded.getBlockIndices();
+        final byte[] table = encoded.getCodebook().toBytes();
+        final int vectorLength = blockW * blockH;
+        final int blocksX = width / blockW;
+
+        return (byStart, byEnd) -> {
+            for (int by = byStart; by < byEnd; by++) {
+                int rowBase = by * blocksX;
                 for (int dy = 0; dy < blockH; dy++) {
-                    for (int dx = 0; dx < blockW; dx++) {
-                        int gray = Math.round(c[t++]);
-                        if (gray < 0) gray = 0;
-                        if (gray > 255) gray = 255;
-                        img.set(bx * blockW + dx, by * blockH + dy, gray);
+                    int dst = (by * blockH + dy) * width;
+                    int src = dy * blockW;
+                    for (int bx = 0; bx < blocksX; bx++, dst += blockW) {
+                        int from = indices[rowBase + bx] * vectorLength + src;
+                        if (blockW > 8) {
+                            System.arraycopy(table, from, pixels, dst, blockW);
+                        } else {
+                            for (int dx = 0; dx < blockW; dx++) {
+                                pixels[dst + dx] = table[from + dx];
+                            }
+                        }
                     }
                 }
             }
+        };
+    }
+
+    /**
+     * Decodes block rows of a residual image: per pixel, the stage 0 gray level plus every later
+     * stage's signed residual, clamped to 0..255.
+     */
+    private static ParallelEngine.RangeTask residualRows(EncodedImage encoded, byte[] pixels) {
+        final int width  = encoded.getWidth();
+        final int blockW = encoded.getBlockWidth();
+        final int blockH = encoded.getBlockHeight();
+        final int vectorLength = blockW * blockH;
+        final int blocksX = width / blockW;
+        final int stages = encoded.getStages();
+        final byte[][] tables = new byte[stages][];
+        final int[][] indices = new int[stages][];
+        for (int s = 0; s < stages; s++) {
+            Codebook cb = encoded.getCodebook(s);
+            tables[s] = s == 0 ? cb.toBytes() : cb.toSignedBytes();
+            indices[s] = encoded.getBlockIndices(s);
         }
 
-        return img;
+        return (byStart, byEnd) -> {
+            int[] sum = new int[vectorLength];
+            for (int by = byStart; by < byEnd; by++) {
+                for (int bx = 0; bx < blocksX; bx++) {
+                    int block = by * blocksX + bx;
+                    // 1) Stage 0 gray levels
+                    byte[] table = tables[0];
+                    for (int j = 0, from = indices[0][block] * vectorLength; j < vectorLength; j++) {
+                        sum[j] = table[from + j] & 0xFF;
+                    }
+                    // 2) Signed residuals
+                    for (int s = 1; s < stages; s++) {
+                        table = tables[s];
+                        for (int j = 0, from = indices[s][block] * vectorLength; j < vectorLength; j++) {
+                            sum[j] += table[from + j];
+                        }
+                    }
+                    // 3) Clamp into the block's rows
+                    for (int dy = 0, j = 0; dy < blockH; dy++) {
+                        int dst = (by * blockH + dy) * width + bx * blockW;
+                        for (int dx = 0; dx < blockW; dx++, j++) {
+                            int p = sum[j];
+                            pixels[dst + dx] = (byte) (p < 0 ? 0 : Math.min(p, 255));
+                        }
+                    }
+                }
+            }
+        };
     }
+
+    // Block rows per task: at least ROW_GRAIN_BLOCKS blocks, so tasks outweigh their scheduling
+    private static int rowGrain(int blocksX) {
+        return Math.max(1, ROW_GRAIN_BLOCKS / Math.max(1, blocksX));
+    }
+
 }
@@ -0,0 +1,127 @@
+package main.java.core;
+
+import main.java.model.CodewordSearch;
+import main.java.model.FlatCodebook;
+
+import java.util.Arrays;
+
+/**
+ * Exact memo cache from a block's pixel bytes to its nearest codeword index (or whatever index
+ * the search in use maps it to: any deterministic {@link CodewordSearch} can be cached).
+ *
+ * Open addressing over primitive arrays with a fixed power-of-two capacity. Blocks of up to
+ * four pixels (e.g. 2x2) are packed into a single int key; larger blocks are keyed by a hash
+ * of their bytes and confirmed against a stored copy. A lookup probes at most PROBE_LIMIT
+ * slots; if none is free, the block's home slot is overwritten, so memory never grows.
+ *
+ * Not thread-safe: parallel encoders give each worker its own instance.
+ */
+public final class BlockIndexCache {
+    private static final int PROBE_LIMIT = 8;
+
+    private final int vectorLength;
+    private final boolean packed;   // vectorLength <= 4: the key is the block itself
+    private final int mask;
+    private final int shift;
+    private final int[] keys;       // packed block, or hash of the block bytes
+    private final int[] values;     // codeword index, -1 = empty slot
+    private final byte[] blocks;    // !packed only: block bytes per slot
+
+    private long hits, misses, evictions;
+
+    public BlockIndexCache(int vectorLength, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be > 0");
+        }
+        int cap = Integer.highestOneBit(capacity);
+        if (cap < capacity) cap <<= 1;
+        cap = Math.max(cap, PROBE_LIMIT);
+
+        this.vectorLength = vectorLength;
+        this.packed = vectorLength <= 4;
+        this.mask = cap - 1;
+        this.shift = 32 - Integer.numberOfTrailingZeros(cap);
+        this.keys = new int[cap];
+        this.values = new int[cap];
+        Arrays.fill(values, -1);
+        this.blocks = packed ? null : new byte[cap * vectorLength];
+    }
+
+    /**
+     * Nearest codeword for a block given both as bytes (the cache key) and as the float vector
+     * the codebook searches with. Identical blocks always map to the same index, so a hit
+     * returns exactly what the search would.
+     */
+    public int nearest(byte[] block, float[] vector, FlatCodebook codebook) {
+        return nearest(block, vector, codebook, -1);
+    }
+
+    /** Same through any search, with a hint for misses (see {@link CodewordSearch#findNearest}). */
+    public int nearest(byte[] block, float[] vector, CodewordSearch codebook, int hint) {
+        int key = packed ? pack(block) : hashBytes(block);
+        int home = (key * 0x9E3779B9) >>> shift;
+
+        for (int p = 0; p < PROBE_LIMIT; p++) {
+            int slot = (home + p) & mask;
+            int value = values[slot];
+            if (value < 0) {
+                misses++;
+                int idx = codebook.findNearest(vector, hint);
+                store(slot, key, block, idx);
+                return idx;
+            }
+            if (keys[slot] == key && (packed || sameBlock(slot, block))) {
+                hits++;
+                return value;
+            }
+        }
+
+        // Probe window full: evict the home slot
+        misses++;
+        evictions++;
+        int idx = codebook.findNearest(vector, hint);
+        store(home, key, block, idx);
+        return idx;
+    }
+
+    private void store(int slot, int key, byte[] block, int idx) {
+        keys[slot] = key;
+        values[slot] = idx;
+        if (!packed) {
+            System.arraycopy(block, 0, blocks, slot * vectorLength, vectorLength);
+        }
+    }
+
+    private boolean sameBlock(int slot, byte[] block) {
+        int base = slot * vectorLength;
+        for (int j = 0; j < vectorLength; j++) {
+            if (blocks[base + j] != block[j]) return false;
+        }
+        return true;
+    }
+
+    private int pack(byte[] block) {
+        int key = 0;
+        for (int j = 0; j < vectorLength; j++) {
+            key |= (block[j] & 0xFF) << (8 * j);
+        }
+        return key;
+    }
+
+    private int hashBytes(byte[] block) {
+        int h = 0x811C9DC5; // FNV-1a
+        for (int j = 0; j < vectorLength; j++) {
+            h = (h ^ (block[j] & 0xFF)) * 0x01000193;
+        }
+        return h;
+    }
+
+    public long getHits()      { return hits; }
+    public long getMisses()    { return misses; }
+    public long getEvictions() { return evictions; }
+
+    public double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+}
@@ -0,0 +1,147 @@
+package main.java.core;
+
+import main.java.model.Codebook;
+import main.java.model.FlatCodebook;
+import main.java.model.TrainingSet;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Warm-started training: a few k-means iterations on new training vectors, starting from an
+ * existing codebook (e.g. a stored one, or the previous image's) instead of random centroids.
+ *
+ * The result carries the distortion of the starting codebook and of the refined one on the
+ * same vectors, so callers can weigh reuse (0 iterations), refinement or full retraining.
+ * Distortion is the mean squared error per pixel. Like the trainers, the result depends on
+ * rngSeed only, not on numThreads.
+ */
+public final class CodebookRefiner {
+    private static final int CHUNK = 4096; // unique vectors per partial distortion sum
+
+    private CodebookRefiner() {}
+
+    public static final class Result {
+        private final Codebook codebook;
+        private final double initialDistortion;
+        private final double finalDistortion;
+        private final int iterations;
+
+        Result(Codebook codebook, double initialDistortion, double finalDistortion, int iterations) {
+            this.codebook = codebook;
+            this.initialDistortion = initialDistortion;
+            this.finalDistortion = finalDistortion;
+            this.iterations = iterations;
+        }
+
+        public Codebook getCodebook() {
+            return codebook;
+        }
+
+        public double getInitialDistortion() {
+            return initialDistortion;
+        }
+
+        public double getFinalDistortion() {
+            return finalDistortion;
+        }
+
+        // Negative when refinement lowered the distortion
+        public double getDistortionDelta() {
+            return finalDistortion - initialDistortion;
+        }
+
+        // Share of the starting distortion removed by refinement, 0..1
+        public double getRelativeImprovement() {
+            return initialDistortion == 0 ? 0 : (initialDistortion - finalDistortion) / initialDistortion;
+        }
+
+        public int getIterations() {
+            return iterations;
+        }
+    }
+
+    public static Result refine(TrainingSet training, Codebook start, int maxIterations, long rngSeed, int numThreads)
+            throws InterruptedException {
+        if (training.isEmpty()) {
+            throw new IllegalArgumentException("No training vectors");
+        }
+        return refine(VectorHistogram.build(training), start, maxIterations, rngSeed, numThreads);
+    }
+
+    /**
+     * Refine start on the histogram's vectors with at most maxIterations weighted k-means
+     * iterations (Hamerly bounds; serial for numThreads == 1). start is not modified.
+     */
+    public static Result refine(VectorHistogram hist, Codebook start, int maxIterations, long rngSeed, int numThreads)
+            throws InterruptedException {
+        if (hist.getVectorLength() != start.getVectorLength()) {
+            throw new IllegalArgumentException("Vector length mismatch: " +
+                    hist.getVectorLength() + " != " + start.getVectorLength());
+        }
+        if (maxIterations < 0) {
+            throw new IllegalArgumentException("maxIterations must be >= 0");
+        }
+        double before = distortion(hist, start, numThreads);
+        if (maxIterations == 0) {
+            return new Result(start, before, before, 0);
+        }
+
+        float[][] init = new float[start.getSize()][];
+        for (int c = 0; c < init.length; c++) {
+            init[c] = start.getCentroid(c);
+        }
+        KMeansStats stats = new KMeansStats();
+        Codebook refined = numThreads > 1
+                ? CodebookTrainer.trainKMeansWeightedHamerlyParallel(hist, start.getBlockWidth(), start.getBlockHeight(),
+                        init, maxIterations, rngSeed, numThreads, stats)
+                : CodebookTrainer.trainKMeansWeightedHamerly(hist, start.getBlockWidth(), start.getBlockHeight(),
+                        init, maxIterations, rngSeed, stats);
+        double after = distortion(hist, refined, numThreads);
+        Metrics.log("Codebook refinement: MSE %.3f -> %.3f (%+.3f) in %d iterations%n",
+                before, after, after - before, stats.getIterations());
+        return new Result(refined, before, after, stats.getIterations());
+    }
+
+    /** Mean squared error per pixel of coding every training vector with its nearest codeword. */
+    public static double distortion(VectorHistogram hist, Codebook cb, int numThreads) throws InterruptedException {
+        final FlatCodebook flat = new FlatCodebook(cb);
+        final int unique = hist.getUniqueCount();
+        final int chunks = (unique + CHUNK - 1) / CHUNK;
+        final double[] partial = new double[chunks];
+        if (numThreads > 1 && chunks > 1) {
+            try {
+                ParallelEngine.shared().forRange(chunks, 1, (from, to) -> {
+                    for (int chunk = from; chunk < to; chunk++) partial[chunk] = chunkError(hist, cb, flat, chunk);
+                });
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Distortion worker failed", e.getCause());
+            }
+        } else {
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                partial[chunk] = chunkError(hist, cb, flat, chunk);
+            }
+        }
+
+        // Combine in chunk order, so the sum does not depend on the thread count
+        double total = 0;
+        for (double p : partial) total += p;
+        long pixels = (long) hist.getTotalCount() * hist.getVectorLength();
+        return pixels == 0 ? 0 : total / pixels;
+    }
+
+    // Count-weighted squared error of one chunk of unique vectors
+    private static double chunkError(VectorHistogram hist, Codebook cb, FlatCodebook flat, int chunk) {
+        double sum = 0;
+        for (int i = chunk * CHUNK, to = Math.min(hist.getUniqueCount(), i + CHUNK); i < to; i++) {
+            float[] v = hist.getVector(i);
+            float[] c = cb.getCentroid(flat.findNearest(v));
+            double d2 = 0;
+            for (int j = 0; j < v.length; j++) {
+                double d = (double) v[j] - c[j];
+                d2 += d * d;
+            }
+            sum += hist.getCount(i) * d2;
+        }
+        return sum;
+    }
+}
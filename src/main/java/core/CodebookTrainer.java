@@ -1,10 +1,15 @@
 package main.java.core;
 
 import main.java.model.Codebook;
+import main.java.model.FlatCodebook;
+import main.java.model.ResidualCodebook;
+import main.java.model.TrainingSet;
+import main.java.model.TreeCodebook;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.concurrent.*;
 
@@ -36,32 +41,25 @@ public final class CodebookTrainer {
         int[] assignments = new int[n]; // which centroid each vector uses
 
         for (int iter = 0; iter < maxIterations; iter++) {
+            long t0 = Metrics.iterationStart();
             boolean changed = false;
 
-            // 2. Assignment step
+            // 2. Assignment step; each search starts from the vector's last centroid, which
+            // is usually still the nearest, so the search's early exits cut in sooner
+            FlatCodebook flat = new FlatCodebook(width, height, centroids);
             for (int i = 0; i < n; i++) {
                 float[] v = vectors.get(i);
-                int bestIndex = 0;
-                float bestDist = Float.POSITIVE_INFINITY;
-
-                for (int c = 0; c < k; c++) {
-                    float dist = 0f;
-                    float[] centroid = centroids[c];
-                    for (int j = 0; j < vectorLength; j++) {
-                        float d = v[j] - centroid[j];
-                        dist += d * d;
-                    }
-                    if (dist < bestDist) {
-                        bestDist = dist;
-                        bestIndex = c;
-                    }
-                }
+                int bestIndex = flat.findNearest(v, assignments[i]);
 
                 if (assignments[i] != bestIndex) {
                     assignments[i] = bestIndex;
                     changed = true;
                 }
             }
+            if (Metrics.enabled()) {
+                Metrics.iteration("kmeans", iter, t0,
+                        assignedDistortion(vectors.toArray(new float[0][]), null, centroids, assignments));
+            }
 
             if (!changed) {
                 // Converged
@@ -128,10 +126,9 @@ public final class CodebookTrainer {
 
         // Thread count: don't exceed number of vectors
         int threads = Math.max(1, Math.min(numThreads, n));
-        System.out.printf("trainKMeansParallel: n=%d, k=%d, dim=%d, threads=%d, maxIter=%d%n",
+        Metrics.log("trainKMeansParallel: n=%d, k=%d, dim=%d, threads=%d, maxIter=%d%n",
                 n, k, vectorLength, threads, maxIterations);
 
-        ExecutorService pool = Executors.newFixedThreadPool(threads);
         Random rnd = new Random(rngSeed);
 
         // --- 1. Initialize centroids by sampling from training vectors ---
@@ -146,108 +143,55 @@ public final class CodebookTrainer {
         // Initialize to -1 (unassigned)
         Arrays.fill(assignments, -1);
 
-        // These arrays will be reused across iterations to avoid reallocating
-        List<Future<Boolean>> futures = new ArrayList<>(threads);
-
         for (int iter = 0; iter < maxIterations; iter++) {
-            System.out.println("KMeans iteration " + iter);
+            long t0 = Metrics.iterationStart();
 
             // --- 2. Assignment step (parallel) ---
-            futures.clear();
-
-            // Thread-local accumulators: [thread][cluster][dim], [thread][cluster]
-            float[][][] partialSums = new float[threads][k][vectorLength];
-            int[][] partialCounts   = new int[threads][k];
-
-            for (int t = 0; t < threads; t++) {
-                final int threadId = t;
-                final int start = (n * t) / threads;
-                final int end   = (n * (t + 1)) / threads;
-
-                float[][] finalCentroids = centroids;
-                Callable<Boolean> task = () -> {
-                    boolean changedLocal = false;
-                    float[][] localSums = partialSums[threadId];
-                    int[] localCounts   = partialCounts[threadId];
-
-                    for (int i = start; i < end; i++) {
-                        float[] v = data[i];
-
-                        // Find nearest centroid
-                        int bestIndex = 0;
-                        float bestDist = Float.POSITIVE_INFINITY;
-
-                        for (int c = 0; c < k; c++) {
-                            float[] centroid = finalCentroids[c];
-                            float dist = 0f;
-                            for (int d = 0; d < vectorLength; d++) {
-                                float diff = v[d] - centroid[d];
-                                dist += diff * diff;
-                            }
-                            if (dist < bestDist) {
-                                bestDist = dist;
-                                bestIndex = c;
-                            }
-                        }
-
-                        if (assignments[i] != bestIndex) {
-                            assignments[i] = bestIndex;
-                            changedLocal = true;
-                        }
-
-                        // Accumulate into thread-local sums
-                        localCounts[bestIndex]++;
-                        float[] sumVec = localSums[bestIndex];
-                        for (int d = 0; d < vectorLength; d++) {
-                            sumVec[d] += v[d];
-                        }
-                    }
 
-                    return changedLocal;
-                };
+            // Each range task accumulates its own cluster sums and counts
+            FlatCodebook flat = new FlatCodebook(blockWidth, blockHeight, centroids);
+            List<Partial> partials = assignRanges(n, threads, (start, end) -> {
+                Partial partial = new Partial(k, vectorLength, false);
+                for (int i = start; i < end; i++) {
+                    float[] v = data[i];
 
-                futures.add(pool.submit(task));
-            }
+                    // Find nearest centroid
+                    int bestIndex = flat.findNearest(v, assignments[i]);
 
-            // Combine "changed" flags from threads
-            boolean changedAny = false;
-            for (Future<Boolean> f : futures) {
-                try {
-                    if (f.get()) {
-                        changedAny = true;
+                    if (assignments[i] != bestIndex) {
+                        assignments[i] = bestIndex;
+                        partial.changed = true;
+                    }
+
+                    // Accumulate into the task's sums
+                    partial.counts[bestIndex]++;
+                    float[] sumVec = partial.sums[bestIndex];
+                    for (int d = 0; d < vectorLength; d++) {
+                        sumVec[d] += v[d];
                     }
-                } catch (ExecutionException e) {
-                    pool.shutdownNow();
-                    throw new RuntimeException("KMeans worker failed", e.getCause());
                 }
+                return partial;
+            });
+
+            // Combine "changed" flags from the tasks
+            boolean changedAny = false;
+            for (Partial partial : partials) {
+                changedAny |= partial.changed;
+            }
+            if (Metrics.enabled()) {
+                Metrics.iteration("kmeans", iter, t0, assignedDistortion(data, null, centroids, assignments));
             }
 
             if (!changedAny && iter > 0) {
-                System.out.println("KMeans converged at iteration " + iter);
+                Metrics.log("KMeans converged at iteration %d%n", iter);
                 break;
             }
 
-            // --- 3. Update step (reduce partial sums) ---
+            // --- 3. Update step (reduce partial sums in range order) ---
 
             float[][] newCentroids = new float[k][vectorLength];
             int[] counts = new int[k];
-
-            // Reduce all partialSums/partialCounts into global sums
-            for (int t = 0; t < threads; t++) {
-                float[][] localSums = partialSums[t];
-                int[] localCounts   = partialCounts[t];
-                for (int c = 0; c < k; c++) {
-                    int cnt = localCounts[c];
-                    if (cnt != 0) {
-                        counts[c] += cnt;
-                        float[] globalSum = newCentroids[c];
-                        float[] localSum = localSums[c];
-                        for (int d = 0; d < vectorLength; d++) {
-                            globalSum[d] += localSum[d];
-                        }
-                    }
-                }
-            }
+            reduce(partials, newCentroids, null, counts);
 
             // Handle empty clusters + compute means
             for (int c = 0; c < k; c++) {
@@ -267,8 +211,1167 @@ public final class CodebookTrainer {
             centroids = newCentroids;
         }
 
-        pool.shutdown();
+        return new Codebook(blockWidth, blockHeight, centroids);
+    }
+
+    // trainKMeans over a flat training set; same codebook as the List form over the same vectors
+    public static Codebook trainKMeans(
+            TrainingSet vectors,
+            int width,
+            int height,
+            int k,
+            int maxIterations,
+            long rngSeed
+    ) throws InterruptedException {
+        return lloyd(vectors, width, height, k, maxIterations, rngSeed, 1, 0);
+    }
+
+    // trainKMeansParallel over a flat training set; same codebook as the List form
+    public static Codebook trainKMeansParallel(
+            TrainingSet vectors,
+            int blockWidth,
+            int blockHeight,
+            int k,
+            int maxIterations,
+            long rngSeed,
+            int numThreads
+    ) throws InterruptedException {
+        Metrics.log("trainKMeansParallel: n=%d, k=%d, dim=%d, threads=%d, maxIter=%d%n",
+                vectors.size(), k, blockWidth * blockHeight, Math.max(1, Math.min(numThreads, vectors.size())),
+                maxIterations);
+        return lloyd(vectors, blockWidth, blockHeight, k, maxIterations, rngSeed, numThreads, -1);
+    }
+
+    /**
+     * Lloyd iterations over a TrainingSet, converting each vector to floats in a per-thread
+     * scratch array. initialAssignment is 0 for trainKMeans' convergence test, -1 for
+     * trainKMeansParallel's; sums are float and reduced in range order as in the List forms.
+     */
+    private static Codebook lloyd(
+            TrainingSet vectors,
+            int blockWidth,
+            int blockHeight,
+            int k,
+            int maxIterations,
+            long rngSeed,
+            int numThreads,
+            int initialAssignment
+    ) throws InterruptedException {
+        final int vectorLength = blockWidth * blockHeight;
+        if (vectors.isEmpty()) {
+            throw new IllegalArgumentException("No training vectors");
+        }
+        if (vectors.getVectorLength() != vectorLength) {
+            throw new IllegalArgumentException("Vector length mismatch: " +
+                    vectors.getVectorLength() + " != " + vectorLength);
+        }
+
+        final int n = vectors.size();
+        final int threads = Math.max(1, Math.min(numThreads, n));
+        Random rnd = new Random(rngSeed);
+
+        // 1) Initialize centroids by sampling from training vectors
+        float[][] centroids = new float[k][];
+        for (int c = 0; c < k; c++) {
+            centroids[c] = vectors.getVector(rnd.nextInt(n));
+        }
+
+        final int[] assignments = new int[n];
+        Arrays.fill(assignments, initialAssignment);
+
+        for (int iter = 0; iter < maxIterations; iter++) {
+            long t0 = Metrics.iterationStart();
+            // 2) Assignment step, each range task with its own sums
+            final FlatCodebook flat = new FlatCodebook(blockWidth, blockHeight, centroids);
+            List<Partial> partials = assignRanges(n, threads, (start, end) -> {
+                Partial partial = new Partial(k, vectorLength, false);
+                assignFlat(vectors, flat, assignments, start, end, partial);
+                return partial;
+            });
+            boolean changed = false;
+            for (Partial partial : partials) {
+                changed |= partial.changed;
+            }
+            if (Metrics.enabled()) {
+                Metrics.iteration("kmeans", iter, t0, assignedDistortion(vectors, centroids, assignments));
+            }
+
+            if (!changed) {
+                // Converged
+                break;
+            }
+
+            // 3) Update step (reduce partial sums in range order)
+            float[][] newCentroids = new float[k][vectorLength];
+            int[] counts = new int[k];
+            reduce(partials, newCentroids, null, counts);
+            for (int c = 0; c < k; c++) {
+                if (counts[c] == 0) {
+                    // Empty cluster: re-seed from a random vector
+                    newCentroids[c] = vectors.getVector(rnd.nextInt(n));
+                } else {
+                    float inv = 1.0f / counts[c];
+                    for (int d = 0; d < vectorLength; d++) {
+                        newCentroids[c][d] *= inv;
+                    }
+                }
+            }
+            centroids = newCentroids;
+        }
 
         return new Codebook(blockWidth, blockHeight, centroids);
     }
+
+    private static void assignFlat(TrainingSet vectors, FlatCodebook flat, int[] assignments, int start, int end,
+                                   Partial partial) {
+        float[] v = new float[vectors.getVectorLength()];
+        for (int i = start; i < end; i++) {
+            vectors.get(i, v);
+            int bestIndex = flat.findNearest(v, assignments[i]);
+            if (assignments[i] != bestIndex) {
+                assignments[i] = bestIndex;
+                partial.changed = true;
+            }
+            partial.counts[bestIndex]++;
+            float[] acc = partial.sums[bestIndex];
+            for (int d = 0; d < v.length; d++) {
+                acc[d] += v[d];
+            }
+        }
+    }
+
+    // Smallest number of training vectors one k-means assignment task handles
+    private static final int KMEANS_GRAIN = 1024;
+
+    /** One assignment task's share of an iteration: its cluster sums and counts, and what it saw. */
+    private static final class Partial {
+        final float[][] sums;    // unweighted: float sums, as the serial trainers
+        final double[][] dSums;  // weighted: count * v, in double
+        final int[] counts;      // vectors (or total weight) per cluster
+        boolean changed;         // some assignment changed
+        long work;               // distances computed
+
+        Partial(int k, int vectorLength, boolean weighted) {
+            this.sums = weighted ? null : new float[k][vectorLength];
+            this.dSums = weighted ? new double[k][vectorLength] : null;
+            this.counts = new int[k];
+        }
+    }
+
+    // task over [0, n): one range when threads == 1, else ranges of at least KMEANS_GRAIN on the
+    // shared engine. The partials come back in range order.
+    private static List<Partial> assignRanges(int n, int threads, ParallelEngine.RangeFunction<Partial> task)
+            throws InterruptedException {
+        try {
+            return threads == 1 ? List.of(task.apply(0, n)) : ParallelEngine.shared().mapRange(n, KMEANS_GRAIN, task);
+        } catch (InterruptedException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("KMeans worker failed", e instanceof ExecutionException ? e.getCause() : e);
+        }
+    }
+
+    // Adds the partials' counts and sums (into fTotal or dTotal, whichever they carry) in list order
+    private static void reduce(List<Partial> partials, float[][] fTotal, double[][] dTotal, int[] counts) {
+        for (Partial partial : partials) {
+            for (int c = 0; c < counts.length; c++) {
+                int cnt = partial.counts[c];
+                if (cnt == 0) continue;
+                counts[c] += cnt;
+                if (partial.sums != null) {
+                    float[] total = fTotal[c], sum = partial.sums[c];
+                    for (int d = 0; d < total.length; d++) {
+                        total[d] += sum[d];
+                    }
+                } else {
+                    double[] total = dTotal[c], sum = partial.dSums[c];
+                    for (int d = 0; d < total.length; d++) {
+                        total[d] += sum[d];
+                    }
+                }
+            }
+        }
+    }
+
+    // Relative safety margin on bound tests, well above float rounding in squared distances
+    private static final double BOUND_EPS = 1e-4;
+    // Largest codebook for which the full k x k centroid distance matrix is kept for pruning
+    private static final int MAX_PRUNE_K = 4096;
+
+    /**
+     * Weighted k-means over the unique vectors of hist, with Hamerly's bounds: each vector keeps
+     * an upper bound on the distance to its centroid and a lower bound on the distance to every
+     * other one, and skips the search when the bounds (with a safety margin) prove its assignment
+     * cannot change. Otherwise it runs the same float search as a full scan, so the bounds never
+     * change the resulting codebook. Centroids are drawn from, and empty clusters re-seeded from,
+     * the expanded list, so common vectors are as likely as they are in the image.
+     */
+    public static Codebook trainKMeansWeightedHamerly(
+            VectorHistogram hist,
+            int width,
+            int height,
+            int k,
+            int maxIterations,
+            long rngSeed,
+            KMeansStats stats
+    ) throws InterruptedException {
+        return hamerly(hist, width, height, k, null, maxIterations, rngSeed, 1, 0, stats);
+    }
+
+    // Parallel form of trainKMeansWeightedHamerly
+    public static Codebook trainKMeansWeightedHamerlyParallel(
+            VectorHistogram hist,
+            int blockWidth,
+            int blockHeight,
+            int k,
+            int maxIterations,
+            long rngSeed,
+            int numThreads,
+            KMeansStats stats
+    ) throws InterruptedException {
+        return hamerly(hist, blockWidth, blockHeight, k, null, maxIterations, rngSeed, numThreads, -1, stats);
+    }
+
+    /**
+     * The weighted Hamerly trainers, started from given centroids (e.g. from {@link KMeansSeeding})
+     * instead of k random training vectors. k is initialCentroids.length; rngSeed is still used to
+     * re-seed empty clusters. initialCentroids is not modified.
+     */
+    public static Codebook trainKMeansWeightedHamerly(
+            VectorHistogram hist,
+            int width,
+            int height,
+            float[][] initialCentroids,
+            int maxIterations,
+            long rngSeed,
+            KMeansStats stats
+    ) throws InterruptedException {
+        return hamerly(hist, width, height, initialCentroids.length, initialCentroids, maxIterations, rngSeed,
+                1, 0, stats);
+    }
+
+    public static Codebook trainKMeansWeightedHamerlyParallel(
+            VectorHistogram hist,
+            int blockWidth,
+            int blockHeight,
+            float[][] initialCentroids,
+            int maxIterations,
+            long rngSeed,
+            int numThreads,
+            KMeansStats stats
+    ) throws InterruptedException {
+        return hamerly(hist, blockWidth, blockHeight, initialCentroids.length, initialCentroids, maxIterations,
+                rngSeed, numThreads, -1, stats);
+    }
+
+    private static float[][] uniqueVectors(VectorHistogram hist) {
+        float[][] data = new float[hist.getUniqueCount()][];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = hist.getVector(i);
+        }
+        return data;
+    }
+
+    private static int[] uniqueCounts(VectorHistogram hist) {
+        int[] counts = new int[hist.getUniqueCount()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = hist.getCount(i);
+        }
+        return counts;
+    }
+
+    /** Vector i of a training set: a stored row, or 'scratch' filled with it. */
+    private interface Rows {
+        float[] get(int i, float[] scratch);
+    }
+
+    // The Hamerly core over the unique vectors of hist, weighted by their counts
+    private static Codebook hamerly(
+            VectorHistogram hist, int blockWidth, int blockHeight, int k, float[][] initialCentroids,
+            int maxIterations, long rngSeed, int numThreads, int initialAssignment, KMeansStats stats
+    ) throws InterruptedException {
+        if (hist.getVectorLength() != blockWidth * blockHeight) {
+            throw new IllegalArgumentException("Vector length mismatch: " +
+                    hist.getVectorLength() + " != " + blockWidth * blockHeight);
+        }
+        return hamerly((i, scratch) -> hist.getVector(i), hist.getUniqueCount(), uniqueCounts(hist),
+                hist::getOriginal, hist.getTotalCount(), blockWidth, blockHeight, k, initialCentroids,
+                maxIterations, rngSeed, numThreads, initialAssignment, stats);
+    }
+
+    /**
+     * Shared Hamerly core, over m vectors read through 'rows'.
+     *   weights == null: unweighted, float sums (as trainKMeans / trainKMeansParallel)
+     *   weights != null: count-weighted, double sums (as the weighted trainers)
+     *   original/n:      uniform draw from the expanded list, for seeding and re-seeding
+     *   initialCentroids: starting centroids (k = their count), or null to draw k at random
+     *   initialAssignment: 0 mirrors the serial trainers' convergence test, -1 the parallel ones
+     */
+    private static Codebook hamerly(
+            Rows rows,
+            int m,
+            int[] weights,
+            java.util.function.IntFunction<float[]> original,
+            int n,
+            int blockWidth,
+            int blockHeight,
+            int k,
+            float[][] initialCentroids,
+            int maxIterations,
+            long rngSeed,
+            int numThreads,
+            int initialAssignment,
+            KMeansStats stats
+    ) throws InterruptedException {
+        final int vectorLength = blockWidth * blockHeight;
+        final int threads = Math.max(1, Math.min(numThreads, m));
+        Random rnd = new Random(rngSeed);
+
+        float[][] centroids = initialCentroids != null
+                ? copyCentroids(initialCentroids, vectorLength) : new float[k][vectorLength];
+        for (int c = 0; initialCentroids == null && c < k; c++) {
+            centroids[c] = original.apply(rnd.nextInt(n)).clone();
+        }
+
+        final int[] assignments = new int[m];
+        Arrays.fill(assignments, initialAssignment);
+        final double[] upper = new double[m];
+        final double[] lower = new double[m];
+        long done = 0;
+        long searched = 0;
+
+        // Centroid-to-centroid distances, and half the distance to each one's nearest other,
+        // refilled every iteration. Beyond MAX_PRUNE_K the k^2 pass would outweigh the
+        // assignment; then half stays 0 and the per-vector lower bounds alone decide which
+        // searches to skip.
+        final double[][] between = k <= MAX_PRUNE_K ? new double[k][k] : null;
+        final double[] half = new double[k];
+
+        for (int iter = 0; iter < maxIterations; iter++) {
+            long t0 = Metrics.iterationStart();
+            final boolean first = iter == 0;
+            final float[][] cur = centroids;
+
+            if (between != null) {
+                centroidDistances(cur, between, half, threads);
+            }
+
+            // --- Assignment step with bounds; per-task sums as in the Lloyd trainers ---
+            List<Partial> partials = assignRanges(m, threads, (start, end) -> {
+                Partial partial = new Partial(k, vectorLength, weights != null);
+                assignBounded(rows, weights, cur, between, half, assignments, upper, lower, first, start, end,
+                        partial);
+                return partial;
+            });
+            boolean changed = false;
+            for (Partial partial : partials) {
+                changed |= partial.changed;
+                done += partial.work;
+            }
+            searched += (long) m * k;
+            if (stats != null) stats.iterations = iter + 1;
+            if (Metrics.enabled()) {
+                Metrics.iteration(weights == null ? "kmeans-hamerly" : "kmeans-hamerly-weighted", iter, t0,
+                        assignedDistortion(rows, m, weights, cur, assignments));
+            }
+
+            if (!changed) {
+                // Converged
+                break;
+            }
+
+            // --- Update step (reduce partial sums in range order) ---
+            float[][] newCentroids = new float[k][vectorLength];
+            int[] counts = new int[k];
+            double[][] dTotal = weights != null ? new double[k][vectorLength] : null;
+            reduce(partials, newCentroids, dTotal, counts);
+            for (int c = 0; c < k; c++) {
+                if (counts[c] == 0) {
+                    newCentroids[c] = original.apply(rnd.nextInt(n)).clone();
+                } else {
+                    float inv = 1.0f / counts[c];
+                    for (int d = 0; d < vectorLength; d++) {
+                        newCentroids[c][d] = weights == null
+                                ? newCentroids[c][d] * inv
+                                : (float) dTotal[c][d] * inv;
+                    }
+                }
+            }
+
+            // --- Loosen the bounds by how far the centroids moved ---
+            double[] moved = new double[k];
+            int maxC = 0;
+            double max1 = 0, max2 = 0;
+            for (int c = 0; c < k; c++) {
+                moved[c] = distance(cur[c], newCentroids[c]);
+                if (moved[c] > max1) {
+                    max2 = max1;
+                    max1 = moved[c];
+                    maxC = c;
+                } else if (moved[c] > max2) {
+                    max2 = moved[c];
+                }
+            }
+            for (int i = 0; i < m; i++) {
+                int a = assignments[i];
+                upper[i] += moved[a];
+                lower[i] -= (a == maxC) ? max2 : max1;
+            }
+
+            centroids = newCentroids;
+        }
+
+        if (stats != null) {
+            stats.distanceComputations += done;
+            stats.distancesSkipped += searched - done;
+        }
+        Metrics.log("Hamerly k-means: computed %d of %d distances (%.1f%% skipped)%n",
+                done, searched, searched == 0 ? 0.0 : 100.0 * (searched - done) / searched);
+
+        return new Codebook(blockWidth, blockHeight, centroids);
+    }
+
+    // Centroids per task when filling the centroid distance matrix
+    private static final int CENTROID_GRAIN = 16;
+
+    // Fills between[a][b] = |c_a - c_b| and half[a] = half the distance from c_a to its nearest
+    // other centroid, in row ranges: first the upper triangle (mirrored), then each row's minimum
+    private static void centroidDistances(float[][] centroids, double[][] between, double[] half, int threads)
+            throws InterruptedException {
+        int k = centroids.length;
+        ParallelEngine.RangeTask upper = (start, end) -> {
+            for (int a = start; a < end; a++) {
+                for (int b = a + 1; b < k; b++) {
+                    double d = distance(centroids[a], centroids[b]);
+                    between[a][b] = d;
+                    between[b][a] = d;
+                }
+            }
+        };
+        ParallelEngine.RangeTask nearest = (start, end) -> {
+            for (int a = start; a < end; a++) {
+                double min = Double.POSITIVE_INFINITY;
+                for (int b = 0; b < k; b++) {
+                    if (b != a && between[a][b] < min) {
+                        min = between[a][b];
+                    }
+                }
+                half[a] = 0.5 * min;
+            }
+        };
+        try {
+            if (threads == 1) {
+                upper.run(0, k);
+                nearest.run(0, k);
+            } else {
+                ParallelEngine.shared().forRange(k, CENTROID_GRAIN, upper);
+                ParallelEngine.shared().forRange(k, CENTROID_GRAIN, nearest);
+            }
+        } catch (InterruptedException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("KMeans worker failed", e instanceof ExecutionException ? e.getCause() : e);
+        }
+    }
+
+    // Bounded assignment for vectors [start, end); accumulates sums/counts like the Lloyd trainers
+    private static void assignBounded(
+            Rows rows, int[] weights, float[][] centroids, double[][] between, double[] half,
+            int[] assignments, double[] upper, double[] lower, boolean first,
+            int start, int end, Partial partial
+    ) {
+        int k = centroids.length;
+        int[] counts = partial.counts;
+        long work = 0;
+        float[] scratch = new float[centroids[0].length];
+
+        for (int i = start; i < end; i++) {
+            float[] v = rows.get(i, scratch);
+            int a = assignments[i];
+            int best = a;
+
+            boolean search = first;
+            if (!search) {
+                double bound = Math.max(half[a], lower[i]) * (1 - BOUND_EPS);
+                if (upper[i] * (1 + BOUND_EPS) >= bound) {
+                    // Tighten the upper bound with the exact distance to the current centroid
+                    upper[i] = Math.sqrt(squaredDistance(v, centroids[a]));
+                    work++;
+                    search = upper[i] * (1 + BOUND_EPS) >= bound;
+                }
+            }
+
+            if (search) {
+                // Same float arithmetic and tie-break as Codebook.findNearest. Once upper[i] is the
+                // exact distance to centroid a, any c with between[a][c] > 2 * upper[i] is strictly
+                // farther than a, so it can be neither the winner nor tied with it; it only
+                // contributes the lower bound between[a][c] - upper[i].
+                boolean prune = !first && between != null;
+                double reach = 2 * upper[i] * (1 + BOUND_EPS);
+                double skippedLower = Double.POSITIVE_INFINITY;
+                float bestDist = Float.POSITIVE_INFINITY;
+                float secondDist = Float.POSITIVE_INFINITY;
+                best = 0;
+                for (int c = 0; c < k; c++) {
+                    if (prune && between[a][c] * (1 - BOUND_EPS) > reach) {
+                        skippedLower = Math.min(skippedLower, between[a][c] - upper[i]);
+                        continue;
+                    }
+                    work++;
+                    // Sums past secondDist can't change either bound's winner
+                    float dist = squaredDistance(v, centroids[c], secondDist);
+                    if (dist < bestDist) {
+                        secondDist = bestDist;
+                        bestDist = dist;
+                        best = c;
+                    } else if (dist < secondDist) {
+                        secondDist = dist;
+                    }
+                }
+                upper[i] = Math.sqrt(bestDist);
+                lower[i] = Math.min(Math.sqrt(secondDist), skippedLower);
+            }
+
+            if (a != best) {
+                assignments[i] = best;
+                partial.changed = true;
+            }
+
+            if (weights == null) {
+                counts[best]++;
+                float[] acc = partial.sums[best];
+                for (int d = 0; d < v.length; d++) {
+                    acc[d] += v[d];
+                }
+            } else {
+                int w = weights[i];
+                counts[best] += w;
+                double[] acc = partial.dSums[best];
+                for (int d = 0; d < v.length; d++) {
+                    acc[d] += (double) w * v[d];
+                }
+            }
+        }
+
+        partial.work = work;
+    }
+
+    // Stop when the smoothed batch distortion has not improved for this many batches
+    private static final int MINI_BATCH_PATIENCE = 10;
+    // Smallest share of a batch assigned by one task
+    private static final int MINI_BATCH_GRAIN = 256;
+
+    /**
+     * Mini-batch k-means (Sculley, "Web-scale k-means clustering"). Each step assigns a random
+     * batch of batchSize training vectors and moves every centroid that received m of them
+     * towards their mean with learning rate m / (total vectors it has seen so far), so each
+     * centroid converges to the running mean of its assignments. The cost per step is
+     * independent of the training set size.
+     *
+     * Training stops after maxBatches steps, or earlier when either
+     *   - the mean squared centroid movement of a step drops below tolerance, or
+     *   - the exponentially smoothed batch distortion has not improved for MINI_BATCH_PATIENCE
+     *     steps.
+     * The batch is assigned in parallel and folded into the centroids in batch order, so the
+     * result depends on rngSeed only, not on numThreads.
+     */
+    public static Codebook trainKMeansMiniBatch(
+            TrainingSet vectors,
+            int blockWidth,
+            int blockHeight,
+            int k,
+            int batchSize,
+            int maxBatches,
+            double tolerance,
+            long rngSeed,
+            int numThreads
+    ) throws InterruptedException {
+        return trainKMeansMiniBatch(vectors, blockWidth, blockHeight, k, null, batchSize, maxBatches, tolerance,
+                rngSeed, numThreads);
+    }
+
+    // trainKMeansMiniBatch started from given centroids; k is initialCentroids.length
+    public static Codebook trainKMeansMiniBatch(
+            TrainingSet vectors,
+            int blockWidth,
+            int blockHeight,
+            float[][] initialCentroids,
+            int batchSize,
+            int maxBatches,
+            double tolerance,
+            long rngSeed,
+            int numThreads
+    ) throws InterruptedException {
+        return trainKMeansMiniBatch(vectors, blockWidth, blockHeight, initialCentroids.length, initialCentroids,
+                batchSize, maxBatches, tolerance, rngSeed, numThreads);
+    }
+
+    private static Codebook trainKMeansMiniBatch(
+            TrainingSet vectors,
+            int blockWidth,
+            int blockHeight,
+            int k,
+            float[][] initialCentroids,
+            int batchSize,
+            int maxBatches,
+            double tolerance,
+            long rngSeed,
+            int numThreads
+    ) throws InterruptedException {
+        int vectorLength = blockHeight*blockWidth;
+
+        if (vectors == null || vectors.isEmpty()) {
+            throw new IllegalArgumentException("No training vectors");
+        }
+        if (batchSize <= 0 || maxBatches <= 0) {
+            throw new IllegalArgumentException("batchSize and maxBatches must be > 0");
+        }
+        if (vectors.getVectorLength() != vectorLength) {
+            throw new IllegalArgumentException("Vector length mismatch: " +
+                    vectors.getVectorLength() + " != " + vectorLength);
+        }
+
+        final int n = vectors.size();
+        final int threads = Math.max(1, Math.min(numThreads, batchSize));
+        Metrics.log("trainKMeansMiniBatch: n=%d, k=%d, dim=%d, batch=%d, threads=%d, maxBatches=%d%n",
+                n, k, vectorLength, batchSize, threads, maxBatches);
+
+        Random rnd = new Random(rngSeed);
+
+        // 1) Initialize centroids by sampling from training vectors, unless given
+        float[][] centroids = initialCentroids != null ? copyCentroids(initialCentroids, vectorLength) : new float[k][];
+        for (int c = 0; initialCentroids == null && c < k; c++) {
+            centroids[c] = vectors.getVector(rnd.nextInt(n));
+        }
+
+        long[] seen = new long[k];              // vectors absorbed per centroid: learning rate 1/seen
+        final int[] batch = new int[batchSize];
+        final int[] assigned = new int[batchSize];
+        final float[] batchDistortion = new float[batchSize];
+        double[][] sums = new double[k][vectorLength];
+        int[] batchCounts = new int[k];
+
+        double smoothed = Double.NaN;
+        double best = Double.POSITIVE_INFINITY;
+        double alpha = Math.min(1.0, 2.0 * batchSize / n);
+        int sinceBest = 0;
+        int step = 0;
+        String reason = "max batches";
+
+        ParallelEngine engine = ParallelEngine.shared();
+        for (; step < maxBatches; step++) {
+            long t0 = Metrics.iterationStart();
+            // 2) Draw a batch (with replacement) and assign it in parallel
+            for (int b = 0; b < batchSize; b++) {
+                batch[b] = rnd.nextInt(n);
+            }
+            final FlatCodebook flat = new FlatCodebook(blockWidth, blockHeight, centroids);
+            final float[][] current = centroids;
+            ParallelEngine.RangeTask assign = (start, end) -> {
+                float[] v = new float[vectorLength];
+                for (int b = start; b < end; b++) {
+                    vectors.get(batch[b], v);
+                    int c = flat.findNearest(v);
+                    assigned[b] = c;
+                    batchDistortion[b] = squaredDistance(v, current[c]);
+                }
+            };
+            try {
+                if (threads == 1) {
+                    assign.run(0, batchSize);
+                } else {
+                    engine.forRange(batchSize, MINI_BATCH_GRAIN, assign);
+                }
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Mini-batch KMeans worker failed", e.getCause());
+            } catch (Exception e) {
+                throw new RuntimeException("Mini-batch KMeans worker failed", e);
+            }
+
+            // 3) Per-centroid batch sums, in batch order
+            float[] v = new float[vectorLength];
+            for (int b = 0; b < batchSize; b++) {
+                int c = assigned[b];
+                vectors.get(batch[b], v);
+                double[] acc = sums[c];
+                for (int d = 0; d < vectorLength; d++) {
+                    acc[d] += v[d];
+                }
+                batchCounts[c]++;
+            }
+
+            // 4) Move each touched centroid towards its batch mean: c += (sum - m*c) / seen
+            double movement = 0;
+            for (int c = 0; c < k; c++) {
+                int m = batchCounts[c];
+                if (m == 0) continue;
+                seen[c] += m;
+                float[] centroid = centroids[c];
+                double[] acc = sums[c];
+                for (int d = 0; d < vectorLength; d++) {
+                    float updated = (float) (centroid[d] + (acc[d] - m * (double) centroid[d]) / seen[c]);
+                    double delta = updated - centroid[d];
+                    movement += delta * delta;
+                    centroid[d] = updated;
+                    acc[d] = 0;
+                }
+                batchCounts[c] = 0;
+            }
+            // Centroids are updated in place; the next FlatCodebook snapshot picks them up
+
+            // 5) Convergence tests
+            double distortion = 0;
+            for (float d : batchDistortion) distortion += d;
+            distortion /= batchSize;
+            Metrics.iteration("kmeans-minibatch", step, t0, distortion / vectorLength);
+            smoothed = Double.isNaN(smoothed) ? distortion : (1 - alpha) * smoothed + alpha * distortion;
+            if (smoothed < best) {
+                best = smoothed;
+                sinceBest = 0;
+            } else if (++sinceBest >= MINI_BATCH_PATIENCE) {
+                reason = "no improvement for " + MINI_BATCH_PATIENCE + " batches";
+                step++;
+                break;
+            }
+            if (movement / k < tolerance) {
+                reason = "centroid movement below tolerance";
+                step++;
+                break;
+            }
+        }
+
+        // 6) Centroids no batch vector ever reached: re-seed from random vectors
+        int reseeded = 0;
+        for (int c = 0; c < k; c++) {
+            if (seen[c] == 0) {
+                centroids[c] = vectors.getVector(rnd.nextInt(n));
+                reseeded++;
+            }
+        }
+
+        Metrics.log("Mini-batch KMeans stopped after %d batches (%s), distortion %.3f, %d unused centroids re-seeded%n",
+                step, reason, smoothed, reseeded);
+        return new Codebook(blockWidth, blockHeight, centroids);
+    }
+
+    // Smallest share of a node's members one split task assigns
+    private static final int TREE_GRAIN = 1 << 14;
+
+    /**
+     * Tree-structured VQ by greedy binary splitting. Starting from one node holding every
+     * training vector, the leaf with the largest total squared error is split in two by 2-means
+     * on its own vectors, until there are k leaves or no leaf holds two distinct vectors. A split
+     * is seeded with a random member and the member farthest from it, and runs at most
+     * maxIterations Lloyd steps.
+     *
+     * Encoding then descends the tree with one dot product per level, about log2(k) per block
+     * instead of k distances (see {@link TreeCodebook}). The leaves are a little worse than a flat
+     * k-means codebook of the same size, since each vector is confined to its parent's half.
+     *
+     * Training runs on the set's unique vectors weighted by their counts, as the VectorHistogram
+     * form does.
+     */
+    public static TreeCodebook trainTreeStructured(
+            TrainingSet vectors,
+            int width,
+            int height,
+            int k,
+            int maxIterations,
+            long rngSeed,
+            int numThreads
+    ) throws InterruptedException {
+        if (vectors == null || vectors.isEmpty()) {
+            throw new IllegalArgumentException("No training vectors");
+        }
+        return trainTreeStructured(VectorHistogram.build(vectors), width, height, k, maxIterations, rngSeed,
+                numThreads);
+    }
+
+    // trainTreeStructured over the unique vectors, weighted by their counts
+    public static TreeCodebook trainTreeStructured(
+            VectorHistogram hist,
+            int width,
+            int height,
+            int k,
+            int maxIterations,
+            long rngSeed,
+            int numThreads
+    ) throws InterruptedException {
+        if (hist == null || hist.getUniqueCount() == 0) {
+            throw new IllegalArgumentException("No training vectors");
+        }
+        return treeStructured(uniqueVectors(hist), uniqueCounts(hist), width, height, k, maxIterations, rngSeed,
+                numThreads);
+    }
+
+    private static TreeCodebook treeStructured(
+            float[][] data, int[] weights, int width, int height, int k, int maxIterations, long rngSeed,
+            int numThreads
+    ) throws InterruptedException {
+        int vectorLength = width * height;
+        int n = data.length;
+        if (k <= 0 || maxIterations <= 0) {
+            throw new IllegalArgumentException("k and maxIterations must be > 0");
+        }
+        if (data[0].length != vectorLength) {
+            throw new IllegalArgumentException("Vector length mismatch: " + data[0].length + " != " + vectorLength);
+        }
+        int threads = Math.max(1, numThreads);
+        Random rnd = new Random(rngSeed);
+
+        // 1) Root: every vector. Node i owns members[start[i], end[i]), and its children are
+        //    added as nodes firstChild[i] and firstChild[i] + 1
+        int maxNodes = 2 * k - 1;
+        int[] members = new int[n];
+        for (int i = 0; i < n; i++) members[i] = i;
+        byte[] side = new byte[n]; // by member position: 0 first child, 1 second
+        List<float[]> centroids = new ArrayList<>();
+        int[] firstChild = new int[maxNodes];
+        int[] start = new int[maxNodes];
+        int[] end = new int[maxNodes];
+        double[] error = new double[maxNodes];
+        Arrays.fill(firstChild, -1);
+
+        centroids.add(mean(data, weights, members, 0, n, vectorLength));
+        end[0] = n;
+        error[0] = squaredError(data, weights, members, 0, n, centroids.get(0));
+        double totalError = error[0];
+        double totalWeight = 0;
+        for (int i = 0; i < n; i++) totalWeight += weights[i];
+
+        // 2) Split the leaf with the largest error (lowest node on ties) until there are k leaves
+        PriorityQueue<Integer> open = new PriorityQueue<>((a, b) ->
+                error[a] != error[b] ? Double.compare(error[b], error[a]) : Integer.compare(a, b));
+        if (error[0] > 0) open.add(0);
+        int leaves = 1;
+        while (leaves < k && !open.isEmpty()) {
+            long t0 = Metrics.iterationStart();
+            int node = open.poll();
+            Split split = split(data, weights, members, side, start[node], end[node], maxIterations, rnd, threads);
+            if (split == null) {
+                continue; // every member is the same vector
+            }
+            int c = centroids.size();
+            firstChild[node] = c;
+            centroids.add(split.first);
+            centroids.add(split.second);
+            start[c] = start[node];
+            end[c] = start[c + 1] = split.mid;
+            end[c + 1] = end[node];
+            error[c] = split.firstError;
+            error[c + 1] = split.secondError;
+            for (int child = c; child <= c + 1; child++) {
+                if (error[child] > 0) open.add(child);
+            }
+            leaves++;
+            totalError += split.firstError + split.secondError - error[node];
+            Metrics.iteration("tsvq", leaves - 1, t0, totalError / (totalWeight * vectorLength));
+        }
+
+        TreeCodebook tree = new TreeCodebook(width, height, centroids.toArray(new float[0][]),
+                Arrays.copyOf(firstChild, centroids.size()));
+        Metrics.log("Tree-structured VQ: %d leaves, depth %d, distortion %.3f%n",
+                tree.getSize(), tree.getDepth(), totalError / (totalWeight * vectorLength));
+        return tree;
+    }
+
+    /** Two halves of a node, as found by split(). */
+    private static final class Split {
+        float[] first, second;   // centroids
+        int mid;                 // members[from, mid) went to first, [mid, to) to second
+        double firstError, secondError;
+    }
+
+    // 2-means over members[from, to), which are partitioned in place; null if they are all equal
+    private static Split split(float[][] data, int[] weights, int[] members, byte[] side, int from, int to,
+                               int maxIterations, Random rnd, int threads) throws InterruptedException {
+        int vectorLength = data[0].length;
+
+        // 1) Seeds: a random member and the member farthest from it
+        float[] a = data[members[from + rnd.nextInt(to - from)]].clone();
+        float far = 0f;
+        int farPos = -1;
+        for (int p = from; p < to; p++) {
+            float d = squaredDistance(data[members[p]], a);
+            if (d > far) {
+                far = d;
+                farPos = p;
+            }
+        }
+        if (farPos < 0) return null;
+        float[] b = data[members[farPos]].clone();
+
+        // 2) Lloyd steps; each leaves a and b at the means of the assignment it made
+        double[][] sums = new double[2][vectorLength];
+        double[] weight = new double[2];
+        for (int iter = 0; iter < maxIterations; iter++) {
+            boolean changed = splitPass(data, weights, members, side, from, to, a, b, iter == 0, sums, weight, threads);
+            if (weight[0] == 0 || weight[1] == 0) {
+                return null; // a side lost all its members; keep the node as a leaf
+            }
+            for (int j = 0; j < vectorLength; j++) {
+                a[j] = (float) (sums[0][j] / weight[0]);
+                b[j] = (float) (sums[1][j] / weight[1]);
+            }
+            if (!changed) break;
+        }
+
+        // 3) Partition the members by side
+        int lo = from, hi = to - 1;
+        while (lo <= hi) {
+            if (side[lo] == 0) {
+                lo++;
+            } else {
+                int m = members[lo]; members[lo] = members[hi]; members[hi] = m;
+                byte s = side[lo]; side[lo] = side[hi]; side[hi] = s;
+                hi--;
+            }
+        }
+
+        Split split = new Split();
+        split.first = a;
+        split.second = b;
+        split.mid = lo;
+        split.firstError = squaredError(data, weights, members, from, lo, a);
+        split.secondError = squaredError(data, weights, members, lo, to, b);
+        return split;
+    }
+
+    // One 2-means assignment over members[from, to): sides, and per-side weighted sums and weights
+    private static boolean splitPass(float[][] data, int[] weights, int[] members, byte[] side, int from, int to,
+                                     float[] a, float[] b, boolean first, double[][] sums, double[] weight,
+                                     int threads) throws InterruptedException {
+        int vectorLength = a.length;
+        // Partial.counts holds each side's total weight
+        ParallelEngine.RangeFunction<Partial> pass = (lo, hi) -> {
+            Partial partial = new Partial(2, vectorLength, true);
+            for (int p = from + lo; p < from + hi; p++) {
+                float[] v = data[members[p]];
+                byte s = squaredDistance(v, b) < squaredDistance(v, a) ? (byte) 1 : (byte) 0;
+                partial.changed |= first || side[p] != s;
+                side[p] = s;
+                int w = weights[members[p]];
+                double[] acc = partial.dSums[s];
+                for (int j = 0; j < vectorLength; j++) {
+                    acc[j] += (double) w * v[j];
+                }
+                partial.counts[s] += w;
+            }
+            return partial;
+        };
+        List<Partial> partials;
+        try {
+            partials = threads == 1 ? List.of(pass.apply(0, to - from))
+                    : ParallelEngine.shared().mapRange(to - from, TREE_GRAIN, pass);
+        } catch (InterruptedException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("Tree-structured VQ worker failed",
+                    e instanceof ExecutionException ? e.getCause() : e);
+        }
+
+        boolean changed = false;
+        for (int s = 0; s < 2; s++) {
+            Arrays.fill(sums[s], 0);
+            weight[s] = 0;
+        }
+        for (Partial partial : partials) {
+            changed |= partial.changed;
+            for (int s = 0; s < 2; s++) {
+                for (int j = 0; j < vectorLength; j++) {
+                    sums[s][j] += partial.dSums[s][j];
+                }
+                weight[s] += partial.counts[s];
+            }
+        }
+        return changed;
+    }
+
+    private static float[] mean(float[][] data, int[] weights, int[] members, int from, int to, int vectorLength) {
+        double[] sum = new double[vectorLength];
+        double total = 0;
+        for (int p = from; p < to; p++) {
+            float[] v = data[members[p]];
+            int w = weights[members[p]];
+            for (int j = 0; j < vectorLength; j++) {
+                sum[j] += (double) w * v[j];
+            }
+            total += w;
+        }
+        float[] mean = new float[vectorLength];
+        for (int j = 0; j < vectorLength; j++) {
+            mean[j] = (float) (sum[j] / total);
+        }
+        return mean;
+    }
+
+    // Weighted sum of squared distances from members[from, to) to c
+    private static double squaredError(float[][] data, int[] weights, int[] members, int from, int to, float[] c) {
+        double sum = 0;
+        for (int p = from; p < to; p++) {
+            int w = weights[members[p]];
+            sum += (double) w * squaredDistance(data[members[p]], c);
+        }
+        return sum;
+    }
+
+    // Mean squared error per pixel of the given assignment (weights == null: all 1), for Metrics
+    private static double assignedDistortion(float[][] data, int[] weights, float[][] centroids, int[] assignments) {
+        return assignedDistortion((i, scratch) -> data[i], data.length, weights, centroids, assignments);
+    }
+
+    private static double assignedDistortion(Rows rows, int m, int[] weights, float[][] centroids, int[] assignments) {
+        float[] scratch = new float[centroids[0].length];
+        double sum = 0;
+        long count = 0;
+        for (int i = 0; i < m; i++) {
+            int w = weights == null ? 1 : weights[i];
+            sum += (double) w * squaredDistance(rows.get(i, scratch), centroids[assignments[i]]);
+            count += w;
+        }
+        return count == 0 ? 0 : sum / (count * (double) scratch.length);
+    }
+
+    private static double assignedDistortion(TrainingSet vectors, float[][] centroids, int[] assignments) {
+        float[] v = new float[vectors.getVectorLength()];
+        double sum = 0;
+        for (int i = 0; i < vectors.size(); i++) {
+            vectors.get(i, v);
+            sum += squaredDistance(v, centroids[assignments[i]]);
+        }
+        return sum / ((double) vectors.size() * v.length);
+    }
+
+    // Smallest number of training vectors whose residuals one parallel task updates
+    private static final int RESIDUAL_GRAIN = 4096;
+
+    /**
+     * Residual VQ: stage s is trained by k-means (Hamerly) with stageSizes[s] codewords on what
+     * stages 0..s-1 leave of each training vector, after rounding them as a .pkcc file stores
+     * them (see {@link ResidualCodebook}). Each stage is trained once, in order; there is no joint
+     * re-optimization of earlier stages. Stage s uses rngSeed + s.
+     */
+    public static ResidualCodebook trainResidual(
+            TrainingSet vectors,
+            int width,
+            int height,
+            int[] stageSizes,
+            int maxIterations,
+            long rngSeed,
+            int numThreads
+    ) throws InterruptedException {
+        if (vectors == null || vectors.isEmpty()) {
+            throw new IllegalArgumentException("No training vectors");
+        }
+        if (stageSizes.length == 0) {
+            throw new IllegalArgumentException("Need at least one stage");
+        }
+        int vectorLength = width * height;
+        if (vectors.getVectorLength() != vectorLength) {
+            throw new IllegalArgumentException("Vector length mismatch: " + vectors.getVectorLength()
+                    + " != " + vectorLength);
+        }
+        int threads = Math.max(1, numThreads);
+        int n = vectors.size();
+        // Residual of vector i is residuals[i * vectorLength ..], updated in place after each stage
+        float[] residuals = new float[n * vectorLength];
+        byte[] px = vectors.getPixels();
+        for (int i = 0; i < residuals.length; i++) {
+            residuals[i] = px[i] & 0xFF;
+        }
+        Rows rows = (i, scratch) -> {
+            System.arraycopy(residuals, i * vectorLength, scratch, 0, vectorLength);
+            return scratch;
+        };
+        Codebook[] stages = new Codebook[stageSizes.length];
+
+        for (int s = 0; s < stages.length; s++) {
+            long t0 = Metrics.iterationStart();
+            if (stageSizes[s] <= 0) {
+                throw new IllegalArgumentException("Stage " + s + " needs k > 0, got " + stageSizes[s]);
+            }
+            // 1) k-means on the current residuals
+            int k = Math.min(stageSizes[s], n);
+            stages[s] = hamerly(rows, n, null, i -> Arrays.copyOfRange(residuals, i * vectorLength,
+                    (i + 1) * vectorLength), n, width, height, k, null, maxIterations, rngSeed + s, threads,
+                    threads > 1 ? -1 : 0, null);
+
+            // 2) Round the stage as stored, and subtract its nearest codeword from every residual
+            Codebook stage = new ResidualCodebook(Arrays.copyOf(stages, s + 1)).getCodebook(s);
+            stages[s] = stage;
+            FlatCodebook flat = new FlatCodebook(stage);
+            double[] error = new double[n];
+            ParallelEngine.RangeTask subtract = (from, to) -> {
+                float[] v = new float[vectorLength];
+                for (int i = from; i < to; i++) {
+                    float[] c = stage.getCentroid(flat.findNearest(rows.get(i, v)));
+                    int base = i * vectorLength;
+                    double e = 0;
+                    for (int j = 0; j < vectorLength; j++) {
+                        float r = v[j] - c[j];
+                        residuals[base + j] = r;
+                        e += (double) r * r;
+                    }
+                    error[i] = e;
+                }
+            };
+            try {
+                if (threads == 1 || n <= RESIDUAL_GRAIN) {
+                    subtract.run(0, n);
+                } else {
+                    ParallelEngine.shared().forRange(n, RESIDUAL_GRAIN, subtract);
+                }
+            } catch (InterruptedException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException("Residual VQ worker failed",
+                        e instanceof ExecutionException ? e.getCause() : e);
+            }
+
+            double total = 0;
+            for (double e : error) total += e;
+            double mse = total / ((double) n * vectorLength);
+            Metrics.iteration("rvq", s + 1, t0, mse);
+            Metrics.log("Residual VQ stage %d: %d codewords, distortion %.3f%n", s, stage.getSize(), mse);
+        }
+        return new ResidualCodebook(stages);
+    }
+
+    private static float[][] copyCentroids(float[][] centroids, int vectorLength) {
+        if (centroids.length == 0) {
+            throw new IllegalArgumentException("No initial centroids");
+        }
+        float[][] copy = new float[centroids.length][];
+        for (int c = 0; c < centroids.length; c++) {
+            if (centroids[c].length != vectorLength) {
+                throw new IllegalArgumentException("Centroid length mismatch: " +
+                        centroids[c].length + " != " + vectorLength);
+            }
+            copy[c] = centroids[c].clone();
+        }
+        return copy;
+    }
+
+    private static float squaredDistance(float[] v, float[] c) {
+        return squaredDistance(v, c, Float.POSITIVE_INFINITY);
+    }
+
+    // Stops once the partial sum exceeds limit; the result is then only known to be > limit
+    private static float squaredDistance(float[] v, float[] c, float limit) {
+        float dist = 0f;
+        for (int j = 0; j < v.length && dist <= limit; j++) {
+            float d = v[j] - c[j];
+            dist += d * d;
+        }
+        return dist;
+    }
+
+    private static double distance(float[] a, float[] b) {
+        double sum = 0;
+        for (int j = 0; j < a.length; j++) {
+            double d = (double) a[j] - b[j];
+            sum += d * d;
+        }
+        return Math.sqrt(sum);
+    }
 }
@@ -1,59 +1,123 @@
 package main.java.core;
 
-import main.java.io.BitInputStream;
-
 import java.util.*;
 
 public final class HuffmanCodec {
 
-    // Build code lengths for symbols 0..(freq.length-1)
+    public static final int DEFAULT_MAX_CODE_LENGTH = 16;
+    // Bits a length limit keeps above a fixed-length code, so frequent symbols still get short codes
+    private static final int LENGTH_HEADROOM = 4;
+
+    // Build code lengths for symbols 0..(freq.length-1), limited to DEFAULT_MAX_CODE_LENGTH bits
     public static int[] buildCodeLengths(int[] freq) {
+        return buildCodeLengths(freq, DEFAULT_MAX_CODE_LENGTH);
+    }
+
+    /**
+     * Code length limit for an alphabet of 'symbols': 'preferred', raised for large alphabets to
+     * stay LENGTH_HEADROOM bits above a fixed-length code (e.g. 20 bits for 65536 symbols).
+     */
+    public static int lengthLimit(int symbols, int preferred) {
+        int fixed = 32 - Integer.numberOfLeadingZeros(Math.max(1, symbols - 1));
+        return Math.min(31, Math.max(preferred, fixed + LENGTH_HEADROOM));
+    }
+
+    /**
+     * Build optimal length-limited code lengths with the package-merge algorithm.
+     *
+     * Works entirely on primitive arrays: symbols are sorted by frequency once, then each of the
+     * maxLength levels merges the leaves with the packages (pairs) of the level below. Only a
+     * leaf/package flag per list item is kept; the final lengths are recovered by walking the
+     * levels back and counting how often each leaf was selected.
+     */
+    public static int[] buildCodeLengths(int[] freq, int maxLength) {
         int K = freq.length;
+        if (maxLength < 1 || maxLength > 31) {
+            throw new IllegalArgumentException("maxLength must be in [1,31]: " + maxLength);
+        }
 
-        // Special case: if only one symbol ever appears, give it length 1
-        int nonZeroCount = 0;
+        // 1) Sort the used symbols by (frequency, symbol)
+        int n = 0;
         for (int f : freq) {
-            if (f > 0) nonZeroCount++;
+            if (f > 0) n++;
         }
-        if (nonZeroCount == 0) {
+        if (n == 0) {
             throw new IllegalArgumentException("All frequencies are zero");
         }
-
-        PriorityQueue<HuffmanNode> pq = new PriorityQueue<>();
+        long[] keys = new long[n];
+        int pos = 0;
         for (int s = 0; s < K; s++) {
             if (freq[s] > 0) {
-                pq.add(new HuffmanNode(s, freq[s], null, null));
+                keys[pos++] = ((long) freq[s] << 32) | s;
             }
         }
-        if (pq.size() == 1) {
-            // Only one symbol: add a dummy zero-frequency node so tree has depth 1
-            pq.add(new HuffmanNode(-1, 0, null, null));
+        Arrays.sort(keys);
+
+        int[] codeLen = new int[K];
+
+        // Special case: if only one symbol ever appears, give it length 1
+        if (n == 1) {
+            codeLen[(int) keys[0]] = 1;
+            return codeLen;
+        }
+        if (n > (1L << maxLength)) {
+            throw new IllegalArgumentException(n + " symbols do not fit in codes of at most " + maxLength + " bits");
         }
 
-        // Build tree
-        while (pq.size() > 1) {
-            HuffmanNode n1 = pq.poll();
-            HuffmanNode n2 = pq.poll();
-            HuffmanNode parent = new HuffmanNode(-1, n1.freq + n2.freq, n1, n2);
-            pq.add(parent);
+        long[] leafW = new long[n];
+        for (int i = 0; i < n; i++) {
+            leafW[i] = keys[i] >>> 32;
         }
-        HuffmanNode root = pq.poll();
 
-        // Traverse to get code lengths
-        int[] codeLen = new int[K];
-        fillCodeLengths(root, 0, codeLen);
-        return codeLen;
-    }
+        // 2) Package-merge, from the deepest level (maxLength) up to level 1.
+        //    Each level's list holds at most 2n-1 items; isLeaf[level][i] records item kinds.
+        int cap = 2 * n;
+        long[] cur = new long[cap];
+        long[] next = new long[cap];
+        boolean[][] isLeaf = new boolean[maxLength + 1][cap];
+        int[] size = new int[maxLength + 1];
+
+        System.arraycopy(leafW, 0, cur, 0, n);
+        Arrays.fill(isLeaf[maxLength], 0, n, true);
+        size[maxLength] = n;
+
+        for (int level = maxLength - 1; level >= 1; level--) {
+            int packages = size[level + 1] / 2;
+            int li = 0, pi = 0, out = 0;
+            boolean[] flags = isLeaf[level];
+            while (li < n || pi < packages) {
+                long pw = pi < packages ? cur[2 * pi] + cur[2 * pi + 1] : Long.MAX_VALUE;
+                if (li < n && leafW[li] <= pw) {
+                    next[out] = leafW[li++];
+                    flags[out++] = true;
+                } else {
+                    next[out] = pw;
+                    flags[out++] = false;
+                    pi++;
+                }
+            }
+            size[level] = out;
+            long[] tmp = cur;
+            cur = next;
+            next = tmp;
+        }
 
-    private static void fillCodeLengths(HuffmanNode node, int depth, int[] codeLen) {
-        if (node.isLeaf()) {
-            if (node.symbol >= 0) {
-                codeLen[node.symbol] = depth == 0 ? 1 : depth; // at least 1 bit
+        // 3) Select the first 2n-2 items of level 1; every package selected at a level pulls in
+        //    its two children from the level below. Each selected leaf adds one bit to its symbol.
+        int take = 2 * n - 2;
+        for (int level = 1; level <= maxLength && take > 0; level++) {
+            boolean[] flags = isLeaf[level];
+            int leaves = 0;
+            for (int i = 0; i < take; i++) {
+                if (flags[i]) leaves++;
+            }
+            // Leaves are merged in sorted order, so the selected ones are always a prefix
+            for (int i = 0; i < leaves; i++) {
+                codeLen[(int) keys[i]]++;
             }
-        } else {
-            fillCodeLengths(node.left, depth + 1, codeLen);
-            fillCodeLengths(node.right, depth + 1, codeLen);
+            take = 2 * (take - leaves);
         }
+        return codeLen;
     }
 
     // Build canonical codes from code lengths
@@ -91,48 +155,4 @@ public final class HuffmanCodec {
             code++;
         }
     }
-
-    // Build a tree used only for decoding, from canonical codes
-    public static HuffmanNode buildDecodingTree(int[] codeLen, int[] codeBits) {
-        HuffmanNode root = new HuffmanNode(-1, 0, null, null);
-
-        int K = codeLen.length;
-        for (int s = 0; s < K; s++) {
-            int len = codeLen[s];
-            if (len <= 0) continue;
-            int code = codeBits[s];
-
-            HuffmanNode node = root;
-            for (int i = len - 1; i >= 0; i--) {
-                int bit = (code >>> i) & 1;
-                if (bit == 0) {
-                    if (node.left == null) {
-                        node.left = new HuffmanNode(-1, 0, null, null);
-                    }
-                    node = node.left;
-                } else {
-                    if (node.right == null) {
-                        node.right = new HuffmanNode(-1, 0, null, null);
-                    }
-                    node = node.right;
-                }
-            }
-            // Leaf
-            node.symbol = s;
-        }
-        return root;
-    }
-
-    // Decode one symbol from bits using the tree
-    public static int decodeSymbol(BitInputStream bin, HuffmanNode root) throws java.io.IOException {
-        HuffmanNode node = root;
-        while (!node.isLeaf()) {
-            int bit = bin.readBit();
-            if (bit == -1) {
-                throw new java.io.EOFException("Unexpected EOF in Huffman bitstream");
-            }
-            node = (bit == 0) ? node.left : node.right;
-        }
-        return node.symbol;
-    }
 }
@@ -0,0 +1,162 @@
+package main.java.core;
+
+import main.java.io.BitInputStream;
+
+import java.io.IOException;
+
+/**
+ * Two-level lookup table for decoding canonical Huffman codes.
+ *
+ * The primary table is indexed by the next {@code rootBits} bits of the stream and resolves
+ * every code of that length or shorter in a single hit. Longer codes share a primary entry per
+ * prefix, which links to a secondary table indexed by the remaining bits of the longest code
+ * under that prefix.
+ *
+ * Entry layout:
+ *   - leaf:    (symbol << 8) | length      (length >= 1, bits consumed at this level)
+ *   - link:    0x80000000 | (offset << 5) | subBits
+ *   - invalid: 0                           (bit pattern not assigned to any symbol)
+ */
+public final class HuffmanDecodeTable {
+    public static final int PRIMARY_BITS = 10;
+
+    private static final int LINK_FLAG = 0x80000000;
+
+    private final int[] table;
+    private final int rootBits;
+    private final int maxLength;
+
+    public HuffmanDecodeTable(int[] codeLen, int[] codeBits) {
+        int k = codeLen.length;
+
+        // 1) Canonical order: by length, then by symbol. In this order the left-aligned codes are
+        //    strictly increasing, so all long codes sharing a primary prefix are contiguous.
+        int maxLen = 0;
+        int used = 0;
+        for (int s = 0; s < k; s++) {
+            int len = codeLen[s];
+            if (len > 0) {
+                used++;
+                if (len > maxLen) maxLen = len;
+            }
+        }
+        if (used == 0) {
+            throw new IllegalArgumentException("No symbols with nonzero code length");
+        }
+        if (maxLen > 31) {
+            throw new IllegalArgumentException("Code length too large for table decoding: " + maxLen);
+        }
+
+        int[] order = new int[used];
+        int pos = 0;
+        for (int len = 1; len <= maxLen; len++) {
+            for (int s = 0; s < k; s++) {
+                if (codeLen[s] == len) {
+                    order[pos++] = s;
+                }
+            }
+        }
+
+        this.maxLength = maxLen;
+        this.rootBits = Math.min(maxLen, PRIMARY_BITS);
+
+        // 2) Size the secondary tables: one per primary prefix that has codes longer than rootBits,
+        //    wide enough for the longest (= last in canonical order) code under that prefix.
+        int total = 1 << rootBits;
+        int prevPrefix = -1;
+        for (int i = 0; i < used; i++) {
+            int s = order[i];
+            int len = codeLen[s];
+            if (len <= rootBits) continue;
+            checkCode(codeBits[s], len);
+            int prefix = codeBits[s] >>> (len - rootBits);
+            if (prefix != prevPrefix) {
+                total += 1 << (groupMaxLength(order, codeLen, codeBits, i, prefix, rootBits) - rootBits);
+                prevPrefix = prefix;
+            }
+        }
+
+        // 3) Fill primary and secondary entries
+        int[] t = new int[total];
+        int next = 1 << rootBits;
+        prevPrefix = -1;
+        int subBase = 0;
+        int subBits = 0;
+        for (int i = 0; i < used; i++) {
+            int s = order[i];
+            int len = codeLen[s];
+            int code = codeBits[s];
+            checkCode(code, len);
+
+            if (len <= rootBits) {
+                int fill = rootBits - len;
+                int start = code << fill;
+                fillRange(t, start, 1 << fill, (s << 8) | len);
+            } else {
+                int rest = len - rootBits;
+                int prefix = code >>> rest;
+                if (prefix != prevPrefix) {
+                    if (t[prefix] != 0) {
+                        throw new IllegalArgumentException("Over-subscribed Huffman code lengths");
+                    }
+                    subBits = groupMaxLength(order, codeLen, codeBits, i, prefix, rootBits) - rootBits;
+                    subBase = next;
+                    next += 1 << subBits;
+                    t[prefix] = LINK_FLAG | (subBase << 5) | subBits;
+                    prevPrefix = prefix;
+                }
+                int fill = subBits - rest;
+                int start = subBase + ((code & ((1 << rest) - 1)) << fill);
+                fillRange(t, start, 1 << fill, (s << 8) | rest);
+            }
+        }
+
+        this.table = t;
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /** Decode one symbol: peek rootBits, resolve in one hit, follow one link for long codes. */
+    public int decodeSymbol(BitInputStream bin) throws IOException {
+        int e = table[bin.peekBits(rootBits)];
+        if (e < 0) {
+            bin.skipBits(rootBits);
+            int subBits = e & 0x1F;
+            int base = (e & ~LINK_FLAG) >>> 5;
+            e = table[base + bin.peekBits(subBits)];
+        }
+        int len = e & 0xFF;
+        if (len == 0) {
+            throw new IOException("Invalid Huffman code in bitstream");
+        }
+        bin.skipBits(len);
+        return e >>> 8;
+    }
+
+    private static int groupMaxLength(int[] order, int[] codeLen, int[] codeBits, int from, int prefix, int rootBits) {
+        int max = codeLen[order[from]];
+        for (int j = from + 1; j < order.length; j++) {
+            int len = codeLen[order[j]];
+            if ((codeBits[order[j]] >>> (len - rootBits)) != prefix) break;
+            max = len;
+        }
+        return max;
+    }
+
+    private static void checkCode(int code, int len) {
+        if ((code >>> len) != 0) {
+            throw new IllegalArgumentException("Over-subscribed Huffman code lengths");
+        }
+    }
+
+    private static void fillRange(int[] t, int start, int count, int entry) {
+        for (int j = start; j < start + count; j++) {
+            if (t[j] != 0) {
+                throw new IllegalArgumentException("Over-subscribed Huffman code lengths");
+            }
+            t[j] = entry;
+        }
+    }
+}
@@ -2,53 +2,218 @@ package main.java.core;
 
 import main.java.model.GrayscaleImage;
 
+import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
 
+/**
+ * Conversions between BufferedImage and GrayscaleImage, and the one path by which input
+ * images are read.
+ *
+ * toGrayscale reads the raster's DataBuffer directly for the common layouts ImageIO produces
+ * (8-bit gray, 8-bit palette, interleaved 8-bit RGB/BGR with or without alpha, packed int RGB)
+ * and converts to luma with integer Rec. 601 weights, row-parallel when asked to. Other
+ * layouts go through getRGB a row at a time. Alpha is ignored.
+ */
 public final class ImageUtils {
+    // Smallest number of pixels converted by one parallel task
+    private static final int ROW_GRAIN_PIXELS = 1 << 16;
 
     private ImageUtils() {
         // utility class, no instances
     }
 
+    /** Converts pixel row y into dst[dstPos, dstPos + width). */
+    private interface RowConverter {
+        void convert(int y, byte[] dst, int dstPos);
+    }
+
+    /** Read an image file as grayscale. */
+    public static GrayscaleImage read(Path path, int numThreads) throws IOException, InterruptedException {
+        Metrics.Timer timer = Metrics.start(Metrics.Stage.INGEST);
+        BufferedImage img = ImageIO.read(path.toFile());
+        if (img == null) {
+            throw new IOException("No ImageReader found for " + path);
+        }
+        GrayscaleImage gray = toGrayscale(img, numThreads);
+        timer.stop(Metrics.enabled() ? Files.size(path) : 0, (long) gray.getWidth() * gray.getHeight());
+        return gray;
+    }
+
+    // Rec. 601 luma, rounded
+    public static int luma(int r, int g, int b) {
+        return (r * 299 + g * 587 + b * 114 + 500) / 1000;
+    }
+
     /** Convert any BufferedImage to our GrayscaleImage wrapper (8-bit, 0..255). */
     public static GrayscaleImage toGrayscale(BufferedImage src) {
-        int width  = src.getWidth();
-        int height = src.getHeight();
-        byte[] pixels = new byte[width * height];
-
-        // Fast path: already BYTE_GRAY
-        if (src.getType() == BufferedImage.TYPE_BYTE_GRAY) {
-            WritableRaster raster = src.getRaster();
-            DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
-            byte[] data = buffer.getData();
-
-            // Copy so we don't alias the original image's backing array
-            System.arraycopy(data, 0, pixels, 0, pixels.length);
-        } else {
-            // General path: convert from RGB (or whatever) to grayscale
-            int idx = 0;
-            for (int y = 0; y < height; y++) {
-                for (int x = 0; x < width; x++) {
-                    int rgb = src.getRGB(x, y);
-                    int r = (rgb >> 16) & 0xFF;
-                    int g = (rgb >> 8)  & 0xFF;
-                    int b =  rgb        & 0xFF;
-
-                    // Luma approximation (Rec. 601 coefficients)
-                    int gray = (r * 299 + g * 587 + b * 114 + 500) / 1000;
-                    if (gray < 0)   gray = 0;
-                    if (gray > 255) gray = 255;
-
-                    pixels[idx++] = (byte) gray;
-                }
+        try {
+            return toGrayscale(src, 1);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e); // a single thread converts inline
+        }
+    }
+
+    /**
+     * Same, converting rows on up to numThreads workers. An 8-bit gray image whose rows are
+     * stored back to back is wrapped without copying, so it shares its pixels with src.
+     */
+    public static GrayscaleImage toGrayscale(BufferedImage src, int numThreads) throws InterruptedException {
+        final int width  = src.getWidth();
+        final int height = src.getHeight();
+        WritableRaster raster = src.getRaster();
+
+        // Zero-copy: gray bytes that already are a row-major width * height array
+        if (src.getType() == BufferedImage.TYPE_BYTE_GRAY && raster.getSampleModel() instanceof ComponentSampleModel
+                && raster.getDataBuffer() instanceof DataBufferByte) {
+            ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+            byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            if (sm.getPixelStride() == 1 && sm.getScanlineStride() == width
+                    && rowStart(raster, 0) + sm.getBandOffsets()[0] == 0 && data.length == width * height) {
+                return new GrayscaleImage(width, height, data);
             }
         }
 
+        final byte[] pixels = new byte[width * height];
+        final RowConverter rows = converter(src);
+        if (height == 0 || width == 0) {
+            return new GrayscaleImage(width, height, pixels);
+        }
+        ParallelEngine.RangeTask task = (y0, y1) -> {
+            for (int y = y0; y < y1; y++) {
+                rows.convert(y, pixels, y * width);
+            }
+        };
+        int grain = Math.max(1, ROW_GRAIN_PIXELS / width);
+        try {
+            if (numThreads <= 1 || height <= grain) {
+                task.run(0, height);
+            } else {
+                ParallelEngine.shared().forRange(height, grain, task);
+            }
+        } catch (InterruptedException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("Grayscale conversion worker failed",
+                    e instanceof ExecutionException ? e.getCause() : e);
+        }
         return new GrayscaleImage(width, height, pixels);
     }
 
+    // Direct DataBuffer reader for src's layout, or a getRGB based one
+    private static RowConverter converter(BufferedImage src) {
+        final int width = src.getWidth();
+        final WritableRaster raster = src.getRaster();
+        final ColorModel cm = src.getColorModel();
+        final DataBuffer buffer = raster.getDataBuffer();
+
+        if (raster.getSampleModel() instanceof ComponentSampleModel && buffer instanceof DataBufferByte
+                && buffer.getNumBanks() == 1) {
+            final ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+            final byte[] data = ((DataBufferByte) buffer).getData();
+            final int stride = sm.getPixelStride();
+            final int[] bandOffsets = sm.getBandOffsets();
+
+            // 1) 8-bit gray: copy the bytes as they are
+            if (src.getType() == BufferedImage.TYPE_BYTE_GRAY && stride == 1) {
+                final int off = bandOffsets[0];
+                return (y, dst, pos) -> System.arraycopy(data, rowStart(raster, y) + off, dst, pos, width);
+            }
+            // 2) 8-bit palette: luma per palette entry, then one lookup per pixel
+            if (cm instanceof IndexColorModel && sm.getNumBands() == 1 && cm.getPixelSize() == 8) {
+                final byte[] lut = paletteLuma((IndexColorModel) cm);
+                final int off = bandOffsets[0];
+                return (y, dst, pos) -> {
+                    for (int x = 0, i = rowStart(raster, y) + off; x < width; x++, i += stride) {
+                        dst[pos + x] = lut[data[i] & 0xFF];
+                    }
+                };
+            }
+            // 3) Interleaved 8-bit RGB (e.g. TYPE_3BYTE_BGR, TYPE_4BYTE_ABGR); bands are R, G, B[, A]
+            if (isPlainRgb(cm, 8) && cm instanceof ComponentColorModel && sm.getNumBands() >= 3) {
+                final int offR = bandOffsets[0], offG = bandOffsets[1], offB = bandOffsets[2];
+                return (y, dst, pos) -> {
+                    for (int x = 0, i = rowStart(raster, y); x < width; x++, i += stride) {
+                        dst[pos + x] = (byte) luma(data[i + offR] & 0xFF, data[i + offG] & 0xFF, data[i + offB] & 0xFF);
+                    }
+                };
+            }
+        }
+
+        // 4) Packed int RGB (TYPE_INT_RGB, TYPE_INT_ARGB)
+        if (raster.getSampleModel() instanceof SinglePixelPackedSampleModel && buffer instanceof DataBufferInt
+                && buffer.getNumBanks() == 1 && cm instanceof DirectColorModel && isPlainRgb(cm, 8)) {
+            DirectColorModel dcm = (DirectColorModel) cm;
+            if (dcm.getRedMask() == 0xFF0000 && dcm.getGreenMask() == 0xFF00 && dcm.getBlueMask() == 0xFF) {
+                final int[] data = ((DataBufferInt) buffer).getData();
+                return (y, dst, pos) -> {
+                    for (int x = 0, i = rowStart(raster, y); x < width; x++, i++) {
+                        int rgb = data[i];
+                        dst[pos + x] = (byte) luma((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+                    }
+                };
+            }
+        }
+
+        // 5) Anything else: getRGB one row at a time
+        final ThreadLocal<int[]> row = ThreadLocal.withInitial(() -> new int[width]);
+        return (y, dst, pos) -> {
+            int[] rgbs = src.getRGB(0, y, width, 1, row.get(), 0, width);
+            for (int x = 0; x < width; x++) {
+                int rgb = rgbs[x];
+                dst[pos + x] = (byte) luma((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+            }
+        };
+    }
+
+    // Non-premultiplied sRGB with 'bits' bits per color component
+    private static boolean isPlainRgb(ColorModel cm, int bits) {
+        if (!cm.getColorSpace().isCS_sRGB() || cm.isAlphaPremultiplied() || cm.getNumColorComponents() != 3) {
+            return false;
+        }
+        for (int c = 0; c < 3; c++) {
+            if (cm.getComponentSize(c) != bits) return false;
+        }
+        return true;
+    }
+
+    private static byte[] paletteLuma(IndexColorModel cm) {
+        byte[] lut = new byte[256];
+        for (int i = 0; i < Math.min(256, cm.getMapSize()); i++) {
+            lut[i] = (byte) luma(cm.getRed(i), cm.getGreen(i), cm.getBlue(i));
+        }
+        return lut;
+    }
+
+    // Index in the data array of pixel (0, y), before band offsets
+    private static int rowStart(WritableRaster raster, int y) {
+        int sx = -raster.getSampleModelTranslateX();
+        int sy = y - raster.getSampleModelTranslateY();
+        int scanline, pixel;
+        if (raster.getSampleModel() instanceof ComponentSampleModel) {
+            ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+            scanline = sm.getScanlineStride();
+            pixel = sm.getPixelStride();
+        } else {
+            scanline = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+            pixel = 1;
+        }
+        return raster.getDataBuffer().getOffset() + sy * scanline + sx * pixel;
+    }
+
     /** Convert our GrayscaleImage back into a TYPE_BYTE_GRAY BufferedImage. */
     public static BufferedImage fromGrayscale(GrayscaleImage gray) {
         int width  = gray.getWidth();
@@ -0,0 +1,290 @@
+package main.java.core;
+
+import main.java.model.FlatCodebook;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.function.IntConsumer;
+
+/**
+ * Initial centroids for the k-means trainers.
+ *
+ *   kMeansPlusPlus: Arthur and Vassilvitskii's D^2 sampling. Each new centroid is drawn with
+ *                   probability proportional to weight * (squared distance to the nearest
+ *                   centroid chosen so far). Needs k passes over the data.
+ *   kMeansParallel: Bahmani et al.'s k-means||. Each round samples every vector independently
+ *                   with probability oversampling * k * cost / total cost, so one pass picks many
+ *                   candidates. After a few rounds the candidates, weighted by how many vectors
+ *                   they are nearest to, are reduced to k centroids with k-means++.
+ *
+ * Weights may be null (all 1) or the counts of a {@link VectorHistogram}; a weighted vector is
+ * sampled exactly like that many copies of it.
+ *
+ * Both are deterministic for a given seed and independent of numThreads. Costs are summed per
+ * fixed-size chunk and the chunk sums combined in order, and k-means|| draws its per-vector
+ * coin flips from a hash of (seed, round, index) rather than a shared Random.
+ */
+public final class KMeansSeeding {
+    private static final int CHUNK = 4096; // vectors per partial cost sum
+
+    public static final int DEFAULT_ROUNDS = 5;
+    public static final double DEFAULT_OVERSAMPLING = 2.0; // expected candidates per round, in units of k
+
+    private KMeansSeeding() {}
+
+    public static float[][] kMeansPlusPlus(float[][] data, int[] weights, int k, long seed, int numThreads)
+            throws InterruptedException {
+        check(data, weights, k);
+        Random rnd = new Random(seed);
+        CostState state = new CostState(data, weights, numThreads);
+        float[][] centroids = new float[k][];
+        for (int c = 0; c < k; c++) {
+            int pick = state.sample(rnd.nextDouble());
+            centroids[c] = data[pick].clone();
+            state.addCenters(new float[][]{data[pick]}, c);
+        }
+        return centroids;
+    }
+
+    public static float[][] kMeansParallel(float[][] data, int[] weights, int k, int rounds, double oversampling,
+                                           long seed, int numThreads) throws InterruptedException {
+        check(data, weights, k);
+        if (rounds < 0 || oversampling <= 0) {
+            throw new IllegalArgumentException("rounds must be >= 0 and oversampling > 0");
+        }
+        Random rnd = new Random(seed);
+        final double l = oversampling * k;
+
+        CostState state = new CostState(data, weights, numThreads);
+
+        // 1) One uniform (weighted) pick
+        List<float[]> candidates = new ArrayList<>();
+        int first = state.sample(rnd.nextDouble());
+        candidates.add(data[first]);
+        state.addCenters(new float[][]{data[first]}, 0);
+
+        // 2) Oversampling rounds: independent coin flip per vector
+        for (int round = 0; round < rounds; round++) {
+            final double total = state.total();
+            if (total == 0) break;
+            final long roundSeed = seed + 0x9E3779B97F4A7C15L * (round + 1);
+            final int[][] picked = new int[state.chunks][];
+            state.forEachChunk(chunk -> {
+                int from = chunk * CHUNK, to = Math.min(data.length, from + CHUNK);
+                int[] found = new int[8];
+                int count = 0;
+                for (int i = from; i < to; i++) {
+                    double p = l * state.cost(i) / total;
+                    if (p > 0 && uniform(roundSeed, i) < p) {
+                        if (count == found.length) found = Arrays.copyOf(found, count * 2);
+                        found[count++] = i;
+                    }
+                }
+                picked[chunk] = Arrays.copyOf(found, count);
+            });
+            List<float[]> fresh = new ArrayList<>();
+            for (int[] chunk : picked) {
+                for (int i : chunk) fresh.add(data[i]);
+            }
+            if (fresh.isEmpty()) continue;
+            state.addCenters(fresh.toArray(new float[0][]), candidates.size());
+            candidates.addAll(fresh);
+        }
+
+        // 3) Too few candidates: continue with k-means++ steps over the full data
+        while (candidates.size() < k) {
+            int pick = state.sample(rnd.nextDouble());
+            state.addCenters(new float[][]{data[pick]}, candidates.size());
+            candidates.add(data[pick]);
+        }
+
+        // 4) Weight candidates by the vectors nearest to them and reduce to k with k-means++
+        int[] candidateWeights = new int[candidates.size()];
+        for (int i = 0; i < data.length; i++) {
+            candidateWeights[state.nearest[i]] += weights == null ? 1 : weights[i];
+        }
+        Metrics.log("k-means|| seeding: %d candidates after %d rounds%n", candidates.size(), rounds);
+        return kMeansPlusPlus(candidates.toArray(new float[0][]), candidateWeights, k, rnd.nextLong(), numThreads);
+    }
+
+    // k-means++ over a histogram's unique vectors, weighted by their counts
+    public static float[][] kMeansPlusPlus(VectorHistogram hist, int k, long seed, int numThreads)
+            throws InterruptedException {
+        return kMeansPlusPlus(vectors(hist), counts(hist), k, seed, numThreads);
+    }
+
+    // k-means|| over a histogram's unique vectors, weighted by their counts
+    public static float[][] kMeansParallel(VectorHistogram hist, int k, int rounds, double oversampling,
+                                           long seed, int numThreads) throws InterruptedException {
+        return kMeansParallel(vectors(hist), counts(hist), k, rounds, oversampling, seed, numThreads);
+    }
+
+    private static float[][] vectors(VectorHistogram hist) {
+        float[][] data = new float[hist.getUniqueCount()][];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = hist.getVector(i);
+        }
+        return data;
+    }
+
+    private static int[] counts(VectorHistogram hist) {
+        int[] counts = new int[hist.getUniqueCount()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = hist.getCount(i);
+        }
+        return counts;
+    }
+
+    private static void check(float[][] data, int[] weights, int k) {
+        if (data.length == 0) {
+            throw new IllegalArgumentException("No training vectors");
+        }
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be > 0");
+        }
+        if (weights != null && weights.length != data.length) {
+            throw new IllegalArgumentException("weights.length != data.length");
+        }
+    }
+
+    // Uniform double in [0, 1) from (seed, index): SplitMix64 finalizer
+    private static double uniform(long seed, int index) {
+        long z = seed + 0x9E3779B97F4A7C15L * (index + 1L);
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z ^= z >>> 31;
+        return (z >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * Squared distance of every vector to its nearest chosen center, with per-chunk sums of
+     * weight * distance. Before the first center, every vector's cost is its weight.
+     */
+    private static final class CostState {
+        final float[][] data;
+        final int[] weights;
+        final int chunks;
+        final double[] d2;
+        final int[] nearest;
+        final double[] chunkCost;
+        final int threads;
+        boolean empty = true;
+
+        CostState(float[][] data, int[] weights, int numThreads) {
+            this.data = data;
+            this.weights = weights;
+            this.chunks = (data.length + CHUNK - 1) / CHUNK;
+            this.d2 = new double[data.length];
+            this.nearest = new int[data.length];
+            this.chunkCost = new double[chunks];
+            this.threads = Math.max(1, Math.min(numThreads, chunks));
+            Arrays.fill(d2, Double.POSITIVE_INFINITY);
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                chunkCost[chunk] = sumCost(chunk);
+            }
+        }
+
+        double cost(int i) {
+            double w = weights == null ? 1 : weights[i];
+            return empty ? w : w * d2[i];
+        }
+
+        private double sumCost(int chunk) {
+            double sum = 0;
+            for (int i = chunk * CHUNK, to = Math.min(data.length, i + CHUNK); i < to; i++) {
+                sum += cost(i);
+            }
+            return sum;
+        }
+
+        double total() {
+            double sum = 0;
+            for (double c : chunkCost) sum += c;
+            return sum;
+        }
+
+        // Lower every vector's distance by the given centers, numbered from firstId
+        void addCenters(float[][] centers, int firstId) throws InterruptedException {
+            // Many centers at once (k-means|| rounds): find the nearest new one with the flat search
+            FlatCodebook flat = centers.length > 1 ? new FlatCodebook(centers[0].length, 1, centers) : null;
+            forEachChunk(chunk -> {
+                for (int i = chunk * CHUNK, to = Math.min(data.length, i + CHUNK); i < to; i++) {
+                    float[] v = data[i];
+                    int c = flat == null ? 0 : flat.findNearest(v);
+                    double dist = squaredDistance(v, centers[c]);
+                    if (dist < d2[i]) {
+                        d2[i] = dist;
+                        nearest[i] = firstId + c;
+                    }
+                }
+            });
+            empty = false;
+            forEachChunk(chunk -> chunkCost[chunk] = sumCost(chunk));
+        }
+
+        // Index drawn with probability cost(i) / total(), for r uniform in [0, 1)
+        int sample(double r) {
+            double total = total();
+            if (total == 0) {
+                // Every vector coincides with a center: fall back to a weighted pick
+                boolean wasEmpty = empty;
+                empty = true;
+                double[] saved = chunkCost.clone();
+                for (int chunk = 0; chunk < chunks; chunk++) chunkCost[chunk] = sumCost(chunk);
+                int pick = sample(r);
+                System.arraycopy(saved, 0, chunkCost, 0, chunks);
+                empty = wasEmpty;
+                return pick;
+            }
+            int lastChunk = chunks - 1;
+            while (chunkCost[lastChunk] == 0) lastChunk--;
+            double target = r * total;
+            double acc = 0;
+            int lastPositive = -1;
+            for (int chunk = 0; chunk <= lastChunk; chunk++) {
+                if (chunkCost[chunk] == 0) continue;
+                if (acc + chunkCost[chunk] <= target && chunk < lastChunk) {
+                    acc += chunkCost[chunk];
+                    continue;
+                }
+                for (int i = chunk * CHUNK, to = Math.min(data.length, i + CHUNK); i < to; i++) {
+                    double c = cost(i);
+                    if (c > 0) {
+                        acc += c;
+                        lastPositive = i;
+                        if (acc > target) return i;
+                    }
+                }
+                // Rounding pushed the target past this chunk's elements
+                return lastPositive;
+            }
+            return lastPositive;
+        }
+
+        void forEachChunk(IntConsumer task) throws InterruptedException {
+            if (threads == 1) {
+                for (int chunk = 0; chunk < chunks; chunk++) task.accept(chunk);
+                return;
+            }
+            try {
+                ParallelEngine.shared().forRange(chunks, 1, (from, to) -> {
+                    for (int chunk = from; chunk < to; chunk++) task.accept(chunk);
+                });
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Seeding worker failed", e.getCause());
+            }
+        }
+    }
+
+    private static double squaredDistance(float[] a, float[] b) {
+        double sum = 0;
+        for (int j = 0; j < a.length; j++) {
+            double d = (double) a[j] - b[j];
+            sum += d * d;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,33 @@
+package main.java.core;
+
+/**
+ * Counters filled in by the bound-accelerated k-means trainers. Pass an instance in to find
+ * out how much work the bounds saved; all counts are per (vector, centroid) distance.
+ */
+public final class KMeansStats {
+    long distanceComputations;
+    long distancesSkipped;
+    int iterations;
+
+    public long getDistanceComputations() {
+        return distanceComputations;
+    }
+
+    public long getDistancesSkipped() {
+        return distancesSkipped;
+    }
+
+    // Distances a plain Lloyd assignment step would have computed
+    public long getTotalDistances() {
+        return distanceComputations + distancesSkipped;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public double getSkipRate() {
+        long total = getTotalDistances();
+        return total == 0 ? 0.0 : (double) distancesSkipped / total;
+    }
+}
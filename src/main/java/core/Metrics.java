@@ -0,0 +1,290 @@
+package main.java.core;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.Timespan;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Per-stage and per-iteration measurements of the codec, for listeners and for JFR.
+ *
+ * Stages report their duration, bytes in and out, and the bytes allocated meanwhile; k-means
+ * trainers report each iteration's duration and distortion (mean squared error per pixel of the
+ * assignment made in that iteration). Listeners are registered with {@link #addListener}. While
+ * a JFR recording runs, the same measurements are also committed as "pkc.Stage" and
+ * "pkc.KMeansIteration" events, committed when the stage ends with the measured time in their
+ * "elapsed" field.
+ *
+ * With no listener and no recording nothing is measured: {@link #start} hands out a shared
+ * inert timer and {@link #enabled} is one volatile read, so call sites cost nothing when off.
+ * Diagnostic logging ({@link #log}, plus a listener printing every measurement) is off by
+ * default too; turn it on with {@link #setLogging} or -Dpkc.log=true.
+ *
+ * Allocation is process-wide and approximate: it adds up, over the threads alive when the stage
+ * ends, what each allocated since the stage started. That includes the stage's parallel workers
+ * but also whatever else runs at the same time (e.g. other files of a batch), and misses what
+ * threads that ended before the stage did allocated.
+ */
+public final class Metrics {
+
+    public enum Stage {
+        INGEST,       // decode and convert the input image
+        COLLECT,      // gather training vectors
+        TRAIN,        // seed and train (or refine) the codebook
+        ENCODE,       // map blocks to codeword indices
+        ENTROPY_CODE, // Huffman code the indices
+        WRITE,        // write the output file
+        READ,         // read and Huffman-decode a .pkcc file
+        DECODE        // indices back to pixels
+    }
+
+    /** Receives measurements, on the thread that finished the stage or iteration. -1 marks an unknown amount. */
+    public interface Listener {
+        default void stage(Stage stage, long nanos, long bytesIn, long bytesOut, long allocatedBytes) {}
+
+        default void iteration(String trainer, int iteration, long nanos, double distortion) {}
+    }
+
+    /** Measures one stage; obtained from {@link #start}, finished with {@link #stop}. */
+    public static final class Timer {
+        private static final Timer OFF = new Timer(null, 0, null);
+
+        private final Stage stage;
+        private final long startNanos;
+        private final Allocations startAllocations; // null if unknown
+
+        private Timer(Stage stage, long startNanos, Allocations startAllocations) {
+            this.stage = stage;
+            this.startNanos = startNanos;
+            this.startAllocations = startAllocations;
+        }
+
+        public void stop(long bytesIn, long bytesOut) {
+            if (this == OFF) return;
+            long nanos = System.nanoTime() - startNanos;
+            Allocations now = startAllocations == null ? null : Allocations.now();
+            long allocated = now == null ? -1 : now.since(startAllocations);
+            for (Listener l : listeners) {
+                l.stage(stage, nanos, bytesIn, bytesOut, allocated);
+            }
+            if (recording) {
+                StageEvent event = new StageEvent();
+                event.stage = stage.name();
+                event.elapsed = nanos;
+                event.bytesIn = bytesIn;
+                event.bytesOut = bytesOut;
+                event.allocated = allocated;
+                event.commit();
+            }
+        }
+    }
+
+    /** Prints every measurement; installed by {@link #setLogging}. */
+    private static final Listener LOG = new Listener() {
+        @Override
+        public void stage(Stage stage, long nanos, long bytesIn, long bytesOut, long allocatedBytes) {
+            System.out.printf(Locale.ROOT, "[metrics] %s: %.3f ms, in %d B, out %d B, allocated %d B%n",
+                    stage, nanos / 1e6, bytesIn, bytesOut, allocatedBytes);
+        }
+
+        @Override
+        public void iteration(String trainer, int iteration, long nanos, double distortion) {
+            System.out.printf(Locale.ROOT, "[metrics] %s iteration %d: %.3f ms, MSE %.3f%n",
+                    trainer, iteration, nanos / 1e6, distortion);
+        }
+    };
+
+    private static volatile Listener[] listeners = new Listener[0];
+    private static volatile boolean logging;
+    private static volatile boolean recording; // a JFR recording is running
+
+    static {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recorderInitialized(FlightRecorder recorder) {
+                updateRecording();
+            }
+
+            @Override
+            public void recordingStateChanged(Recording r) {
+                updateRecording();
+            }
+        });
+        if (Boolean.getBoolean("pkc.log")) {
+            setLogging(true);
+        }
+    }
+
+    private Metrics() {}
+
+    public static synchronized void addListener(Listener listener) {
+        Listener[] next = Arrays.copyOf(listeners, listeners.length + 1);
+        next[next.length - 1] = listener;
+        listeners = next;
+    }
+
+    public static synchronized void removeListener(Listener listener) {
+        Listener[] cur = listeners;
+        for (int i = 0; i < cur.length; i++) {
+            if (cur[i] == listener) {
+                Listener[] next = new Listener[cur.length - 1];
+                System.arraycopy(cur, 0, next, 0, i);
+                System.arraycopy(cur, i + 1, next, i, cur.length - i - 1);
+                listeners = next;
+                return;
+            }
+        }
+    }
+
+    /** Turn diagnostic output on or off: {@link #log} lines and a listener printing every measurement. */
+    public static synchronized void setLogging(boolean on) {
+        if (on != logging) {
+            if (on) addListener(LOG); else removeListener(LOG);
+            logging = on;
+        }
+    }
+
+    public static boolean logging() {
+        return logging;
+    }
+
+    /** Whether anyone receives measurements; worth checking before computing one. */
+    public static boolean enabled() {
+        return listeners.length != 0 || recording;
+    }
+
+    /** printf to stdout if logging is on. Guard calls in loops with {@link #logging()}. */
+    public static void log(String format, Object... args) {
+        if (logging) {
+            System.out.printf(format, args);
+        }
+    }
+
+    public static Timer start(Stage stage) {
+        if (!enabled()) return Timer.OFF;
+        return new Timer(stage, System.nanoTime(), Allocations.now());
+    }
+
+    /** Start time for {@link #iteration}, or 0 if nothing is measured. */
+    public static long iterationStart() {
+        return enabled() ? System.nanoTime() : 0;
+    }
+
+    /** Report a training iteration started at startNanos; distortion may be NaN if unknown. */
+    public static void iteration(String trainer, int iteration, long startNanos, double distortion) {
+        if (!enabled()) return;
+        long nanos = System.nanoTime() - startNanos;
+        for (Listener l : listeners) {
+            l.iteration(trainer, iteration, nanos, distortion);
+        }
+        if (recording) {
+            KMeansIterationEvent event = new KMeansIterationEvent();
+            event.trainer = trainer;
+            event.iteration = iteration;
+            event.elapsed = nanos;
+            event.distortion = distortion;
+            event.commit();
+        }
+    }
+
+    /** Bytes allocated so far by each live thread, by ascending thread id. */
+    private static final class Allocations {
+        private final long[] ids;
+        private final long[] bytes;
+
+        private Allocations(long[] ids, long[] bytes) {
+            this.ids = ids;
+            this.bytes = bytes;
+        }
+
+        // null if the JVM does not tell
+        static Allocations now() {
+            ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+            if (!(mx instanceof com.sun.management.ThreadMXBean)) return null;
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) mx;
+            if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) return null;
+            long[] ids = threads.getAllThreadIds();
+            Arrays.sort(ids);
+            return new Allocations(ids, threads.getThreadAllocatedBytes(ids));
+        }
+
+        // What the threads alive now allocated since start; a thread started since counts in full
+        long since(Allocations start) {
+            long total = 0;
+            for (int i = 0; i < ids.length; i++) {
+                if (bytes[i] < 0) continue; // ended while being measured
+                int j = Arrays.binarySearch(start.ids, ids[i]);
+                long before = j >= 0 ? Math.max(0, start.bytes[j]) : 0;
+                total += Math.max(0, bytes[i] - before);
+            }
+            return total;
+        }
+    }
+
+    private static void updateRecording() {
+        boolean running = false;
+        if (FlightRecorder.isInitialized()) {
+            for (Recording r : FlightRecorder.getFlightRecorder().getRecordings()) {
+                running |= r.getState() == RecordingState.RUNNING;
+            }
+        }
+        recording = running;
+    }
+
+    @Name("pkc.Stage")
+    @Label("PKC Stage")
+    @Category("PKC")
+    @Description("One codec stage, measured from start to finish")
+    static final class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("Elapsed")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+
+        @Label("Bytes In")
+        @DataAmount
+        long bytesIn;
+
+        @Label("Bytes Out")
+        @DataAmount
+        long bytesOut;
+
+        @Label("Allocated")
+        @Description("Bytes allocated by all threads during the stage (approximate), -1 if unknown")
+        @DataAmount
+        long allocated;
+    }
+
+    @Name("pkc.KMeansIteration")
+    @Label("PKC k-means Iteration")
+    @Category("PKC")
+    static final class KMeansIterationEvent extends Event {
+        @Label("Trainer")
+        String trainer;
+
+        @Label("Iteration")
+        int iteration;
+
+        @Label("Elapsed")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+
+        @Label("Distortion")
+        @Description("Mean squared error per pixel of the iteration's assignment")
+        double distortion;
+    }
+}
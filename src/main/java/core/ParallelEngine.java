@@ -0,0 +1,218 @@
+package main.java.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * One long-lived executor shared by every parallel path (training, encoding, decoding, tile
+ * coding), instead of a fresh fixed pool per call.
+ *
+ * By default it runs on its own ForkJoinPool of daemon threads, sized by -Dpkc.threads (default:
+ * available processors). Work is split recursively, so idle workers steal the remaining halves
+ * of slower ranges. Callers can inject any other executor with {@link #setShared}; plain
+ * executors receive pre-cut chunks instead. Tasks must not block on other tasks of the same
+ * plain executor.
+ *
+ * Failures surface as an ExecutionException carrying the first task's exception, so call sites
+ * wrap them like they wrap Future.get().
+ */
+public final class ParallelEngine {
+    // Ranges are cut into about this many chunks per worker, so stealing can even out skew
+    private static final int CHUNKS_PER_WORKER = 8;
+
+    public interface Task {
+        void run(int index) throws Exception;
+    }
+
+    public interface RangeTask {
+        void run(int start, int end) throws Exception;
+    }
+
+    public interface RangeFunction<R> {
+        R apply(int start, int end) throws Exception;
+    }
+
+    private static ParallelEngine shared;
+
+    private final ExecutorService executor;
+    private final ForkJoinPool forkJoin; // executor, when it is a ForkJoinPool
+    private final int parallelism;
+    private final boolean owned;
+
+    /** Engine on its own ForkJoinPool of daemon threads. */
+    public ParallelEngine(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be > 0");
+        }
+        this.forkJoin = new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setDaemon(true);
+            thread.setName("pkc-worker-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+        this.executor = forkJoin;
+        this.parallelism = parallelism;
+        this.owned = true;
+    }
+
+    /** Engine on a caller-supplied executor, which stays owned by the caller. */
+    public ParallelEngine(ExecutorService executor, int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be > 0");
+        }
+        this.executor = executor;
+        this.forkJoin = executor instanceof ForkJoinPool ? (ForkJoinPool) executor : null;
+        this.parallelism = parallelism;
+        this.owned = false;
+    }
+
+    public static synchronized ParallelEngine shared() {
+        if (shared == null) {
+            shared = new ParallelEngine(Integer.getInteger("pkc.threads", Runtime.getRuntime().availableProcessors()));
+        }
+        return shared;
+    }
+
+    /** Replace the shared engine (e.g. with one on an injected executor); the old one is shut down if owned. */
+    public static synchronized void setShared(ParallelEngine engine) {
+        if (shared != null && shared != engine) {
+            shared.shutdown();
+        }
+        shared = engine;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /** Run task(0) .. task(count - 1) and wait for all of them. */
+    public void forEach(int count, Task task) throws InterruptedException, ExecutionException {
+        if (count <= 1) {
+            runInline(0, count, (s, e) -> {
+                for (int i = s; i < e; i++) task.run(i);
+            });
+            return;
+        }
+        forRanges(count, 1, (s, e) -> {
+            for (int i = s; i < e; i++) task.run(i);
+        });
+    }
+
+    /**
+     * Run task over disjoint subranges covering [0, n) and wait. Subranges are no shorter than
+     * minGrain and, when n allows, cut into about CHUNKS_PER_WORKER per worker.
+     */
+    public void forRange(int n, int minGrain, RangeTask task) throws InterruptedException, ExecutionException {
+        int grain = Math.max(Math.max(1, minGrain), (n + parallelism * CHUNKS_PER_WORKER - 1) / (parallelism * CHUNKS_PER_WORKER));
+        if (n <= grain || parallelism == 1) {
+            runInline(0, n, task);
+            return;
+        }
+        forRanges(n, grain, task);
+    }
+
+    /**
+     * forRange for tasks that each return a partial result (e.g. their own cluster sums), which
+     * come back in range order. The subranges depend only on n, minGrain and the parallelism, so
+     * merging the results in list order does not depend on which worker ran which range.
+     * Results must not be null.
+     */
+    public <R> List<R> mapRange(int n, int minGrain, RangeFunction<R> task)
+            throws InterruptedException, ExecutionException {
+        ConcurrentSkipListMap<Integer, R> results = new ConcurrentSkipListMap<>();
+        forRange(n, minGrain, (start, end) -> results.put(start, task.apply(start, end)));
+        return new ArrayList<>(results.values());
+    }
+
+    private void forRanges(int n, int grain, RangeTask task) throws InterruptedException, ExecutionException {
+        if (forkJoin != null) {
+            try {
+                forkJoin.invoke(new Split(task, 0, n, grain));
+            } catch (RuntimeException | Error e) {
+                // invoke() may rethrow a copy of a worker's exception, with the original as cause
+                Throwable cause = e;
+                if (cause.getCause() != null && cause.getCause().getClass() == cause.getClass()) {
+                    cause = cause.getCause();
+                }
+                if (cause instanceof Wrapped) {
+                    cause = cause.getCause();
+                }
+                throw new ExecutionException(cause);
+            }
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<>((n + grain - 1) / grain);
+        for (int s = 0; s < n; s += grain) {
+            final int start = s, end = Math.min(n, s + grain);
+            futures.add(executor.submit(() -> {
+                task.run(start, end);
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            for (Future<?> f : futures) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    private static void runInline(int start, int end, RangeTask task) throws ExecutionException {
+        if (start >= end) return;
+        try {
+            task.run(start, end);
+        } catch (Exception e) {
+            throw new ExecutionException(e);
+        }
+    }
+
+    public void shutdown() {
+        if (owned) {
+            executor.shutdown();
+        }
+    }
+
+    // Checked exceptions thrown by a task, carried out of the fork/join framework
+    private static final class Wrapped extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Wrapped(Exception cause) {
+            super(cause);
+        }
+    }
+
+    private static final class Split extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RangeTask task;
+        private final int start, end, grain;
+
+        Split(RangeTask task, int start, int end, int grain) {
+            this.task = task;
+            this.start = start;
+            this.end = end;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= grain) {
+                try {
+                    task.run(start, end);
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new Wrapped(e);
+                }
+                return;
+            }
+            int mid = (start + end) >>> 1;
+            invokeAll(new Split(task, start, mid, grain), new Split(task, mid, end, grain));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package main.java.core;
+
+import main.java.model.GrayscaleImage;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+/**
+ * Reads an image as horizontal strips through an ImageReader with source regions, so only one
+ * strip is decoded into memory at a time. The image dimensions come from the reader's metadata.
+ *
+ * The JDK's PNG and JPEG readers cannot resume where the last strip ended, so each strip decodes
+ * the file from the top and discards the rows above it: a pass over n strips decodes up to n times
+ * the image for those formats. Callers should therefore read as few strips as their memory budget
+ * allows. Formats with addressable rows, such as uncompressed BMP, seek straight to the strip.
+ */
+public final class StripImageReader implements AutoCloseable {
+    private final ImageInputStream iis;
+    private final ImageReader reader;
+    private final int width;
+    private final int height;
+
+    public StripImageReader(Path path) throws IOException {
+        this.iis = ImageIO.createImageInputStream(path.toFile());
+        if (iis == null) {
+            throw new IOException("Cannot open image input stream for " + path);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) {
+            iis.close();
+            throw new IOException("No ImageReader found for " + path);
+        }
+        this.reader = readers.next();
+        // Not seek-forward-only: strips may be re-read across passes
+        reader.setInput(iis, false, true);
+        this.width = reader.getWidth(0);
+        this.height = reader.getHeight(0);
+    }
+
+    public int getWidth()  { return width; }
+    public int getHeight() { return height; }
+
+    /** Read pixel rows [y0, y0 + rows) across the full width as grayscale. */
+    public GrayscaleImage readStrip(int y0, int rows) throws IOException {
+        if (y0 < 0 || rows <= 0 || y0 + rows > height) {
+            throw new IllegalArgumentException("Strip [" + y0 + "," + (y0 + rows) + ") outside image height " + height);
+        }
+        Metrics.Timer timer = Metrics.start(Metrics.Stage.INGEST);
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(0, y0, width, rows));
+        BufferedImage strip = reader.read(0, param);
+        GrayscaleImage gray = ImageUtils.toGrayscale(strip);
+        timer.stop(-1, (long) width * rows); // encoded bytes per strip are not known
+        return gray;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.dispose();
+        iis.close();
+    }
+}
@@ -0,0 +1,181 @@
+package main.java.core;
+
+import main.java.model.GrayscaleImage;
+import main.java.model.TrainingSet;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-capacity uniform sample of overlapping training windows, for inputs too large to keep
+ * a SAMPLE_RATE share of all windows in memory.
+ *
+ * Parallel form of reservoir sampling: every window gets a pseudo-random 64-bit key hashed from
+ * (seed, global window index), and the reservoir keeps the windows with the capacity smallest
+ * keys. That set is a uniform sample without replacement, and it does not depend on how the
+ * windows were split across threads or calls, so strips of one image can be offered one after
+ * another. Memory stays at about (threads + 1) * capacity entries.
+ */
+public final class TrainingReservoir {
+    private final int blockWidth, blockHeight;
+    private final int vectorLength;
+    private final int capacity;
+    private final long seed;
+    private final Heap kept;
+    private long offered = 0;
+
+    public TrainingReservoir(int blockWidth, int blockHeight, int capacity, long seed) {
+        if (blockWidth <= 0 || blockHeight <= 0) {
+            throw new IllegalArgumentException("blockWidth and blockHeight must be > 0");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be > 0");
+        }
+        this.blockWidth = blockWidth;
+        this.blockHeight = blockHeight;
+        this.vectorLength = blockWidth * blockHeight;
+        this.capacity = capacity;
+        this.seed = seed;
+        this.kept = new Heap(capacity, vectorLength);
+    }
+
+    /**
+     * Offer every window of img. rowOffset is img's first row within the full image, so that
+     * windows of different strips get distinct indices; all calls must pass images of the same width.
+     */
+    public void offer(GrayscaleImage img, int rowOffset, int numThreads) throws InterruptedException {
+        final int width = img.getWidth();
+        final int windowsX = Math.max(0, width - blockWidth + 1);
+        final int windowsY = Math.max(0, img.getHeight() - blockHeight + 1);
+        final int threads = Math.max(1, Math.min(numThreads, (windowsY + TrainingVectorCollector.BAND_ROWS - 1)
+                / TrainingVectorCollector.BAND_ROWS));
+        final byte[] src = img.getPixels();
+        final Heap[] local = new Heap[threads];
+
+        // 1) Each worker keeps the smallest keys of its own rows
+        TrainingVectorCollector.forEachBand(threads, threads, slice -> {
+            Heap heap = new Heap(capacity, vectorLength);
+            byte[] window = new byte[vectorLength];
+            int y0 = (windowsY * slice) / threads, y1 = (windowsY * (slice + 1)) / threads;
+            for (int y = y0; y < y1; y++) {
+                long rowId = (long) (y + rowOffset) * width;
+                for (int x = 0; x < windowsX; x++) {
+                    long id = rowId + x;
+                    long key = mix(seed ^ id * 0x9E3779B97F4A7C15L);
+                    if (!heap.accepts(key, id)) continue;
+                    for (int dy = 0; dy < blockHeight; dy++) {
+                        System.arraycopy(src, (y + dy) * width + x, window, dy * blockWidth, blockWidth);
+                    }
+                    heap.add(key, id, window, 0);
+                }
+            }
+            local[slice] = heap;
+        });
+
+        // 2) Merge into the reservoir
+        for (Heap heap : local) {
+            for (int s = 0; s < heap.size; s++) {
+                if (kept.accepts(heap.keys[s], heap.ids[s])) {
+                    kept.add(heap.keys[s], heap.ids[s], heap.pixels, s * vectorLength);
+                }
+            }
+        }
+        offered += (long) windowsX * windowsY;
+    }
+
+    public long getOffered() {
+        return offered;
+    }
+
+    public int size() {
+        return kept.size;
+    }
+
+    // Kept windows, ordered by position in the image
+    public TrainingSet toTrainingSet() {
+        int n = kept.size;
+        long[] sortedIds = Arrays.copyOf(kept.ids, n);
+        Arrays.sort(sortedIds);
+        byte[] pixels = new byte[n * vectorLength];
+        for (int s = 0; s < n; s++) {
+            int pos = Arrays.binarySearch(sortedIds, kept.ids[s]);
+            System.arraycopy(kept.pixels, s * vectorLength, pixels, pos * vectorLength, vectorLength);
+        }
+        return new TrainingSet(vectorLength, pixels);
+    }
+
+    // SplitMix64 finalizer
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /** Max-heap on (key, id) holding at most capacity windows and their pixels. */
+    private static final class Heap {
+        final int capacity, vectorLength;
+        long[] keys, ids;   // grown on demand up to capacity
+        byte[] pixels;
+        int size = 0;
+
+        Heap(int capacity, int vectorLength) {
+            this.capacity = capacity;
+            this.vectorLength = vectorLength;
+            int initial = Math.min(capacity, 1024);
+            this.keys = new long[initial];
+            this.ids = new long[initial];
+            this.pixels = new byte[initial * vectorLength];
+        }
+
+        boolean accepts(long key, long id) {
+            return size < capacity || less(key, id, 0);
+        }
+
+        // Insert (replacing the current maximum when full); call only if accepts() is true
+        void add(long key, long id, byte[] src, int srcPos) {
+            int slot;
+            if (size < capacity) {
+                if (size == keys.length) {
+                    int grown = (int) Math.min(capacity, 2L * size);
+                    keys = Arrays.copyOf(keys, grown);
+                    ids = Arrays.copyOf(ids, grown);
+                    pixels = Arrays.copyOf(pixels, grown * vectorLength);
+                }
+                slot = size++;
+                while (slot > 0) {
+                    int parent = (slot - 1) >>> 1;
+                    if (!less(keys[parent], ids[parent], key, id)) break;
+                    move(parent, slot);
+                    slot = parent;
+                }
+            } else {
+                slot = 0;
+                while (true) {
+                    int child = 2 * slot + 1;
+                    if (child >= size) break;
+                    if (child + 1 < size && less(keys[child], ids[child], keys[child + 1], ids[child + 1])) child++;
+                    if (!less(key, id, keys[child], ids[child])) break;
+                    move(child, slot);
+                    slot = child;
+                }
+            }
+            keys[slot] = key;
+            ids[slot] = id;
+            System.arraycopy(src, srcPos, pixels, slot * vectorLength, vectorLength);
+        }
+
+        private void move(int from, int to) {
+            keys[to] = keys[from];
+            ids[to] = ids[from];
+            System.arraycopy(pixels, from * vectorLength, pixels, to * vectorLength, vectorLength);
+        }
+
+        private boolean less(long key, long id, int slot) {
+            return less(key, id, keys[slot], ids[slot]);
+        }
+
+        private static boolean less(long k1, long id1, long k2, long id2) {
+            int c = Long.compareUnsigned(k1, k2);
+            return c < 0 || (c == 0 && id1 < id2);
+        }
+    }
+}
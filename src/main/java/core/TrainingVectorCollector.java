@@ -1,12 +1,18 @@
 package main.java.core;
 
 import main.java.model.GrayscaleImage;
+import main.java.model.TrainingSet;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
 
 public final class TrainingVectorCollector {
+    // Window rows per band; bands (not threads) own the RNG streams, so results don't depend on the thread count
+    static final int BAND_ROWS = 64;
 
     /**
      * Collect 1D block vectors of length blockWidth from the image.
@@ -62,4 +68,91 @@ public final class TrainingVectorCollector {
 
         return vectors;
     }
+
+    /**
+     * Same sampling as collectTrainingVectors, into one flat {@link TrainingSet}. The window rows
+     * are split into bands of BAND_ROWS; each band draws from its own SplittableRandom, split
+     * from rngSeed in band order, and bands are collected in parallel and concatenated in order.
+     * The result therefore depends on rngSeed only, not on numThreads.
+     */
+    public static TrainingSet collect(
+            GrayscaleImage img,
+            int blockWidth,
+            int blockHeight,
+            double sampleRate,
+            long rngSeed,
+            int numThreads
+    ) throws InterruptedException {
+        if (blockWidth <= 0 || blockHeight <= 0) {
+            throw new IllegalArgumentException("blockWidth and blockHeight must be > 0");
+        }
+        if (sampleRate <= 0.0 || sampleRate > 1.0) {
+            throw new IllegalArgumentException("sampleRate must be in (0,1]");
+        }
+
+        final int width = img.getWidth();
+        final int vectorLength = blockWidth * blockHeight;
+        final int windowsX = Math.max(0, width - blockWidth + 1);
+        final int windowsY = Math.max(0, img.getHeight() - blockHeight + 1);
+        final int bands = (windowsY + BAND_ROWS - 1) / BAND_ROWS;
+
+        SplittableRandom root = new SplittableRandom(rngSeed);
+        final SplittableRandom[] rngs = new SplittableRandom[bands];
+        for (int b = 0; b < bands; b++) {
+            rngs[b] = root.split();
+        }
+
+        final byte[] src = img.getPixels();
+        final byte[][] bandPixels = new byte[bands][];
+        forEachBand(bands, numThreads, band -> {
+            SplittableRandom rnd = rngs[band];
+            int y0 = band * BAND_ROWS, y1 = Math.min(windowsY, y0 + BAND_ROWS);
+            byte[] out = new byte[(int) Math.min(Integer.MAX_VALUE - 8,
+                    ((long) windowsX * (y1 - y0) * sampleRate * 1.05 + 16) * vectorLength)];
+            int pos = 0;
+            for (int y = y0; y < y1; y++) {
+                for (int x = 0; x < windowsX; x++) {
+                    if (rnd.nextDouble() > sampleRate) {
+                        continue;
+                    }
+                    if (pos + vectorLength > out.length) {
+                        out = Arrays.copyOf(out, out.length * 2);
+                    }
+                    // Fill vector row-major
+                    for (int dy = 0; dy < blockHeight; dy++) {
+                        System.arraycopy(src, (y + dy) * width + x, out, pos, blockWidth);
+                        pos += blockWidth;
+                    }
+                }
+            }
+            bandPixels[band] = Arrays.copyOf(out, pos);
+        });
+
+        int total = 0;
+        for (byte[] part : bandPixels) total += part.length;
+        byte[] pixels = new byte[total];
+        int pos = 0;
+        for (byte[] part : bandPixels) {
+            System.arraycopy(part, 0, pixels, pos, part.length);
+            pos += part.length;
+        }
+        return new TrainingSet(vectorLength, pixels);
+    }
+
+    interface BandTask {
+        void run(int band);
+    }
+
+    // Run task for bands 0..bands-1 on the shared engine (inline for a single thread)
+    static void forEachBand(int bands, int numThreads, BandTask task) throws InterruptedException {
+        if (Math.min(numThreads, bands) <= 1) {
+            for (int b = 0; b < bands; b++) task.run(b);
+            return;
+        }
+        try {
+            ParallelEngine.shared().forEach(bands, task::run);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Training vector worker failed", e.getCause());
+        }
+    }
 }
@@ -0,0 +1,131 @@
+package main.java.core;
+
+import main.java.model.TrainingSet;
+
+import java.util.Arrays;
+
+/**
+ * Training vectors collapsed into (unique vector, count) pairs.
+ *
+ * Built with a primitive open-addressing hash table over vector contents. Besides the counts,
+ * it keeps the unique id of every original vector, so that a uniform pick from the expanded
+ * list (as the unweighted trainers do for seeding) maps to the exact same vector.
+ */
+public final class VectorHistogram {
+    private final float[][] vectors;  // unique vectors, in first-seen order
+    private final int[] counts;       // occurrences of each unique vector
+    private final int[] uniqueOf;     // original index -> unique id
+    private final int vectorLength;
+
+    private VectorHistogram(float[][] vectors, int[] counts, int[] uniqueOf, int vectorLength) {
+        this.vectors = vectors;
+        this.counts = counts;
+        this.uniqueOf = uniqueOf;
+        this.vectorLength = vectorLength;
+    }
+
+    /**
+     * Histogram of a flat training set. Vectors of up to four components are keyed by their packed
+     * bytes; longer ones by a hash confirmed against the first occurrence's bytes.
+     */
+    public static VectorHistogram build(TrainingSet training) {
+        int n = training.size();
+        if (n == 0) {
+            throw new IllegalArgumentException("No training vectors");
+        }
+        int vectorLength = training.getVectorLength();
+        byte[] px = training.getPixels();
+        boolean packed = vectorLength <= 4;
+
+        int cap = Integer.highestOneBit(Math.max(2, n) * 2 - 1) << 1;
+        int mask = cap - 1;
+        int shift = 32 - Integer.numberOfTrailingZeros(cap);
+        int[] table = new int[cap];
+        Arrays.fill(table, -1);
+
+        int[] firstOf = new int[Math.min(n, 1024)]; // unique id -> first original index
+        int[] keys = new int[firstOf.length];
+        int[] counts = new int[firstOf.length];
+        int[] uniqueOf = new int[n];
+        int u = 0;
+
+        for (int i = 0; i < n; i++) {
+            int base = i * vectorLength;
+            int key = packed ? pack(px, base, vectorLength) : hash(px, base, vectorLength);
+            int slot = (key * 0x9E3779B9) >>> shift;
+            int id;
+            while ((id = table[slot]) >= 0
+                    && !(keys[id] == key && (packed || sameBytes(px, firstOf[id] * vectorLength, base, vectorLength)))) {
+                slot = (slot + 1) & mask;
+            }
+            if (id < 0) {
+                if (u == firstOf.length) {
+                    int grown = Math.min(n, u * 2);
+                    firstOf = Arrays.copyOf(firstOf, grown);
+                    keys = Arrays.copyOf(keys, grown);
+                    counts = Arrays.copyOf(counts, grown);
+                }
+                id = u++;
+                firstOf[id] = i;
+                keys[id] = key;
+                table[slot] = id;
+            }
+            counts[id]++;
+            uniqueOf[i] = id;
+        }
+
+        float[][] unique = new float[u][];
+        for (int id = 0; id < u; id++) {
+            unique[id] = training.getVector(firstOf[id]);
+        }
+        return new VectorHistogram(unique, Arrays.copyOf(counts, u), uniqueOf, vectorLength);
+    }
+
+    private static int pack(byte[] px, int base, int length) {
+        int key = 0;
+        for (int j = 0; j < length; j++) {
+            key |= (px[base + j] & 0xFF) << (8 * j);
+        }
+        return key;
+    }
+
+    private static int hash(byte[] px, int base, int length) {
+        int h = 0x811C9DC5; // FNV-1a
+        for (int j = 0; j < length; j++) {
+            h = (h ^ (px[base + j] & 0xFF)) * 0x01000193;
+        }
+        return h;
+    }
+
+    private static boolean sameBytes(byte[] px, int a, int b, int length) {
+        for (int j = 0; j < length; j++) {
+            if (px[a + j] != px[b + j]) return false;
+        }
+        return true;
+    }
+
+    public int getUniqueCount() {
+        return vectors.length;
+    }
+
+    public int getTotalCount() {
+        return uniqueOf.length;
+    }
+
+    public int getVectorLength() {
+        return vectorLength;
+    }
+
+    public float[] getVector(int id) {
+        return vectors[id];
+    }
+
+    public int getCount(int id) {
+        return counts[id];
+    }
+
+    // Unique vector behind position i of the original (expanded) list
+    public float[] getOriginal(int i) {
+        return vectors[uniqueOf[i]];
+    }
+}
@@ -1,27 +1,114 @@
 package main.java.io;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
+/**
+ * MSB-first bit reader backed by a 64-bit register.
+ *
+ * Bytes are pulled from a ByteBuffer, four at a time when possible. When reading from an
+ * InputStream, that buffer is a reusable heap array refilled in bulk, so the underlying stream
+ * may be read ahead of the last consumed bit.
+ */
 public final class BitInputStream {
-    private final InputStream in;
-    private int currentByte = 0;
-    private int numBitsRemaining = 0;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream in;  // null when reading straight from a caller-supplied buffer
+    private final ByteBuffer buf;
+    private long bitBuffer = 0;    // right-aligned, low 'bitCount' bits are valid (MSB-first)
+    private int bitCount = 0;
+    private int padBits = 0;       // zero bits appended to the register after EOF
 
     public BitInputStream(InputStream in) {
         this.in = in;
+        this.buf = ByteBuffer.allocate(BUFFER_SIZE);
+        this.buf.limit(0);
+    }
+
+    // Read the remaining bytes of 'data' without copying them
+    public BitInputStream(ByteBuffer data) {
+        this.in = null;
+        this.buf = data.slice();
     }
 
     // Read a single bit or -1 on EOF
     public int readBit() throws IOException {
-        if (numBitsRemaining == 0) {
-            currentByte = in.read();
-            if (currentByte == -1) {
-                return -1;
+        if (bitCount == 0) {
+            refill();
+        }
+        if (bitCount <= padBits) {
+            return -1;
+        }
+        bitCount--;
+        return (int) (bitBuffer >>> bitCount) & 1;
+    }
+
+    // Return the next 'numBits' bits (0..32) without consuming them; zero-padded past EOF
+    public int peekBits(int numBits) throws IOException {
+        if (bitCount < numBits) {
+            refill();
+            if (bitCount < numBits) {
+                int pad = numBits - bitCount;
+                bitBuffer <<= pad;
+                bitCount += pad;
+                padBits += pad;
+            }
+        }
+        return (int) ((bitBuffer >>> (bitCount - numBits)) & ((1L << numBits) - 1));
+    }
+
+    // Consume 'numBits' bits (0..32); fails if that runs past the end of the stream
+    public void skipBits(int numBits) throws IOException {
+        if (bitCount < numBits) {
+            peekBits(numBits);
+        }
+        bitCount -= numBits;
+        if (bitCount < padBits) {
+            throw new EOFException("Unexpected EOF in Huffman bitstream");
+        }
+    }
+
+    // Read and consume 'numBits' bits (0..32)
+    public int readBits(int numBits) throws IOException {
+        int bits = peekBits(numBits);
+        skipBits(numBits);
+        return bits;
+    }
+
+    // Top the register up to more than 56 bits, or as far as the input allows
+    private void refill() throws IOException {
+        if (padBits > 0) {
+            return;
+        }
+        while (bitCount <= 56) {
+            if (bitCount <= 32 && buf.remaining() >= 4) {
+                bitBuffer = (bitBuffer << 32) | (buf.getInt() & 0xFFFFFFFFL);
+                bitCount += 32;
+            } else if (buf.hasRemaining()) {
+                bitBuffer = (bitBuffer << 8) | (buf.get() & 0xFF);
+                bitCount += 8;
+            } else if (!fillBuffer()) {
+                return;
             }
-            numBitsRemaining = 8;
         }
-        numBitsRemaining--;
-        return (currentByte >>> numBitsRemaining) & 1;
+    }
+
+    private boolean fillBuffer() throws IOException {
+        if (in == null) {
+            return false;
+        }
+        int n;
+        do {
+            n = in.read(buf.array(), 0, buf.capacity());
+        } while (n == 0);
+        if (n < 0) {
+            buf.limit(0);
+            return false;
+        }
+        buf.position(0);
+        buf.limit(n);
+        return true;
     }
 }
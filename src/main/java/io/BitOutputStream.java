@@ -3,39 +3,67 @@ package main.java.io;
 import java.io.IOException;
 import java.io.OutputStream;
 
+/**
+ * MSB-first bit writer backed by a 64-bit register.
+ *
+ * Codes are shifted into the register and drained 32 bits at a time into a byte[] buffer,
+ * which is handed to the underlying stream in bulk. The byte stream is identical to writing
+ * the same bits one at a time, including the zero padding of the final byte.
+ */
 public final class BitOutputStream implements AutoCloseable {
+    private static final int BUFFER_SIZE = 8192;
+
     private final OutputStream out;
-    private int currentByte = 0;
-    private int numBitsFilled = 0;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int pos = 0;
+    private long bitBuffer = 0;  // right-aligned, low 'bitCount' bits are pending
+    private int bitCount = 0;    // always < 32 between calls
 
     public BitOutputStream(OutputStream out) {
         this.out = out;
     }
 
-    // Write 'numBits' lowest bits of 'code' (MSB-first in the bitstream)
+    // Write 'numBits' (0..32) lowest bits of 'code' (MSB-first in the bitstream)
     public void writeBits(int code, int numBits) throws IOException {
-        for (int i = numBits - 1; i >= 0; i--) {
-            int bit = (code >>> i) & 1;
-            currentByte = (currentByte << 1) | bit;
-            numBitsFilled++;
-            if (numBitsFilled == 8) {
-                out.write(currentByte);
-                numBitsFilled = 0;
-                currentByte = 0;
+        bitBuffer = (bitBuffer << numBits) | (code & ((1L << numBits) - 1));
+        bitCount += numBits;
+        if (bitCount >= 32) {
+            bitCount -= 32;
+            int word = (int) (bitBuffer >>> bitCount);
+            if (pos > BUFFER_SIZE - 4) {
+                flushBuffer();
             }
+            buf[pos]     = (byte) (word >>> 24);
+            buf[pos + 1] = (byte) (word >>> 16);
+            buf[pos + 2] = (byte) (word >>> 8);
+            buf[pos + 3] = (byte) word;
+            pos += 4;
         }
     }
 
     public void flush() throws IOException {
-        if (numBitsFilled > 0) {
-            currentByte <<= (8 - numBitsFilled); // pad with zeros
-            out.write(currentByte);
-            currentByte = 0;
-            numBitsFilled = 0;
+        if (pos > BUFFER_SIZE - 4) {
+            flushBuffer();
+        }
+        while (bitCount >= 8) {
+            bitCount -= 8;
+            buf[pos++] = (byte) (bitBuffer >>> bitCount);
+        }
+        if (bitCount > 0) {
+            buf[pos++] = (byte) (bitBuffer << (8 - bitCount)); // pad with zeros
+            bitCount = 0;
         }
+        flushBuffer();
         out.flush();
     }
 
+    private void flushBuffer() throws IOException {
+        if (pos > 0) {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+    }
+
     @Override
     public void close() throws IOException {
         flush();
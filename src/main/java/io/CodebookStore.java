@@ -0,0 +1,278 @@
+package main.java.io;
+
+import main.java.core.Metrics;
+import main.java.model.Codebook;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Named, versioned codebooks on local disk, so similar images can share one trained codebook
+ * instead of each training and embedding its own.
+ *
+ * Layout: one directory per name, one file per version: root/name/version.pkcb. Saving a
+ * codebook under a name adds the next version; stored versions are never overwritten. A stored
+ * codebook is identified by "name@version" and by the SHA-256 of its content, so a .pkcc file
+ * that references one can tell when it has been replaced by something else.
+ *
+ * Centroids are stored quantized to bytes, exactly as .pkcc files embed them, so encoding with
+ * a stored codebook and decoding with it see the same centroids.
+ *
+ * Loaded codebooks are kept in a small LRU cache shared by compression and the reader. The
+ * shared store lives under -Dpkc.codebooks (default: ~/.pkc/codebooks).
+ */
+public final class CodebookStore {
+    public static final int DEFAULT_CACHE_SIZE = 16;
+    public static final int HASH_LENGTH = 32; // SHA-256
+
+    private static final String SUFFIX = ".pkcb";
+    private static final short FORMAT_VERSION = 2; // 2: K as an int (1: unsigned short)
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9._-]+");
+
+    private static CodebookStore shared;
+
+    private final Path root;
+    private final Map<String, Entry> cache;
+
+    /** A stored codebook with its identity. */
+    public static final class Entry {
+        private final String name;
+        private final int version;
+        private final byte[] hash;
+        private final Codebook codebook;
+
+        Entry(String name, int version, byte[] hash, Codebook codebook) {
+            this.name = name;
+            this.version = version;
+            this.hash = hash;
+            this.codebook = codebook;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        // "name@version"
+        public String getId() {
+            return name + "@" + version;
+        }
+
+        public byte[] getHash() {
+            return hash.clone();
+        }
+
+        public Codebook getCodebook() {
+            return codebook;
+        }
+    }
+
+    public CodebookStore(Path root, int cacheSize) {
+        if (cacheSize <= 0) {
+            throw new IllegalArgumentException("cacheSize must be > 0");
+        }
+        this.root = root;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    public static synchronized CodebookStore shared() {
+        if (shared == null) {
+            String dir = System.getProperty("pkc.codebooks",
+                    Path.of(System.getProperty("user.home"), ".pkc", "codebooks").toString());
+            shared = new CodebookStore(Path.of(dir), DEFAULT_CACHE_SIZE);
+        }
+        return shared;
+    }
+
+    public static synchronized void setShared(CodebookStore store) {
+        shared = store;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /** Store cb as the next version of name. */
+    public Entry save(String name, Codebook cb) throws IOException {
+        checkName(name);
+        byte[] content = content(cb);
+        Entry entry = null;
+        Path dir = root.resolve(name);
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, "new-", ".tmp");
+        try {
+            Files.write(tmp, content);
+            // Publish the complete file under the next free version. Linking fails if another
+            // process has taken that version meanwhile; then try the one after it.
+            for (int version = latestVersion(name) + 1; entry == null; version++) {
+                try {
+                    Files.createLink(dir.resolve(version + SUFFIX), tmp);
+                    entry = new Entry(name, version, sha256(content), decode(content));
+                } catch (FileAlreadyExistsException e) {
+                    // taken
+                }
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        synchronized (cache) {
+            cache.put(entry.getId(), entry);
+        }
+        Metrics.log("Stored codebook %s in %s%n", entry.getId(), dir);
+        return entry;
+    }
+
+    /** Load "name@version", or the latest version for a plain "name". */
+    public Entry load(String id) throws IOException {
+        int at = id.lastIndexOf('@');
+        if (at < 0) {
+            checkName(id);
+            int latest = latestVersion(id);
+            if (latest == 0) {
+                throw new IOException("No stored codebook named " + id + " in " + root);
+            }
+            return load(id, latest);
+        }
+        int version;
+        try {
+            version = Integer.parseInt(id.substring(at + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad codebook version in " + id);
+        }
+        return load(id.substring(0, at), version);
+    }
+
+    public Entry load(String name, int version) throws IOException {
+        checkName(name);
+        String id = name + "@" + version;
+        synchronized (cache) {
+            Entry cached = cache.get(id);
+            if (cached != null) return cached;
+        }
+        Path file = root.resolve(name).resolve(version + SUFFIX);
+        if (!Files.isRegularFile(file)) {
+            throw new IOException("No stored codebook " + id + " in " + root);
+        }
+        byte[] content = Files.readAllBytes(file);
+        Entry entry = new Entry(name, version, sha256(content), decode(content));
+        synchronized (cache) {
+            cache.put(id, entry);
+        }
+        return entry;
+    }
+
+    /** Load the codebook a .pkcc file refers to, checking that its content is still what was referenced. */
+    public Entry resolve(String id, byte[] hash) throws IOException {
+        Entry entry = load(id);
+        if (!MessageDigest.isEqual(entry.hash, hash)) {
+            throw new IOException("Stored codebook " + id + " does not match the referenced content hash");
+        }
+        return entry;
+    }
+
+    // Highest stored version of name, 0 if none
+    public int latestVersion(String name) throws IOException {
+        checkName(name);
+        Path dir = root.resolve(name);
+        if (!Files.isDirectory(dir)) return 0;
+        int latest = 0;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path p : (Iterable<Path>) files::iterator) {
+                String file = p.getFileName().toString();
+                if (!file.endsWith(SUFFIX)) continue;
+                try {
+                    latest = Math.max(latest, Integer.parseInt(file.substring(0, file.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // not a version file
+                }
+            }
+        }
+        return latest;
+    }
+
+    private static void checkName(String name) {
+        if (name == null || !NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Codebook names may only use letters, digits, '.', '_' and '-': " + name);
+        }
+    }
+
+    // magic, format version, block size, K, then K quantized centroids
+    private static byte[] content(Codebook cb) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(bytes)) {
+            dos.writeBytes("PKCB");
+            dos.writeShort(FORMAT_VERSION);
+            dos.writeByte(cb.getBlockWidth());
+            dos.writeByte(cb.getBlockHeight());
+            dos.writeInt(cb.getSize());
+            dos.write(cb.toBytes());
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // in-memory stream
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Codebook decode(byte[] content) throws IOException {
+        try {
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(content));
+            byte[] magic = new byte[4];
+            dis.readFully(magic);
+            if (!Arrays.equals(magic, "PKCB".getBytes(StandardCharsets.US_ASCII))) {
+                throw new IOException("Bad codebook magic");
+            }
+            int format = dis.readShort() & 0xFFFF;
+            if (format < 1 || format > FORMAT_VERSION) {
+                throw new IOException("Unsupported codebook format " + format);
+            }
+            int blockW = dis.readUnsignedByte();
+            int blockH = dis.readUnsignedByte();
+            int k = format >= 2 ? dis.readInt() : dis.readUnsignedShort();
+            if (blockW == 0 || blockH == 0 || k <= 0 || k > PkccWriter.MAX_K) {
+                throw new IOException("Invalid codebook: " + k + " codewords of " + blockW + "x" + blockH);
+            }
+            float[][] centroids = new float[k][blockW * blockH];
+            for (float[] c : centroids) {
+                for (int j = 0; j < c.length; j++) {
+                    c[j] = dis.readUnsignedByte();
+                }
+            }
+            if (dis.available() > 0) {
+                throw new IOException("Trailing bytes after codebook");
+            }
+            return new Codebook(blockW, blockH, centroids);
+        } catch (EOFException e) {
+            throw new EOFException("Truncated codebook");
+        }
+    }
+
+    private static byte[] sha256(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // required of every Java platform
+        }
+    }
+}
@@ -1,77 +1,449 @@
 package main.java.io;
 
 import main.java.core.HuffmanCodec;
-import main.java.core.HuffmanNode;
+import main.java.core.HuffmanDecodeTable;
+import main.java.core.Metrics;
+import main.java.core.ParallelEngine;
 import main.java.model.Codebook;
 import main.java.model.EncodedImage;
 import main.java.app.Main;
 import main.java.app.PkcCompressor;
 
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
 
 public class PkccReader {
+    public static final int FLAG_CODEBOOK_REF = 1; // v5: codebook is a CodebookStore reference
+    public static final int MAX_STAGES = 16;       // v7: most residual VQ stages a file may have
+    private static final int MIN_VERSION = 2;      // oldest file version still read
+
+    // Everything in front of the entropy-coded data
+    private static final class Header {
+        int version;
+        int width, height;
+        int blockW, blockH;
+        int k;
+        int maxCodeLength;
+        Codebook codebook;
+        HuffmanDecodeTable decodeTable;
+        int blocksX, blocksY;
+        int tileRows;          // v4+: block rows per tile
+        int[] tileLengths;     // v4+: byte length of each tile's segment
+        int flags;             // v5+
+        String codebookId;     // v5+, FLAG_CODEBOOK_REF: stored codebook ID
+        int stages = 1;        // v7+: VQ stages, > 1 for residual VQ
+        int[] stageK;          // v7+: K of every stage, stageK[0] == k
+        Codebook[] codebooks;  // per stage, codebooks[0] == codebook
+        HuffmanDecodeTable[] decodeTables; // per stage, decodeTables[0] == decodeTable
+    }
+
     public static EncodedImage read(InputStream in) throws IOException {
+        try {
+            return read(in, 1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding", e);
+        }
+    }
+
+    /**
+     * Read a whole .pkcc file. For tiled (v4) files with numThreads > 1, the independent tile
+     * segments are Huffman-decoded in parallel.
+     */
+    public static EncodedImage read(InputStream in, int numThreads) throws IOException, InterruptedException {
         DataInputStream dis = new DataInputStream(in);
+        Header h = readHeader(dis);
+        return decodeIndices(h, ByteBuffer.wrap(dis.readAllBytes()), numThreads);
+    }
+
+    /**
+     * Read a whole .pkcc file through a read-only memory mapping. The header and codebook are
+     * parsed in bulk from the mapping, and the entropy decoder reads its segments straight out
+     * of it without intermediate copies.
+     */
+    public static EncodedImage read(Path path, int numThreads) throws IOException, InterruptedException {
+        Metrics.Timer timer = Metrics.start(Metrics.Stage.READ);
+        ByteBuffer map = map(path);
+        long fileSize = map.remaining();
+        Header h = parseFixedHeader(map);
+        parseStages(h, map);
+        parseReference(h, map);
+        parseTables(h, map);
+        EncodedImage encoded = decodeIndices(h, map.slice(), numThreads);
+        timer.stop(fileSize, (long) encoded.getStages() * encoded.getBlockIndices().length * Integer.BYTES);
+        return encoded;
+    }
+
+    /**
+     * Read a single tile of a v4 file, skipping over the segments in front of it.
+     * Returns the horizontal strip covered by the tile as its own EncodedImage.
+     */
+    public static EncodedImage readTile(InputStream in, int tile) throws IOException {
+        DataInputStream dis = new DataInputStream(in);
+        Header h = readHeader(dis);
+        checkTile(h, tile);
+        dis.skipNBytes(tileOffset(h, tile));
+        byte[] segment = new byte[h.tileLengths[tile]];
+        dis.readFully(segment);
+        return decodeTile(h, ByteBuffer.wrap(segment), tile);
+    }
 
-        byte[] magic = new byte[4];
-        dis.readFully(magic);
-        if (!new String(magic, StandardCharsets.US_ASCII).equals("PKCC")) {
-            throw new IOException("Bad magic");
+    // Same as readTile(InputStream, int), seeking within a memory mapping of the file
+    public static EncodedImage readTile(Path path, int tile) throws IOException {
+        ByteBuffer map = map(path);
+        Header h = parseFixedHeader(map);
+        parseStages(h, map);
+        parseReference(h, map);
+        parseTables(h, map);
+        checkTile(h, tile);
+        int offset = map.position() + (int) tileOffset(h, tile);
+        if (offset + h.tileLengths[tile] > map.limit()) {
+            throw new EOFException("Truncated tile segment " + tile);
         }
+        return decodeTile(h, map.slice(offset, h.tileLengths[tile]), tile);
+    }
 
-        int version = dis.readUnsignedShort();
-        if(version != Main.VERSION) {
-            System.out.printf("WARNING: Codec version %s does not match file version %s", Main.VERSION, version);
+    private static ByteBuffer map(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large to map: " + size + " bytes");
+            }
+            // The mapping stays valid after the channel is closed
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
         }
+    }
 
-        int width  = dis.readInt();
-        int height = dis.readInt();
-        int blockW = dis.readUnsignedByte();
-        int blockH = dis.readUnsignedByte();
-        int k      = dis.readUnsignedShort();
+    // 'data' starts at the first byte after the header and tables
+    private static EncodedImage decodeIndices(Header h, ByteBuffer data, int numThreads)
+            throws IOException, InterruptedException {
+        int[][] indices = new int[h.stages][h.blocksX * h.blocksY];
 
-        int vectorLength = blockW * blockH;
-        float[][] centroids = new float[k][vectorLength];
+        if (h.version < 4) {
+            // --- Versions 2/3: one Huffman stream for all indices ---
+            BitInputStream bin = new BitInputStream(data);
+            int[] stage0 = indices[0];
+            for (int i = 0; i < stage0.length; i++) {
+                stage0[i] = h.decodeTable.decodeSymbol(bin);
+            }
+            return new EncodedImage(h.width, h.height, h.blockW, h.blockH, h.codebook, stage0);
+        }
 
-        for (int i = 0; i < k; i++) {
-            for (int j = 0; j < vectorLength; j++) {
-                int gray = dis.readUnsignedByte();
-                centroids[i][j] = gray;
+        // --- Version 4: one byte-aligned segment per tile ---
+        int tiles = h.tileLengths.length;
+        int[] offsets = new int[tiles + 1];
+        for (int t = 0; t < tiles; t++) {
+            offsets[t + 1] = Math.addExact(offsets[t], h.tileLengths[t]);
+        }
+        if (offsets[tiles] > data.remaining()) {
+            throw new EOFException("Truncated tile segments: expected " + offsets[tiles]
+                    + " bytes, found " + data.remaining());
+        }
+
+        int threads = Math.max(1, Math.min(numThreads, tiles));
+        if (threads == 1) {
+            for (int t = 0; t < tiles; t++) {
+                decodeTile(h, data.slice(offsets[t], h.tileLengths[t]), t, indices);
+            }
+        } else {
+            Metrics.log("PkccReader: decoding %d tiles with %d threads%n", tiles, threads);
+            try {
+                ParallelEngine.shared().forEach(tiles, tile ->
+                        decodeTile(h, data.slice(offsets[tile], h.tileLengths[tile]), tile, indices));
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new RuntimeException("PkccReader tile worker failed", e.getCause());
+            }
+        }
+
+        return new EncodedImage(h.width, h.height, h.blockW, h.blockH, h.codebooks, indices);
+    }
+
+    private static void checkTile(Header h, int tile) throws IOException {
+        if (h.version < 4) {
+            throw new IOException("File version " + h.version + " is not tiled");
+        }
+        if (tile < 0 || tile >= h.tileLengths.length) {
+            throw new IllegalArgumentException("Tile " + tile + " out of range [0," + h.tileLengths.length + ")");
+        }
+    }
+
+    private static long tileOffset(Header h, int tile) {
+        long offset = 0;
+        for (int t = 0; t < tile; t++) {
+            offset += h.tileLengths[t];
+        }
+        return offset;
+    }
+
+    private static EncodedImage decodeTile(Header h, ByteBuffer segment, int tile) throws IOException {
+        int byStart = tile * h.tileRows;
+        int rows = Math.min(h.tileRows, h.blocksY - byStart);
+        int[][] indices = new int[h.stages][rows * h.blocksX];
+        decodeSymbols(h, new BitInputStream(segment), indices, 0, indices[0].length);
+        return new EncodedImage(h.width, rows * h.blockH, h.blockW, h.blockH, h.codebooks, indices);
+    }
+
+    private static void decodeTile(Header h, ByteBuffer segment, int tile, int[][] indices) throws IOException {
+        int start = tile * h.tileRows * h.blocksX;
+        int end = Math.min(h.blocksY, (tile + 1) * h.tileRows) * h.blocksX;
+        decodeSymbols(h, new BitInputStream(segment), indices, start, end);
+    }
+
+    // Blocks [start, end) of a segment: one code per block, or one per stage and block in stage order
+    private static void decodeSymbols(Header h, BitInputStream bin, int[][] indices, int start, int end)
+            throws IOException {
+        if (h.stages == 1) {
+            int[] stage0 = indices[0];
+            for (int i = start; i < end; i++) {
+                stage0[i] = h.decodeTable.decodeSymbol(bin);
+            }
+            return;
+        }
+        for (int i = start; i < end; i++) {
+            for (int st = 0; st < h.stages; st++) {
+                indices[st][i] = h.decodeTables[st].decodeSymbol(bin);
+            }
+        }
+    }
+
+    // Size of the fixed part of the header (magic through tileRows) for each version
+    private static int fixedHeaderLength(int version) throws IOException {
+        switch (version) {
+            case 2: return 18;
+            case 3: return 19;
+            case 4: return 23;
+            case 5: return 24;
+            case 6: return 26;
+            case 7: return 27;
+            default: throw new IOException("Unsupported file version " + version + ", this codec reads versions "
+                    + MIN_VERSION + " to " + Main.VERSION);
+        }
+    }
+
+    // Size of the codebook, code length and tile tables that follow the fixed header (and reference)
+    private static long tablesLength(Header h) {
+        long len = 0;
+        for (int st = 0; st < h.stages; st++) {
+            len += h.stageK[st]; // code lengths
+            if (st > 0 || h.codebookId == null) {
+                len += (long) h.stageK[st] * h.blockW * h.blockH;
             }
         }
+        if (h.version >= 4) {
+            len += 4L * tileCount(h);
+        }
+        return len;
+    }
+
+    private static int tileCount(Header h) {
+        return (h.blocksY + h.tileRows - 1) / h.tileRows;
+    }
 
-        Codebook cb = new Codebook(blockW, blockH, centroids);
+    // Stream path: read the header and tables with two bulk reads, then parse them from memory
+    private static Header readHeader(DataInputStream dis) throws IOException {
+        byte[] fixed = new byte[fixedHeaderLength(Main.VERSION)];
+        dis.readFully(fixed, 0, 6);
+        int version = ((fixed[4] & 0xFF) << 8) | (fixed[5] & 0xFF);
+        int fixedLength = fixedHeaderLength(version);
+        dis.readFully(fixed, 6, fixedLength - 6);
+        Header h = parseFixedHeader(ByteBuffer.wrap(fixed, 0, fixedLength));
+        if (h.stages > 1) {
+            byte[] stageK = new byte[4 * (h.stages - 1)];
+            dis.readFully(stageK);
+            parseStages(h, ByteBuffer.wrap(stageK));
+        } else {
+            parseStages(h, ByteBuffer.allocate(0));
+        }
+        if ((h.flags & FLAG_CODEBOOK_REF) != 0) {
+            int idLength = dis.readUnsignedShort();
+            byte[] reference = new byte[2 + idLength + CodebookStore.HASH_LENGTH];
+            reference[0] = (byte) (idLength >>> 8);
+            reference[1] = (byte) idLength;
+            dis.readFully(reference, 2, reference.length - 2);
+            parseReference(h, ByteBuffer.wrap(reference));
+        }
 
-        int blocksX = width  / blockW;
-        int blocksY = height / blockH;
-        int totalBlocks = blocksX * blocksY;
+        long tablesLength = tablesLength(h);
+        if (tablesLength > Integer.MAX_VALUE) {
+            throw new IOException("Header tables too large: " + tablesLength + " bytes");
+        }
+        byte[] tables = new byte[(int) tablesLength];
+        dis.readFully(tables);
+        parseTables(h, ByteBuffer.wrap(tables));
+        return h;
+    }
 
-        // --- Version 2: Huffman-coded indices ---
+    private static Header parseFixedHeader(ByteBuffer buf) throws IOException {
+        Header h = new Header();
+        try {
+            byte[] magic = new byte[4];
+            buf.get(magic);
+            if (!new String(magic, StandardCharsets.US_ASCII).equals("PKCC")) {
+                throw new IOException("Bad magic");
+            }
 
-        // 1) Read code lengths
-        int[] codeLen = new int[k];
-        for (int s = 0; s < k; s++) {
-            codeLen[s] = dis.readUnsignedByte(); // 0..255
+            h.version = buf.getShort() & 0xFFFF;
+            fixedHeaderLength(h.version); // rejects unknown versions
+
+            h.width  = buf.getInt();
+            h.height = buf.getInt();
+            h.blockW = buf.get() & 0xFF;
+            h.blockH = buf.get() & 0xFF;
+            // v6 widens K from a short to an int
+            h.k      = h.version >= 6 ? buf.getInt() : buf.getShort() & 0xFFFF;
+            // v3 records the code length limit; v2 lengths are only bounded by the byte field
+            h.maxCodeLength = h.version >= 3 ? buf.get() & 0xFF : 255;
+            // v4 splits the indices into tiles of block rows
+            h.tileRows = h.version >= 4 ? buf.getInt() : 0;
+            // v5 flags, e.g. whether the codebook is stored elsewhere
+            h.flags = h.version >= 5 ? buf.get() & 0xFF : 0;
+            // v7 residual VQ: number of codebooks, each block has one index into every one
+            h.stages = h.version >= 7 ? buf.get() & 0xFF : 1;
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Truncated PKCC header");
         }
 
-        // 2) Rebuild canonical codes
-        int[] codeBits = new int[k];
-        HuffmanCodec.buildCanonicalCodes(codeLen, codeBits);
+        if (h.blockW == 0 || h.blockH == 0) {
+            throw new IOException("Invalid block size: " + h.blockW + "x" + h.blockH);
+        }
+        if (h.k < 1 || h.k > PkccWriter.MAX_K) {
+            throw new IOException("Invalid codebook size: " + h.k);
+        }
+        if ((h.flags & ~FLAG_CODEBOOK_REF) != 0) {
+            throw new IOException("Unknown header flags: " + h.flags);
+        }
+        if (h.stages < 1 || h.stages > MAX_STAGES) {
+            throw new IOException("Invalid stage count: " + h.stages);
+        }
+        if (h.stages > 1 && (h.flags & FLAG_CODEBOOK_REF) != 0) {
+            throw new IOException("Residual VQ files cannot reference a stored codebook");
+        }
+        if (h.version >= 4 && h.tileRows <= 0) {
+            throw new IOException("Invalid tile height: " + h.tileRows);
+        }
+        h.blocksX = h.width  / h.blockW;
+        h.blocksY = h.height / h.blockH;
+        return h;
+    }
 
-        // 3) Build decoding tree
-        HuffmanNode decodeRoot = HuffmanCodec.buildDecodingTree(codeLen, codeBits);
+    // v7: K of each residual stage, after the fixed header; stage 0's K is in the fixed header
+    private static void parseStages(Header h, ByteBuffer buf) throws IOException {
+        h.stageK = new int[h.stages];
+        h.stageK[0] = h.k;
+        try {
+            for (int st = 1; st < h.stages; st++) {
+                h.stageK[st] = buf.getInt();
+                if (h.stageK[st] < 1 || h.stageK[st] > PkccWriter.MAX_K) {
+                    throw new IOException("Invalid codebook size for stage " + st + ": " + h.stageK[st]);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Truncated PKCC stage sizes");
+        }
+    }
 
-        // 4) Decode exactly totalBlocks symbols from bitstream
-        int[] indices = new int[totalBlocks];
-        BitInputStream bin = new BitInputStream(dis);
-        for (int i = 0; i < totalBlocks; i++) {
-            int sym = HuffmanCodec.decodeSymbol(bin, decodeRoot);
-            indices[i] = sym;
+    // v5 stored codebook reference: ID length, UTF-8 ID, content hash; resolved through the shared store
+    private static void parseReference(Header h, ByteBuffer buf) throws IOException {
+        if ((h.flags & FLAG_CODEBOOK_REF) == 0) return;
+        byte[] id, hash = new byte[CodebookStore.HASH_LENGTH];
+        try {
+            id = new byte[buf.getShort() & 0xFFFF];
+            buf.get(id);
+            buf.get(hash);
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Truncated codebook reference");
         }
+        h.codebookId = new String(id, StandardCharsets.UTF_8);
 
-        return new EncodedImage(width, height, blockW, blockH, cb, indices);
+        Codebook cb = CodebookStore.shared().resolve(h.codebookId, hash).getCodebook();
+        if (cb.getSize() != h.k || cb.getBlockWidth() != h.blockW || cb.getBlockHeight() != h.blockH) {
+            throw new IOException("Stored codebook " + h.codebookId + " has " + cb.getSize() + " codewords of "
+                    + cb.getBlockWidth() + "x" + cb.getBlockHeight() + ", file expects " + h.k + " of "
+                    + h.blockW + "x" + h.blockH);
+        }
+        h.codebook = cb;
+    }
+
+    private static void parseTables(Header h, ByteBuffer buf) throws IOException {
+        if (buf.remaining() < tablesLength(h)) {
+            throw new EOFException("Truncated PKCC codebook/code tables");
+        }
+
+        // Codebooks: K centroids of blockW*blockH gray bytes, unless it was referenced, then
+        // (v7) every residual stage's K centroids as signed bytes
+        h.codebooks = new Codebook[h.stages];
+        h.codebooks[0] = h.codebook;
+        for (int st = h.codebookId == null ? 0 : 1; st < h.stages; st++) {
+            h.codebooks[st] = readCodebook(h, buf, h.stageK[st], st > 0);
+        }
+        h.codebook = h.codebooks[0];
+
+        h.decodeTables = new HuffmanDecodeTable[h.stages];
+        for (int st = 0; st < h.stages; st++) {
+            int k = h.stageK[st];
+
+            // 1) Read code lengths
+            byte[] rawLen = new byte[k];
+            buf.get(rawLen);
+            int[] codeLen = new int[k];
+            for (int s = 0; s < k; s++) {
+                codeLen[s] = rawLen[s] & 0xFF; // 0..maxCodeLength
+                if (codeLen[s] > h.maxCodeLength) {
+                    throw new IOException("Code length " + codeLen[s] + " exceeds header limit " + h.maxCodeLength);
+                }
+            }
+
+            // 2) Rebuild canonical codes
+            int[] codeBits = new int[k];
+            HuffmanCodec.buildCanonicalCodes(codeLen, codeBits);
+
+            // 3) Build table-driven decoder
+            try {
+                h.decodeTables[st] = new HuffmanDecodeTable(codeLen, codeBits);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid Huffman code lengths", e);
+            }
+        }
+        h.decodeTable = h.decodeTables[0];
+
+        // 4) v4: tile offset index (segment byte lengths, in tile order)
+        if (h.version >= 4) {
+            int tiles = tileCount(h);
+            h.tileLengths = new int[tiles];
+            buf.asIntBuffer().get(h.tileLengths);
+            buf.position(buf.position() + 4 * tiles);
+            for (int t = 0; t < tiles; t++) {
+                if (h.tileLengths[t] < 0) {
+                    throw new IOException("Invalid tile length: " + h.tileLengths[t]);
+                }
+            }
+        }
+    }
+
+    private static Codebook readCodebook(Header h, ByteBuffer buf, int k, boolean signed) {
+        int vectorLength = h.blockW * h.blockH;
+        byte[] raw = new byte[k * vectorLength];
+        buf.get(raw);
+        float[][] centroids = new float[k][vectorLength];
+        int pos = 0;
+        for (int i = 0; i < k; i++) {
+            float[] c = centroids[i];
+            for (int j = 0; j < vectorLength; j++, pos++) {
+                c[j] = signed ? raw[pos] : raw[pos] & 0xFF;
+            }
+        }
+        return new Codebook(h.blockW, h.blockH, centroids);
     }
 }
@@ -0,0 +1,111 @@
+package main.java.io;
+
+import main.java.core.HuffmanCodec;
+import main.java.core.Metrics;
+import main.java.model.Codebook;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a tiled .pkcc file one tile at a time, for callers that never hold all block
+ * indices in memory. The Huffman code lengths must be fixed up front; every tile written must
+ * only use symbols with a nonzero code length.
+ *
+ * The tile offset index is written as zeros after the header and patched in place on close,
+ * once all segment lengths are known. The resulting file is identical in layout to
+ * {@link PkccWriter#write}.
+ */
+public final class PkccTileWriter implements AutoCloseable {
+    private final FileChannel channel;
+    private final DataOutputStream dos;
+    private final int[] codeLen;
+    private final int[] codeBits;
+    private final int blocksX, blocksY;
+    private final int tileRows;
+    private final int[] tileLengths;
+    private final long tableOffset;
+    private int nextTile = 0;
+
+    public PkccTileWriter(Path path, int width, int height, Codebook cb, int[] codeLen,
+                          int maxCodeLength, int tileRows) throws IOException {
+        this(path, width, height, cb, null, codeLen, maxCodeLength, tileRows);
+    }
+
+    // With a non-null 'stored', the file references that stored codebook instead of embedding cb
+    public PkccTileWriter(Path path, int width, int height, Codebook cb, CodebookStore.Entry stored, int[] codeLen,
+                          int maxCodeLength, int tileRows) throws IOException {
+        if (tileRows <= 0) {
+            throw new IllegalArgumentException("tileRows must be > 0");
+        }
+        this.codeLen = codeLen;
+        this.codeBits = new int[codeLen.length];
+        HuffmanCodec.buildCanonicalCodes(codeLen, codeBits);
+        this.blocksX = width / cb.getBlockWidth();
+        this.blocksY = height / cb.getBlockHeight();
+        this.tileRows = tileRows;
+        this.tileLengths = new int[(blocksY + tileRows - 1) / tileRows];
+
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.dos = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+
+        PkccWriter.writeHeader(dos, width, height, cb, stored, maxCodeLength, tileRows, codeLen);
+        this.tableOffset = dos.size();
+        for (int t = 0; t < tileLengths.length; t++) {
+            dos.writeInt(0); // placeholder, patched in close()
+        }
+    }
+
+    public int getTileCount() {
+        return tileLengths.length;
+    }
+
+    /** Huffman-code and append the next tile; 'indices' covers exactly that tile's block rows. */
+    public void writeTile(int[] indices) throws IOException {
+        if (nextTile >= tileLengths.length) {
+            throw new IllegalStateException("All " + tileLengths.length + " tiles already written");
+        }
+        int rows = Math.min(tileRows, blocksY - nextTile * tileRows);
+        if (indices.length != rows * blocksX) {
+            throw new IllegalArgumentException("Tile " + nextTile + " expects " + (rows * blocksX)
+                    + " indices, got " + indices.length);
+        }
+        for (int idx : indices) {
+            if (idx < 0 || idx >= codeLen.length || codeLen[idx] == 0) {
+                throw new IOException("Index has no Huffman code: " + idx);
+            }
+        }
+        Metrics.Timer entropy = Metrics.start(Metrics.Stage.ENTROPY_CODE);
+        byte[] segment = PkccWriter.encodeSegment(indices, 0, indices.length, codeLen, codeBits);
+        entropy.stop((long) indices.length * Integer.BYTES, segment.length);
+        Metrics.Timer write = Metrics.start(Metrics.Stage.WRITE);
+        dos.write(segment);
+        write.stop(segment.length, segment.length);
+        tileLengths[nextTile++] = segment.length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            dos.flush();
+            if (nextTile != tileLengths.length) {
+                throw new IOException("Only " + nextTile + " of " + tileLengths.length + " tiles were written");
+            }
+            ByteBuffer table = ByteBuffer.allocate(4 * tileLengths.length);
+            table.asIntBuffer().put(tileLengths);
+            long pos = tableOffset;
+            while (table.hasRemaining()) {
+                pos += channel.write(table, pos);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+}
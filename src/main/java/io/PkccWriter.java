@@ -1,82 +1,224 @@
 package main.java.io;
 
 import main.java.core.HuffmanCodec;
+import main.java.core.Metrics;
+import main.java.core.ParallelEngine;
 import main.java.model.Codebook;
 import main.java.model.EncodedImage;
 import main.java.app.Main;
 import main.java.app.PkcCompressor;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
 
 public class PkccWriter {
+    public static final int DEFAULT_TILE_ROWS = 32; // block rows per independently coded tile, and per streamed strip
+    public static final int MAX_K = 1 << 16; // largest codebook (per stage) the format holds (v6)
+
     public static void write(OutputStream out, EncodedImage encoded) throws IOException {
+        write(out, encoded, HuffmanCodec.DEFAULT_MAX_CODE_LENGTH);
+    }
+
+    public static void write(OutputStream out, EncodedImage encoded, int maxCodeLength) throws IOException {
+        try {
+            write(out, encoded, maxCodeLength, DEFAULT_TILE_ROWS, 1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding", e);
+        }
+    }
+
+    /**
+     * Write a tiled .pkcc file. Every tile of 'tileRows' block rows is Huffman-coded into
+     * its own byte-aligned segment, using numThreads workers; the segment lengths are stored in
+     * the header so readers can decode tiles independently or seek straight to one.
+     */
+    public static void write(OutputStream out, EncodedImage encoded, int maxCodeLength, int tileRows, int numThreads)
+            throws IOException, InterruptedException {
+        write(out, encoded, maxCodeLength, tileRows, numThreads, null);
+    }
+
+    /**
+     * Same, but if 'stored' is not null the file references that stored codebook by ID and content
+     * hash instead of embedding it. encoded must have been encoded with stored's codebook.
+     *
+     * Residual images (more than one stage) embed every stage's codebook and get one Huffman code
+     * per stage; each tile segment holds a block's stage codes one after the other. They cannot
+     * reference a stored codebook.
+     */
+    public static void write(OutputStream out, EncodedImage encoded, int maxCodeLength, int tileRows, int numThreads,
+                             CodebookStore.Entry stored) throws IOException, InterruptedException {
+        if (tileRows <= 0) {
+            throw new IllegalArgumentException("tileRows must be > 0");
+        }
+        if (stored != null && encoded.getStages() > 1) {
+            throw new IllegalArgumentException("Residual images cannot reference a stored codebook");
+        }
         DataOutputStream dos = new DataOutputStream(out);
 
-        Codebook cb = encoded.getCodebook();
+        int stages = encoded.getStages();
+        Codebook[] cbs = new Codebook[stages];
+        int[][] indices = new int[stages][];
+        int[][] codeLen = new int[stages][];
+        int[][] codeBits = new int[stages][];
         int width  = encoded.getWidth();
         int height = encoded.getHeight();
-        int k      = cb.getSize();
+        int blockW = encoded.getBlockWidth();
+        int blockH = encoded.getBlockHeight();
+        Metrics.Timer entropy = Metrics.start(Metrics.Stage.ENTROPY_CODE);
+
+        for (int st = 0; st < stages; st++) {
+            cbs[st] = encoded.getCodebook(st);
+            indices[st] = encoded.getBlockIndices(st);
+            int k = cbs[st].getSize();
+
+            // 1) Build frequency table
+            int[] freq = new int[k];
+            for (int idx : indices[st]) {
+                if (idx < 0 || idx >= k) {
+                    throw new IOException("Index out of range: " + idx);
+                }
+                freq[idx]++;
+            }
+
+            // 2) Build length-limited code lengths
+            codeLen[st] = HuffmanCodec.buildCodeLengths(freq, maxCodeLength);
+
+            // 3) Build canonical codes
+            codeBits[st] = new int[k];
+            HuffmanCodec.buildCanonicalCodes(codeLen[st], codeBits[st]);
+        }
+
+        // 4) Huffman-code each tile into its own byte-aligned segment
+        int blocksX = width  / blockW;
+        int blocksY = height / blockH;
+        int tiles = (blocksY + tileRows - 1) / tileRows;
+        byte[][] segments = new byte[tiles][];
+
+        int threads = Math.max(1, Math.min(numThreads, tiles));
+        Metrics.log("Writer: Huffman coding %d symbols in %d tiles%n", (long) stages * indices[0].length, tiles);
+        if (threads == 1) {
+            for (int t = 0; t < tiles; t++) {
+                segments[t] = encodeSegment(indices, t * tileRows * blocksX,
+                        Math.min(blocksY, (t + 1) * tileRows) * blocksX, codeLen, codeBits);
+            }
+        } else {
+            try {
+                ParallelEngine.shared().forEach(tiles, tile ->
+                        segments[tile] = encodeSegment(indices, tile * tileRows * blocksX,
+                                Math.min(blocksY, (tile + 1) * tileRows) * blocksX, codeLen, codeBits));
+            } catch (ExecutionException e) {
+                throw new RuntimeException("PkccWriter tile worker failed", e.getCause());
+            }
+        }
+
+        long coded = 0;
+        for (byte[] segment : segments) {
+            coded += segment.length;
+        }
+        entropy.stop((long) stages * indices[0].length * Integer.BYTES, coded);
+
+        // 5) Header, codebooks and code lengths
+        Metrics.Timer write = Metrics.start(Metrics.Stage.WRITE);
+        writeHeader(dos, width, height, cbs, stored, maxCodeLength, tileRows, codeLen);
+
+        // 6) Tile offset index (segment lengths), then the segments themselves
+        for (byte[] segment : segments) {
+            dos.writeInt(segment.length);
+        }
+        for (byte[] segment : segments) {
+            dos.write(segment);
+        }
+        dos.flush();
+        write.stop(coded, dos.size());
+    }
+
+    // Single-stage header, as written by PkccTileWriter
+    static void writeHeader(DataOutputStream dos, int width, int height, Codebook cb, CodebookStore.Entry stored,
+                            int maxCodeLength, int tileRows, int[] codeLen) throws IOException {
+        writeHeader(dos, width, height, new Codebook[]{cb}, stored, maxCodeLength, tileRows, new int[][]{codeLen});
+    }
+
+    // Header, codebooks (or stored codebook reference) and code lengths; a tile offset index must follow
+    static void writeHeader(DataOutputStream dos, int width, int height, Codebook[] cbs, CodebookStore.Entry stored,
+                            int maxCodeLength, int tileRows, int[][] codeLen) throws IOException {
+        Codebook cb = cbs[0];
+        if (stored != null && (stored.getCodebook() != cb || cbs.length > 1)) {
+            throw new IllegalArgumentException("Image was not encoded with stored codebook " + stored.getId());
+        }
+        if (cbs.length > PkccReader.MAX_STAGES) {
+            throw new IllegalArgumentException(cbs.length + " stages, at most " + PkccReader.MAX_STAGES);
+        }
         int blockW = cb.getBlockWidth();
         int blockH = cb.getBlockHeight();
-        int[] indices = encoded.getBlockIndices();
+        for (Codebook stage : cbs) {
+            int k = stage.getSize();
+            if (k < 1 || k > MAX_K) {
+                throw new IllegalArgumentException("Codebook size " + k + " outside 1.." + MAX_K);
+            }
+        }
 
-        // Header
         dos.writeBytes("PKCC");    // magic
         dos.writeShort(Main.VERSION);        // version
         dos.writeInt(width);
         dos.writeInt(height);
         dos.writeByte(blockW);
         dos.writeByte(blockH);
-        dos.writeShort(k);
-
-        // Codebook: quantize centroids to bytes
-        int vectorLength = blockW * blockH;
-        for (int i = 0; i < k; i++) {
-            float[] c = cb.getCentroid(i);
-            for (int j = 0; j < vectorLength; j++) {
-                int gray = Math.round(c[j]);
-                if (gray < 0) gray = 0;
-                if (gray > 255) gray = 255;
-                dos.writeByte(gray);
-            }
+        dos.writeInt(cb.getSize());          // v6: int, so K can reach MAX_K
+        dos.writeByte(maxCodeLength);        // v3: Huffman code length limit
+        dos.writeInt(tileRows);              // v4: block rows per tile
+        dos.writeByte(stored != null ? PkccReader.FLAG_CODEBOOK_REF : 0); // v5: flags
+        dos.writeByte(cbs.length);           // v7: VQ stages
+        for (int st = 1; st < cbs.length; st++) {
+            dos.writeInt(cbs[st].getSize()); // v7: K of each residual stage
         }
 
-        // 1) Build frequency table
-        int[] freq = new int[k];
-        for (int idx : indices) {
-            if (idx < 0 || idx >= k) {
-                throw new IOException("Index out of range: " + idx);
-            }
-            freq[idx]++;
+        if (stored != null) {
+            // v5 reference: ID, then SHA-256 of the stored codebook
+            byte[] id = stored.getId().getBytes(StandardCharsets.UTF_8);
+            dos.writeShort(id.length);
+            dos.write(id);
+            dos.write(stored.getHash());
+        } else {
+            // Codebook: quantize centroids to bytes
+            dos.write(cb.toBytes());
+        }
+        for (int st = 1; st < cbs.length; st++) {
+            dos.write(cbs[st].toSignedBytes()); // v7: residual codebooks, signed
         }
 
-        // 2) Build code lengths
-        int[] codeLen = HuffmanCodec.buildCodeLengths(freq);
-
-        // 3) Build canonical codes
-        int[] codeBits = new int[k];
-        HuffmanCodec.buildCanonicalCodes(codeLen, codeBits);
-
-        // 4) Write code lengths (K bytes, zero = unused symbol)
-        System.out.println("Writer: writing Huffman code lengths for " + k + " symbols");
-        for (int s = 0; s < k; s++) {
-            int len = codeLen[s];
-            if (len > 255) {
-                throw new IOException("Code length too large: " + len);
+        // Code lengths (K bytes per stage, zero = unused symbol)
+        for (int st = 0; st < cbs.length; st++) {
+            for (int len : codeLen[st]) {
+                if (len > maxCodeLength) {
+                    throw new IOException("Code length too large: " + len);
+                }
+                dos.writeByte(len); // 0..maxCodeLength
             }
-            dos.writeByte(len); // 0..255
         }
+    }
+
+    // Huffman-code indices[start, end) into a byte-aligned segment
+    static byte[] encodeSegment(int[] indices, int start, int end, int[] codeLen, int[] codeBits) throws IOException {
+        return encodeSegment(new int[][]{indices}, start, end, new int[][]{codeLen}, new int[][]{codeBits});
+    }
 
-        // 5) Write Huffman-coded indices as bitstream
-        System.out.println("Writer: writing Huffman-coded indices: " + indices.length + " symbols");
-        try (BitOutputStream bout = new BitOutputStream(dos)) {
-            for (int idx : indices) {
-                int len = codeLen[idx];
-                int code = codeBits[idx];
-                bout.writeBits(code, len);
+    // Same for every stage: block i's codes for stage 0, 1, ... in turn
+    static byte[] encodeSegment(int[][] indices, int start, int end, int[][] codeLen, int[][] codeBits)
+            throws IOException {
+        ByteArrayOutputStream segment = new ByteArrayOutputStream();
+        try (BitOutputStream bout = new BitOutputStream(segment)) {
+            for (int i = start; i < end; i++) {
+                for (int st = 0; st < indices.length; st++) {
+                    int idx = indices[st][i];
+                    bout.writeBits(codeBits[st][idx], codeLen[st][idx]);
+                }
             }
         }
+        return segment.toByteArray();
     }
 }
@@ -29,7 +29,9 @@ public final class Codebook {
 
     /**
      * Brute-force nearest neighbor search.
-     * Returns index of centroid with minimal squared distance.
+     * Returns index of centroid with minimal squared distance. A centroid's sum stops as soon
+     * as it exceeds the best distance so far (partial distance elimination), which doesn't
+     * change the result: the remaining terms are non-negative.
      */
     public int findNearest(float[] vector) {
         int bestIndex = 0;
@@ -38,7 +40,7 @@ public final class Codebook {
         for (int i = 0; i < size; i++) {
             float[] c = centroids[i];
             float dist = 0f;
-            for (int j = 0; j < vectorLength; j++) {
+            for (int j = 0; j < vectorLength && dist <= bestDist; j++) {
                 float d = vector[j] - c[j];
                 dist += d * d;
             }
@@ -50,6 +52,44 @@ public final class Codebook {
         return bestIndex;
     }
 
+    /**
+     * Centroids rounded and clamped to 0..255, codeword after codeword (K * vectorLength bytes):
+     * the form stored in .pkcc files and the table the decoder copies pixels from.
+     */
+    public byte[] toBytes() {
+        byte[] table = new byte[size * vectorLength];
+        int pos = 0;
+        for (int i = 0; i < size; i++) {
+            float[] c = centroids[i];
+            for (int j = 0; j < vectorLength; j++) {
+                int gray = Math.round(c[j]);
+                if (gray < 0) gray = 0;
+                if (gray > 255) gray = 255;
+                table[pos++] = (byte) gray;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Same for a residual VQ stage: centroids rounded and clamped to -128..127, stored as signed
+     * bytes. The decoder adds them to the earlier stages' pixels.
+     */
+    public byte[] toSignedBytes() {
+        byte[] table = new byte[size * vectorLength];
+        int pos = 0;
+        for (int i = 0; i < size; i++) {
+            float[] c = centroids[i];
+            for (int j = 0; j < vectorLength; j++) {
+                int r = Math.round(c[j]);
+                if (r < -128) r = -128;
+                if (r > 127) r = 127;
+                table[pos++] = (byte) r;
+            }
+        }
+        return table;
+    }
+
     public int getBlockWidth() {
         return width;
     }
@@ -0,0 +1,147 @@
+package main.java.model;
+
+import java.util.Arrays;
+
+/**
+ * Exact nearest-codeword search in sub-linear average time, for large codebooks.
+ *
+ * Codewords are sorted by the sum of their components. For a query x and a codeword c of n
+ * components, ||x - c||^2 >= (sum(x) - sum(c))^2 / n (Cauchy-Schwarz), so a search starts at
+ * the codewords whose sums are closest to the query's, walks outwards in both directions and
+ * stops once this bound exceeds the best distance found so far. Inside that window a codeword
+ * is also skipped when the triangle inequality on norms, ||x - c|| >= | ||x|| - ||c|| |, rules
+ * it out, before its distance is computed, and a distance computation stops as soon as its
+ * partial sum exceeds the best distance (partial distance elimination). The walk's first
+ * codeword, the one whose mean is closest to the query's, is a good enough first guess that
+ * seeding the search with another one (such as the previous block's) doesn't pay.
+ *
+ * Distances are accumulated with the same float operations, in the same order, as
+ * {@link FlatCodebook}'s scan, both bounds keep a relative safety margin, and ties resolve to
+ * the lowest codeword index, so the result equals the brute-force one for every input.
+ */
+public final class CodebookIndex {
+    // Relative safety margin on the bounds, well above float rounding in squared distances
+    private static final double BOUND_EPS = 1e-4;
+
+    private final int size;
+    private final int vectorLength;
+    private final float[] rows;   // codewords by ascending sum, row-major [size][vectorLength]
+    private final int[] order;    // codeword index of each row
+    private final double[] sums;  // ascending
+    private final double[] norms; // Euclidean norm of each row
+
+    public CodebookIndex(Codebook codebook) {
+        this(centroidsOf(codebook));
+    }
+
+    public CodebookIndex(float[][] centroids) {
+        if (centroids.length == 0) {
+            throw new IllegalArgumentException("Empty codebook");
+        }
+        this.size = centroids.length;
+        this.vectorLength = centroids[0].length;
+
+        double[] sumOf = new double[size];
+        Integer[] byIndex = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            sumOf[i] = sum(centroids[i]);
+            byIndex[i] = i;
+        }
+        Arrays.sort(byIndex, (a, b) -> Double.compare(sumOf[a], sumOf[b]));
+
+        this.rows = new float[size * vectorLength];
+        this.order = new int[size];
+        this.sums = new double[size];
+        this.norms = new double[size];
+        for (int r = 0; r < size; r++) {
+            float[] c = centroids[byIndex[r]];
+            System.arraycopy(c, 0, rows, r * vectorLength, vectorLength);
+            order[r] = byIndex[r];
+            sums[r] = sumOf[byIndex[r]];
+            norms[r] = Math.sqrt(squaredNorm(c));
+        }
+    }
+
+    private static float[][] centroidsOf(Codebook codebook) {
+        float[][] centroids = new float[codebook.getSize()][];
+        for (int i = 0; i < centroids.length; i++) {
+            centroids[i] = codebook.getCentroid(i);
+        }
+        return centroids;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /** Index of the centroid with minimal squared distance; lowest index wins ties. */
+    public int findNearest(float[] vector) {
+        final double s = sum(vector);
+        final double norm = Math.sqrt(squaredNorm(vector));
+        final double invLength = 1.0 / vectorLength;
+
+        // First row whose sum is >= s; rows below it are walked downwards
+        int hi = lowerBound(s);
+        int lo = hi - 1;
+        int bestIndex = 0;
+        float bestDist = Float.POSITIVE_INFINITY;
+
+        while (lo >= 0 || hi < size) {
+            // Next row is the one with the smaller sum gap; once that gap rules a row out, the
+            // rows beyond it on both sides are ruled out too
+            int r = hi < size && (lo < 0 || sums[hi] - s <= s - sums[lo]) ? hi++ : lo--;
+            double gap = sums[r] - s;
+            if (gap * gap * invLength * (1 - BOUND_EPS) > bestDist) {
+                break;
+            }
+            double normGap = norms[r] - norm;
+            if (normGap * normGap * (1 - BOUND_EPS) > bestDist) {
+                continue;
+            }
+
+            float dist = distance(vector, r, bestDist);
+            int idx = order[r];
+            if (dist < bestDist || (dist == bestDist && idx < bestIndex)) {
+                bestDist = dist;
+                bestIndex = idx;
+            }
+        }
+        return bestIndex;
+    }
+
+    /**
+     * Squared distance to row r, accumulated like FlatCodebook's scan. Stops early once the
+     * partial sum exceeds 'limit', since the remaining terms can only add to it; the returned
+     * value is then some number > limit rather than the full distance.
+     */
+    private float distance(float[] vector, int r, float limit) {
+        float dist = 0f;
+        for (int j = 0, p = r * vectorLength; j < vectorLength; j++, p++) {
+            float d = vector[j] - rows[p];
+            dist += d * d;
+            if (dist > limit) break;
+        }
+        return dist;
+    }
+
+    private int lowerBound(double s) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sums[mid] < s) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    private static double sum(float[] v) {
+        double s = 0;
+        for (float x : v) s += x;
+        return s;
+    }
+
+    private static double squaredNorm(float[] v) {
+        double s = 0;
+        for (float x : v) s += (double) x * x;
+        return s;
+    }
+}
@@ -0,0 +1,10 @@
+package main.java.model;
+
+/**
+ * Maps a block's vector to a codeword index: exactly, as {@link FlatCodebook} does, or
+ * approximately, as {@link TreeCodebook} does. Encoders and their memo caches work with either.
+ */
+public interface CodewordSearch {
+    /** Codeword index for vector; hint is a likely answer (e.g. the previous block's), or -1. */
+    int findNearest(float[] vector, int hint);
+}
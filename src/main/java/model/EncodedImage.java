@@ -1,18 +1,38 @@
 package main.java.model;
 
+/**
+ * An image as codeword indices, one per block in row-major block order.
+ *
+ * Residual VQ images have more than one stage: every block has an index into each stage's
+ * codebook, and its pixels are the sum of the chosen codewords, clamped to 0..255. Stage 0 holds
+ * gray levels; later stages hold residuals (see {@link ResidualCodebook}).
+ */
 public final class EncodedImage {
     private final int width, height;
     private final int blockWidth, blockHeight;
-    private final Codebook codebook;
-    private final int[] blockIndices;
+    private final Codebook[] codebooks;  // per stage
+    private final int[][] stageIndices;  // per stage, one index per block
 
     public EncodedImage(int width, int height, int blockWidth, int blockHeight, Codebook codebook, int[] blockIndices) {
+        this(width, height, blockWidth, blockHeight, new Codebook[]{codebook}, new int[][]{blockIndices});
+    }
+
+    public EncodedImage(int width, int height, int blockWidth, int blockHeight, Codebook[] codebooks, int[][] stageIndices) {
+        if (codebooks.length == 0 || codebooks.length != stageIndices.length) {
+            throw new IllegalArgumentException("Need one index array per codebook, got " + stageIndices.length
+                    + " for " + codebooks.length);
+        }
+        for (int[] indices : stageIndices) {
+            if (indices.length != stageIndices[0].length) {
+                throw new IllegalArgumentException("Stages differ in block count");
+            }
+        }
         this.width = width;
         this.height = height;
         this.blockWidth = blockWidth;
         this.blockHeight = blockHeight;
-        this.codebook = codebook;
-        this.blockIndices = blockIndices;
+        this.codebooks = codebooks;
+        this.stageIndices = stageIndices;
     }
 
     public int getWidth() {
@@ -31,13 +51,24 @@ public final class EncodedImage {
         return blockHeight;
     }
 
+    // Stage 0's codebook: the only one unless residual VQ was used
     public Codebook getCodebook() {
-        return codebook;
+        return codebooks[0];
     }
 
     public int[] getBlockIndices() {
-        return blockIndices;
+        return stageIndices[0];
+    }
+
+    public int getStages() {
+        return codebooks.length;
     }
 
-    // ctor + getters...
+    public Codebook getCodebook(int stage) {
+        return codebooks[stage];
+    }
+
+    public int[] getBlockIndices(int stage) {
+        return stageIndices[stage];
+    }
 }
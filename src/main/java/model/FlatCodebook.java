@@ -0,0 +1,140 @@
+package main.java.model;
+
+/**
+ * Structure-of-arrays view of a {@link Codebook} for nearest-neighbor search.
+ *
+ * All centroids live in one contiguous float[] laid out by dimension:
+ * component j of centroid i is at {@code data[j * size + i]}. A search streams each dimension
+ * across consecutive centroids, which lets {@link VectorNearestSearch} score one SIMD register's
+ * worth of centroids per instruction. When the jdk.incubator.vector module is not in the boot
+ * layer (or -Dpkc.simd=false is set), the same layout is searched with a scalar loop.
+ *
+ * Codebooks of INDEX_MIN_SIZE codewords or more, or of INDEX_MIN_SIZE_LARGE codewords of
+ * LARGE_VECTOR components or more (8x8 blocks and up), are searched through a
+ * {@link CodebookIndex} instead, which visits only a fraction of them. Below that the full SIMD
+ * scan is faster.
+ *
+ * The scalar scan stops summing a centroid's distance once it exceeds the best so far, and may
+ * start from a hint, typically the previous block's index or the vector's last assignment:
+ * the hint's distance becomes the best so far, so the early exit cuts in from the first
+ * centroid on. The SIMD scan takes the hint too but gains little from it; the index ignores it.
+ *
+ * Distances are accumulated in the same order and with the same float operations as
+ * {@link Codebook#findNearest}, and ties resolve to the lowest index, so both return the same
+ * index for every input.
+ */
+public final class FlatCodebook implements CodewordSearch {
+    static final boolean SIMD_AVAILABLE =
+            Boolean.parseBoolean(System.getProperty("pkc.simd", "true"))
+                    && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    public static final int INDEX_MIN_SIZE = 1024;
+    public static final int INDEX_MIN_SIZE_LARGE = 128;
+    public static final int LARGE_VECTOR = 64;
+
+    private final int width, height;
+    private final int vectorLength;
+    private final int size;
+    private final float[] data; // [vectorLength][size], flattened
+    private final CodebookIndex index; // null below the thresholds
+
+    public FlatCodebook(Codebook codebook) {
+        this(codebook.getBlockWidth(), codebook.getBlockHeight(), centroidsOf(codebook));
+    }
+
+    public FlatCodebook(int width, int height, float[][] centroids) {
+        this.width = width;
+        this.height = height;
+        this.vectorLength = width * height;
+        this.size = centroids.length;
+        this.data = new float[vectorLength * size];
+        for (int i = 0; i < size; i++) {
+            float[] c = centroids[i];
+            for (int j = 0; j < vectorLength; j++) {
+                data[j * size + i] = c[j];
+            }
+        }
+        boolean indexed = size >= INDEX_MIN_SIZE || (size >= INDEX_MIN_SIZE_LARGE && vectorLength >= LARGE_VECTOR);
+        this.index = indexed ? new CodebookIndex(centroids) : null;
+    }
+
+    private static float[][] centroidsOf(Codebook codebook) {
+        float[][] centroids = new float[codebook.getSize()][];
+        for (int i = 0; i < centroids.length; i++) {
+            centroids[i] = codebook.getCentroid(i);
+        }
+        return centroids;
+    }
+
+    public static boolean isSimdAvailable() {
+        return SIMD_AVAILABLE;
+    }
+
+    public int getVectorLength() {
+        return vectorLength;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getBlockWidth() {
+        return width;
+    }
+
+    public int getBlockHeight() {
+        return height;
+    }
+
+    /** Index of the centroid with minimal squared distance; lowest index wins ties. */
+    public int findNearest(float[] vector) {
+        return findNearest(vector, -1);
+    }
+
+    /** Same, starting from centroid 'hint' as the best so far (ignored if out of range). */
+    @Override
+    public int findNearest(float[] vector, int hint) {
+        if (index != null) {
+            return index.findNearest(vector);
+        }
+        int bestIndex = 0;
+        float bestDist = Float.POSITIVE_INFINITY;
+        if (hint >= 0 && hint < size) {
+            bestIndex = hint;
+            bestDist = distance(data, size, vectorLength, vector, hint);
+        }
+        if (SIMD_AVAILABLE) {
+            return VectorNearestSearch.findNearest(data, size, vectorLength, vector, bestIndex, bestDist);
+        }
+        return findNearestScalar(data, size, vectorLength, vector, 0, bestIndex, bestDist);
+    }
+
+    /**
+     * Scalar search over centroids [from, size) of a dimension-major array, given the best
+     * centroid so far and its distance. A centroid's sum stops once it exceeds bestDist: float
+     * addition of non-negative terms never decreases, so it could no longer win or tie.
+     */
+    static int findNearestScalar(float[] data, int size, int vectorLength, float[] vector,
+                                 int from, int bestIndex, float bestDist) {
+        for (int i = from; i < size; i++) {
+            float dist = 0f;
+            for (int j = 0; j < vectorLength && dist <= bestDist; j++) {
+                float d = vector[j] - data[j * size + i];
+                dist += d * d;
+            }
+            if (dist < bestDist || (dist == bestDist && i < bestIndex)) {
+                bestDist = dist;
+                bestIndex = i;
+            }
+        }
+        return bestIndex;
+    }
+
+    private static float distance(float[] data, int size, int vectorLength, float[] vector, int i) {
+        float dist = 0f;
+        for (int j = 0; j < vectorLength; j++) {
+            float d = vector[j] - data[j * size + i];
+            dist += d * d;
+        }
+        return dist;
+    }
+}
@@ -1,5 +1,7 @@
 package main.java.model;
 
+import main.java.core.ImageUtils;
+
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
@@ -10,30 +12,21 @@ public class GrayscaleImage {
     private final int height;
     private final byte[] pixels; // row-major, 0..255 stored as signed bytes
 
+    // Read an image file as grayscale; same as ImageUtils.read on one thread
     public GrayscaleImage(String origFilePath) throws IOException {
-        File origFile = new File(origFilePath);
-        BufferedImage img = ImageIO.read(origFile);
-
-        // ******** Preprocess input file into raw grayscale byte array ********
-        this.width = img.getWidth();
-        this.height = img.getHeight();
-        this.pixels = new byte[width * height];
-
-        // ensure all pixels are in grayscale
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int rgb = img.getRGB(x, y);
-                int r = (rgb >> 16) & 0xFF;
-                int g = (rgb >> 8) & 0xFF;
-                int b = rgb & 0xFF;
-                int gray = (r * 299 + g * 587 + b * 114) / 1000; // simple luma
-                pixels[y * width + x] = (byte) gray;
-            }
-        }
+        this(ImageUtils.toGrayscale(read(origFilePath)));
+    }
+
+    private GrayscaleImage(GrayscaleImage other) {
+        this(other.width, other.height, other.pixels);
+    }
 
-        if (pixels.length != width * height) {
-            throw new IllegalArgumentException("Pixel buffer length != width*height");
+    private static BufferedImage read(String origFilePath) throws IOException {
+        BufferedImage img = ImageIO.read(new File(origFilePath));
+        if (img == null) {
+            throw new IOException("No ImageReader found for " + origFilePath);
         }
+        return img;
     }
 
     public GrayscaleImage(int width, int height, byte[] pixels) {
@@ -0,0 +1,83 @@
+package main.java.model;
+
+/**
+ * Multi-stage residual VQ: stage 0 quantizes a block, each later stage quantizes what the stages
+ * before it left over, and the block is reconstructed as the sum of one codeword per stage. With
+ * S stages of K codewords each a block can take K^S values for the search and storage cost of
+ * S * K codewords, which is what makes 4x4 and 8x8 blocks usable: a single codebook large enough
+ * to cover them would be far too slow to train and search.
+ *
+ * Stage 0 holds gray levels and later stages signed residuals. Both are kept rounded to what a
+ * .pkcc file stores (0..255 and -128..127), so the encoder subtracts exactly the codewords the
+ * decoder will add. Encoding is greedy: the nearest codeword in each stage, in stage order.
+ */
+public final class ResidualCodebook {
+    private final Codebook[] stages;
+    private final FlatCodebook[] searches;
+
+    public ResidualCodebook(Codebook[] stages) {
+        if (stages.length == 0) {
+            throw new IllegalArgumentException("Need at least one stage");
+        }
+        int blockW = stages[0].getBlockWidth(), blockH = stages[0].getBlockHeight();
+        this.stages = new Codebook[stages.length];
+        this.searches = new FlatCodebook[stages.length];
+        for (int s = 0; s < stages.length; s++) {
+            Codebook cb = stages[s];
+            if (cb.getBlockWidth() != blockW || cb.getBlockHeight() != blockH) {
+                throw new IllegalArgumentException("Stage " + s + " has " + cb.getBlockWidth() + "x"
+                        + cb.getBlockHeight() + " blocks, stage 0 has " + blockW + "x" + blockH);
+            }
+            this.stages[s] = quantized(cb, s > 0);
+            this.searches[s] = new FlatCodebook(this.stages[s]);
+        }
+    }
+
+    // cb's centroids as stored: unsigned bytes for stage 0, signed for residual stages
+    private static Codebook quantized(Codebook cb, boolean signed) {
+        byte[] table = signed ? cb.toSignedBytes() : cb.toBytes();
+        int vectorLength = cb.getVectorLength();
+        float[][] centroids = new float[cb.getSize()][vectorLength];
+        for (int i = 0, pos = 0; i < centroids.length; i++) {
+            for (int j = 0; j < vectorLength; j++, pos++) {
+                centroids[i][j] = signed ? table[pos] : table[pos] & 0xFF;
+            }
+        }
+        return new Codebook(cb.getBlockWidth(), cb.getBlockHeight(), centroids);
+    }
+
+    public int getStages() {
+        return stages.length;
+    }
+
+    public Codebook getCodebook(int stage) {
+        return stages[stage];
+    }
+
+    public Codebook[] getCodebooks() {
+        return stages.clone();
+    }
+
+    public int getBlockWidth() {
+        return stages[0].getBlockWidth();
+    }
+
+    public int getBlockHeight() {
+        return stages[0].getBlockHeight();
+    }
+
+    /**
+     * Nearest codeword of each stage for vector, written to indices[0..stages). vector is left
+     * holding the final residual. hints, if not null, are per-stage search hints (-1 for none).
+     */
+    public void encode(float[] vector, int[] indices, int[] hints) {
+        for (int s = 0; s < stages.length; s++) {
+            int idx = searches[s].findNearest(vector, hints != null ? hints[s] : -1);
+            indices[s] = idx;
+            float[] c = stages[s].getCentroid(idx);
+            for (int j = 0; j < vector.length; j++) {
+                vector[j] -= c[j];
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package main.java.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Training vectors stored back to back as raw pixel bytes: component j of vector i is
+ * {@code pixels[i * vectorLength + j]} (0..255, stored as signed bytes).
+ *
+ * One byte per component in a single array, instead of one float[] object per vector. Trainers
+ * convert a vector to floats on the fly with {@link #get(int, float[])}.
+ */
+public final class TrainingSet {
+    private final int vectorLength;
+    private final int size;
+    private final byte[] pixels;
+
+    public TrainingSet(int vectorLength, byte[] pixels) {
+        if (vectorLength <= 0) {
+            throw new IllegalArgumentException("vectorLength must be > 0");
+        }
+        if (pixels.length % vectorLength != 0) {
+            throw new IllegalArgumentException("Pixel buffer length is not a multiple of " + vectorLength);
+        }
+        this.vectorLength = vectorLength;
+        this.size = pixels.length / vectorLength;
+        this.pixels = pixels;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getVectorLength() {
+        return vectorLength;
+    }
+
+    public byte[] getPixels() {
+        return pixels;
+    }
+
+    // Return 0..255
+    public int get(int i, int j) {
+        return pixels[i * vectorLength + j] & 0xFF;
+    }
+
+    // Vector i as floats, into out (length >= vectorLength)
+    public void get(int i, float[] out) {
+        int base = i * vectorLength;
+        for (int j = 0; j < vectorLength; j++) {
+            out[j] = pixels[base + j] & 0xFF;
+        }
+    }
+
+    public float[] getVector(int i) {
+        float[] v = new float[vectorLength];
+        get(i, v);
+        return v;
+    }
+
+    // Uniform draw of count vectors with replacement (this set itself if it is not larger)
+    public TrainingSet sample(int count, long seed) {
+        if (size <= count) {
+            return this;
+        }
+        Random rnd = new Random(seed);
+        byte[] out = new byte[count * vectorLength];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(pixels, rnd.nextInt(size) * vectorLength, out, i * vectorLength, vectorLength);
+        }
+        return new TrainingSet(vectorLength, out);
+    }
+
+    // One float[] per vector, for the List based trainers
+    public List<float[]> toList() {
+        List<float[]> vectors = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            vectors.add(getVector(i));
+        }
+        return vectors;
+    }
+}
@@ -0,0 +1,130 @@
+package main.java.model;
+
+/**
+ * Tree-structured codebook: a binary tree whose leaves are the codewords, searched by descending
+ * from the root to the side of each node whose child centroid is nearer. That costs one dot
+ * product per level instead of one distance per codeword, at the price of sometimes missing the
+ * nearest leaf, so the distortion is a little higher than a full search of the same leaves.
+ *
+ * The leaves form a plain {@link Codebook} ({@link #getLeaves}); that is all a .pkcc file stores,
+ * so readers decode tree-encoded files like any other. The inner nodes only matter to encoders.
+ *
+ * Nodes are given by their centroids and first child: node n is a leaf if firstChild[n] is -1,
+ * otherwise its children are nodes firstChild[n] and firstChild[n] + 1. Node 0 is the root, and
+ * leaves are numbered in node order.
+ */
+public final class TreeCodebook implements CodewordSearch {
+    private final int vectorLength;
+    private final int[] firstChild; // per node, -1 for leaves
+    private final int[] leaf;       // per node, leaf index or -1 for inner nodes
+    private final float[] normals;  // per node, second child's centroid minus the first's, [nodes][vectorLength]
+    private final float[] offsets;  // per node, half the difference of the children's squared norms
+    private final Codebook leaves;
+    private final int depth;
+
+    public TreeCodebook(int width, int height, float[][] nodeCentroids, int[] firstChild) {
+        int nodes = nodeCentroids.length;
+        if (nodes == 0 || firstChild.length != nodes) {
+            throw new IllegalArgumentException("Need one first child per node, got " + firstChild.length
+                    + " for " + nodes + " nodes");
+        }
+        this.vectorLength = width * height;
+        this.firstChild = firstChild.clone();
+        this.leaf = new int[nodes];
+        this.normals = new float[nodes * vectorLength];
+        this.offsets = new float[nodes];
+
+        int leafCount = 0;
+        for (int n = 0; n < nodes; n++) {
+            int c = firstChild[n];
+            if (c < 0) {
+                leaf[n] = leafCount++;
+                continue;
+            }
+            if (c <= n || c + 1 >= nodes) {
+                throw new IllegalArgumentException("Node " + n + " has children " + c + " and " + (c + 1)
+                        + " out of 1.." + (nodes - 1));
+            }
+            leaf[n] = -1;
+            // Nearer to the second child iff normal . v > offset
+            float[] a = nodeCentroids[c], b = nodeCentroids[c + 1];
+            double offset = 0;
+            for (int j = 0; j < vectorLength; j++) {
+                normals[n * vectorLength + j] = b[j] - a[j];
+                offset += ((double) b[j] * b[j] - (double) a[j] * a[j]) / 2;
+            }
+            offsets[n] = (float) offset;
+        }
+
+        if (leafCount != nodes - leafCount + 1) {
+            throw new IllegalArgumentException(nodes + " nodes with " + leafCount + " leaves are not a binary tree");
+        }
+        float[][] centroids = new float[leafCount][];
+        for (int n = 0; n < nodes; n++) {
+            if (leaf[n] >= 0) centroids[leaf[n]] = nodeCentroids[n].clone();
+        }
+        this.leaves = new Codebook(width, height, centroids);
+        this.depth = depth();
+    }
+
+    // Levels below the root, checking that every node is reached exactly once
+    private int depth() {
+        int max = 0;
+        int[] stack = new int[leaf.length];
+        int[] level = new int[leaf.length];
+        boolean[] seen = new boolean[leaf.length];
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int n = stack[--top];
+            if (seen[n]) {
+                throw new IllegalArgumentException("Node " + n + " has more than one parent");
+            }
+            seen[n] = true;
+            max = Math.max(max, level[n]);
+            int c = firstChild[n];
+            if (c >= 0) {
+                level[c] = level[c + 1] = level[n] + 1;
+                stack[top++] = c;
+                stack[top++] = c + 1;
+            }
+        }
+        for (int n = 0; n < seen.length; n++) {
+            if (!seen[n]) throw new IllegalArgumentException("Node " + n + " is not reachable from the root");
+        }
+        return max;
+    }
+
+    /** The codewords, in leaf order: what a .pkcc file stores and the decoder uses. */
+    public Codebook getLeaves() {
+        return leaves;
+    }
+
+    public int getSize() {
+        return leaves.getSize();
+    }
+
+    // Dot products per search, at most
+    public int getDepth() {
+        return depth;
+    }
+
+    /** Leaf reached by descending from the root; not always the nearest codeword. */
+    public int findNearest(float[] vector) {
+        int n = 0;
+        for (int c = firstChild[0]; c >= 0; c = firstChild[n]) {
+            float dot = 0f;
+            for (int j = 0, p = n * vectorLength; j < vectorLength; j++, p++) {
+                dot += normals[p] * vector[j];
+            }
+            n = dot > offsets[n] ? c + 1 : c;
+        }
+        return leaf[n];
+    }
+
+    /** Same; a descent has no use for a hint. */
+    @Override
+    public int findNearest(float[] vector, int hint) {
+        return findNearest(vector);
+    }
+}
@@ -0,0 +1,47 @@
+package main.java.model;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD kernel for {@link FlatCodebook}. Only loaded when jdk.incubator.vector is present.
+ *
+ * Each lane holds one centroid's running distance. Lanes accumulate (v[j] - c[j])^2 over j in
+ * the same order as the scalar loop, without fused multiply-add, so every lane's distance is
+ * bit-identical to the scalar result. There is no per-lane early exit: checking the lanes'
+ * minimum mid-sum costs more than the dimensions it saves.
+ */
+final class VectorNearestSearch {
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    private VectorNearestSearch() {
+    }
+
+    // Best centroid given the best so far (bestIndex at bestDist, or 0 at +infinity)
+    static int findNearest(float[] data, int size, int vectorLength, float[] vector, int bestIndex, float bestDist) {
+        int lanes = SPECIES.length();
+        int bound = SPECIES.loopBound(size);
+        int i = 0;
+        for (; i < bound; i += lanes) {
+            FloatVector acc = FloatVector.zero(SPECIES);
+            for (int j = 0; j < vectorLength; j++) {
+                FloatVector c = FloatVector.fromArray(SPECIES, data, j * size + i);
+                FloatVector d = FloatVector.broadcast(SPECIES, vector[j]).sub(c);
+                acc = acc.add(d.mul(d));
+            }
+            float min = acc.reduceLanes(VectorOperators.MIN);
+            if (min <= bestDist) {
+                // First lane holding the minimum: same tie-break as the scalar scan
+                int best = i + acc.compare(VectorOperators.EQ, min).firstTrue();
+                if (min < bestDist || best < bestIndex) {
+                    bestDist = min;
+                    bestIndex = best;
+                }
+            }
+        }
+
+        // Tail: remaining centroids that don't fill a whole vector
+        return FlatCodebook.findNearestScalar(data, size, vectorLength, vector, i, bestIndex, bestDist);
+    }
+}
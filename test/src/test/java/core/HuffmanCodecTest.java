@@ -0,0 +1,137 @@
+package test.java.core;
+
+import main.java.core.HuffmanCodec;
+import org.junit.jupiter.api.Test;
+
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Length-limited code construction: every used symbol gets a code within the limit, the codes
+ * fill the code space exactly (Kraft sum of 1), and the limit costs nothing when it does not bind.
+ */
+class HuffmanCodecTest {
+
+    @Test
+    void lengthsStayWithinLimitAndSatisfyKraftEquality() {
+        int[][] alphabets = {fibonacci(40), geometric(256, 0.9), geometric(4096, 0.99), random(1000, 7L), {1, 1}};
+        for (int[] freq : alphabets) {
+            for (int limit : new int[] {12, 16, 20}) {
+                int[] codeLen = HuffmanCodec.buildCodeLengths(freq, limit);
+                assertLengths(freq, codeLen, limit);
+            }
+        }
+    }
+
+    @Test
+    void tightLimitStillGivesCompleteCode() {
+        // 40 Fibonacci weights want a 39-bit code; 6 bits is the least that fits 40 symbols
+        int[] freq = fibonacci(40);
+        assertLengths(freq, HuffmanCodec.buildCodeLengths(freq, 6), 6);
+    }
+
+    @Test
+    void unusedSymbolsGetNoCode() {
+        int[] freq = {0, 5, 0, 0, 3, 9, 0, 1};
+        int[] codeLen = HuffmanCodec.buildCodeLengths(freq, 16);
+        for (int s = 0; s < freq.length; s++) {
+            assertEquals(freq[s] == 0, codeLen[s] == 0, "symbol " + s);
+        }
+        assertLengths(freq, codeLen, 16);
+    }
+
+    @Test
+    void singleSymbolGetsOneBit() {
+        int[] codeLen = HuffmanCodec.buildCodeLengths(new int[] {0, 0, 42, 0}, 16);
+        assertArrayEquals(new int[] {0, 0, 1, 0}, codeLen);
+    }
+
+    @Test
+    void nonBindingLimitMatchesUnlimitedHuffmanCost() {
+        int[][] alphabets = {geometric(256, 0.9), random(1000, 3L), {3, 1, 4, 1, 5, 9, 2, 6}};
+        for (int[] freq : alphabets) {
+            int[] codeLen = HuffmanCodec.buildCodeLengths(freq, 31);
+            assertEquals(huffmanCost(freq), cost(freq, codeLen));
+        }
+    }
+
+    @Test
+    void rejectsInvalidInput() {
+        assertThrows(IllegalArgumentException.class, () -> HuffmanCodec.buildCodeLengths(new int[] {1, 2}, 0));
+        assertThrows(IllegalArgumentException.class, () -> HuffmanCodec.buildCodeLengths(new int[] {1, 2}, 32));
+        assertThrows(IllegalArgumentException.class, () -> HuffmanCodec.buildCodeLengths(new int[] {0, 0}, 16));
+    }
+
+    // Used symbols have lengths in [1, limit], and with two or more of them the Kraft sum is exactly 1
+    private static void assertLengths(int[] freq, int[] codeLen, int limit) {
+        assertEquals(freq.length, codeLen.length);
+        int used = 0;
+        long kraft = 0; // in units of 2^-limit
+        for (int s = 0; s < freq.length; s++) {
+            if (freq[s] == 0) {
+                assertEquals(0, codeLen[s], "unused symbol " + s);
+                continue;
+            }
+            used++;
+            assertTrue(codeLen[s] >= 1 && codeLen[s] <= limit, "symbol " + s + " has length " + codeLen[s]);
+            kraft += 1L << (limit - codeLen[s]);
+        }
+        if (used > 1) {
+            assertEquals(1L << limit, kraft, "Kraft sum");
+        }
+    }
+
+    private static long cost(int[] freq, int[] codeLen) {
+        long bits = 0;
+        for (int s = 0; s < freq.length; s++) {
+            bits += (long) freq[s] * codeLen[s];
+        }
+        return bits;
+    }
+
+    // Total bits of an unlimited Huffman code: the sum of all merged weights
+    private static long huffmanCost(int[] freq) {
+        PriorityQueue<Long> queue = new PriorityQueue<>();
+        for (int f : freq) {
+            if (f > 0) queue.add((long) f);
+        }
+        long bits = 0;
+        while (queue.size() > 1) {
+            long merged = queue.poll() + queue.poll();
+            bits += merged;
+            queue.add(merged);
+        }
+        return bits;
+    }
+
+    private static int[] fibonacci(int n) {
+        int[] freq = new int[n];
+        freq[0] = 1;
+        freq[1] = 1;
+        for (int s = 2; s < n; s++) {
+            freq[s] = freq[s - 1] + freq[s - 2];
+        }
+        return freq;
+    }
+
+    private static int[] geometric(int n, double ratio) {
+        int[] freq = new int[n];
+        double p = 1 << 20;
+        for (int s = 0; s < n; s++) {
+            freq[s] = Math.max(1, (int) p);
+            p *= ratio;
+        }
+        return freq;
+    }
+
+    private static int[] random(int n, long seed) {
+        SplittableRandom rnd = new SplittableRandom(seed);
+        int[] freq = new int[n];
+        for (int s = 0; s < n; s++) {
+            freq[s] = rnd.nextInt(4) == 0 ? 0 : 1 + rnd.nextInt(10000);
+        }
+        return freq;
+    }
+}
@@ -0,0 +1,124 @@
+package test.java.core;
+
+import main.java.core.HuffmanCodec;
+import main.java.core.HuffmanDecodeTable;
+import main.java.io.BitInputStream;
+import main.java.io.BitOutputStream;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Symbols written with the canonical codes of buildCanonicalCodes come back unchanged through
+ * the table decoder, including codes longer than the primary table (secondary lookups).
+ */
+class HuffmanDecodeTableTest {
+
+    @Test
+    void roundTripsSkewedAlphabetWithLongCodes() throws IOException {
+        int[] symbols = skewed(4096, 0.99, 200_000, 1L);
+        int[] codeLen = roundTrip(4096, symbols, 20);
+        int longest = 0;
+        for (int len : codeLen) longest = Math.max(longest, len);
+        assertTrue(longest > HuffmanDecodeTable.PRIMARY_BITS, "no secondary table exercised: " + longest);
+    }
+
+    @Test
+    void roundTripsSmallSkewedAlphabet() throws IOException {
+        roundTrip(256, skewed(256, 0.9, 50_000, 2L), HuffmanCodec.DEFAULT_MAX_CODE_LENGTH);
+    }
+
+    @Test
+    void roundTripsLargestAlphabet() throws IOException {
+        int k = 1 << 16;
+        roundTrip(k, skewed(k, 0.9999, 300_000, 3L), HuffmanCodec.lengthLimit(k, HuffmanCodec.DEFAULT_MAX_CODE_LENGTH));
+    }
+
+    @Test
+    void roundTripsSingleSymbolAlphabet() throws IOException {
+        int[] symbols = new int[1000];
+        Arrays.fill(symbols, 3);
+        int[] codeLen = roundTrip(8, symbols, HuffmanCodec.DEFAULT_MAX_CODE_LENGTH);
+        assertEquals(1, codeLen[3]);
+    }
+
+    @Test
+    void roundTripsTwoSymbolAlphabet() throws IOException {
+        roundTrip(2, new int[] {0, 1, 1, 0, 1, 1, 1, 0, 0, 1}, HuffmanCodec.DEFAULT_MAX_CODE_LENGTH);
+    }
+
+    @Test
+    void rejectsUnassignedBitPattern() {
+        // A single symbol is coded as '0'; '1' belongs to no symbol
+        int[] codeLen = {0, 1};
+        int[] codeBits = new int[2];
+        HuffmanCodec.buildCanonicalCodes(codeLen, codeBits);
+        HuffmanDecodeTable table = new HuffmanDecodeTable(codeLen, codeBits);
+        BitInputStream bin = new BitInputStream(ByteBuffer.wrap(new byte[] {(byte) 0xFF}));
+        assertThrows(IOException.class, () -> table.decodeSymbol(bin));
+    }
+
+    @Test
+    void rejectsOverSubscribedLengths() {
+        int[] codeLen = {1, 1, 1};
+        int[] codeBits = new int[3];
+        HuffmanCodec.buildCanonicalCodes(codeLen, codeBits);
+        assertThrows(IllegalArgumentException.class, () -> new HuffmanDecodeTable(codeLen, codeBits));
+    }
+
+    // Codes symbols over an alphabet of k with lengths limited to maxLength, decodes them back,
+    // and checks that the stream then ends; returns the code lengths
+    private static int[] roundTrip(int k, int[] symbols, int maxLength) throws IOException {
+        int[] freq = new int[k];
+        for (int s : symbols) freq[s]++;
+        int[] codeLen = HuffmanCodec.buildCodeLengths(freq, maxLength);
+        int[] codeBits = new int[k];
+        HuffmanCodec.buildCanonicalCodes(codeLen, codeBits);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long bits = 0;
+        try (BitOutputStream bout = new BitOutputStream(out)) {
+            for (int s : symbols) {
+                bout.writeBits(codeBits[s], codeLen[s]);
+                bits += codeLen[s];
+            }
+        }
+        byte[] coded = out.toByteArray();
+        assertEquals((bits + 7) / 8, coded.length);
+
+        HuffmanDecodeTable table = new HuffmanDecodeTable(codeLen, codeBits);
+        BitInputStream bin = new BitInputStream(ByteBuffer.wrap(coded));
+        for (int i = 0; i < symbols.length; i++) {
+            assertEquals(symbols[i], table.decodeSymbol(bin), "symbol " + i);
+        }
+        if (bits % 8 == 0) {
+            assertThrows(EOFException.class, () -> table.decodeSymbol(bin));
+        }
+        return codeLen;
+    }
+
+    // count symbols of 0..k-1, each about 'ratio' times as likely as the one before
+    private static int[] skewed(int k, double ratio, int count, long seed) {
+        double[] cdf = new double[k];
+        double p = 1, sum = 0;
+        for (int s = 0; s < k; s++) {
+            sum += p;
+            cdf[s] = sum;
+            p *= ratio;
+        }
+        SplittableRandom rnd = new SplittableRandom(seed);
+        int[] symbols = new int[count];
+        for (int i = 0; i < count; i++) {
+            int s = Arrays.binarySearch(cdf, rnd.nextDouble() * sum);
+            symbols[i] = Math.min(k - 1, s >= 0 ? s + 1 : -s - 1);
+        }
+        return symbols;
+    }
+}
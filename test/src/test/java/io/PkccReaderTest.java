@@ -0,0 +1,216 @@
+package test.java.io;
+
+import main.java.app.Main;
+import main.java.core.HuffmanCodec;
+import main.java.io.BitOutputStream;
+import main.java.io.PkccReader;
+import main.java.io.PkccWriter;
+import main.java.model.Codebook;
+import main.java.model.EncodedImage;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Every file version the reader accepts decodes back to the image that was written: the current
+ * one as PkccWriter writes it, older ones built here field by field as their writers laid them out.
+ */
+class PkccReaderTest {
+    // 37x70 pixels in 2x2 blocks: a partial block column and row, and 35 block rows (two tiles of 32)
+    private static final int WIDTH = 37, HEIGHT = 70, BLOCK = 2;
+
+    @Test
+    void roundTripsCurrentVersion() throws Exception {
+        EncodedImage image = image(1, 300, 1L);
+        byte[] file = write(image, 32);
+        assertEquals(Main.VERSION, version(file));
+        assertImageEquals(image, PkccReader.read(new ByteArrayInputStream(file)));
+        assertImageEquals(image, PkccReader.read(new ByteArrayInputStream(file), 4));
+        assertImageEquals(image, readPath(file, 4));
+    }
+
+    @Test
+    void roundTripsResidualStages() throws Exception {
+        EncodedImage image = image(3, 64, 2L);
+        byte[] file = write(image, 8);
+        assertImageEquals(image, PkccReader.read(new ByteArrayInputStream(file)));
+        assertImageEquals(image, readPath(file, 4));
+    }
+
+    @Test
+    void readsSingleTiles() throws Exception {
+        EncodedImage image = image(2, 40, 3L);
+        int tileRows = 8;
+        byte[] file = write(image, tileRows);
+        int blocksX = WIDTH / BLOCK, blocksY = HEIGHT / BLOCK;
+        Path path = Files.createTempFile("pkcc", ".pkcc");
+        try {
+            Files.write(path, file);
+            for (int t = 0; t * tileRows < blocksY; t++) {
+                int start = t * tileRows * blocksX, end = Math.min(blocksY, (t + 1) * tileRows) * blocksX;
+                for (EncodedImage tile : new EncodedImage[] {
+                        PkccReader.readTile(new ByteArrayInputStream(file), t), PkccReader.readTile(path, t)}) {
+                    assertEquals((end - start) / blocksX * BLOCK, tile.getHeight());
+                    for (int st = 0; st < image.getStages(); st++) {
+                        assertArrayEquals(Arrays.copyOfRange(image.getBlockIndices(st), start, end),
+                                tile.getBlockIndices(st), "tile " + t + " stage " + st);
+                    }
+                }
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void roundTripsOlderVersions() throws Exception {
+        EncodedImage image = image(1, 300, 4L);
+        for (int version = 2; version < Main.VERSION; version++) {
+            byte[] file = legacy(image, version, 16);
+            assertEquals(version, version(file));
+            assertImageEquals(image, PkccReader.read(new ByteArrayInputStream(file)));
+            assertImageEquals(image, readPath(file, 4));
+        }
+    }
+
+    @Test
+    void rejectsUnknownVersions() throws Exception {
+        byte[] file = write(image(1, 16, 5L), 32);
+        for (int version : new int[] {1, Main.VERSION + 1}) {
+            file[4] = (byte) (version >>> 8);
+            file[5] = (byte) version;
+            IOException e = assertThrows(IOException.class, () -> PkccReader.read(new ByteArrayInputStream(file)));
+            assertTrue(e.getMessage().contains("versions 2 to " + Main.VERSION), e.getMessage());
+        }
+    }
+
+    // Dimensions, every stage's stored codebook and every block index match
+    private static void assertImageEquals(EncodedImage expected, EncodedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertEquals(expected.getBlockWidth(), actual.getBlockWidth());
+        assertEquals(expected.getBlockHeight(), actual.getBlockHeight());
+        assertEquals(expected.getStages(), actual.getStages());
+        for (int st = 0; st < expected.getStages(); st++) {
+            assertArrayEquals(stored(expected.getCodebook(st), st), stored(actual.getCodebook(st), st), "codebook " + st);
+            assertArrayEquals(expected.getBlockIndices(st), actual.getBlockIndices(st), "indices " + st);
+        }
+    }
+
+    // A stage's codebook as the file holds it: unsigned bytes for stage 0, signed for residual stages
+    private static byte[] stored(Codebook cb, int stage) {
+        return stage == 0 ? cb.toBytes() : cb.toSignedBytes();
+    }
+
+    private static byte[] write(EncodedImage image, int tileRows) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PkccWriter.write(out, image, HuffmanCodec.DEFAULT_MAX_CODE_LENGTH, tileRows, 4);
+        return out.toByteArray();
+    }
+
+    private static EncodedImage readPath(byte[] file, int threads) throws Exception {
+        Path path = Files.createTempFile("pkcc", ".pkcc");
+        try {
+            Files.write(path, file);
+            return PkccReader.read(path, threads);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    private static int version(byte[] file) {
+        return ((file[4] & 0xFF) << 8) | (file[5] & 0xFF);
+    }
+
+    // A single-stage file in an older layout: v2 one Huffman stream, v3 adds the code length limit,
+    // v4 byte-aligned tiles with a length table, v5 a flags byte, v6 an int K
+    private static byte[] legacy(EncodedImage image, int version, int tileRows) throws IOException {
+        Codebook cb = image.getCodebook();
+        int[] indices = image.getBlockIndices();
+        int k = cb.getSize();
+        int maxCodeLength = version >= 3 ? HuffmanCodec.DEFAULT_MAX_CODE_LENGTH : 31;
+        int[] freq = new int[k];
+        for (int idx : indices) freq[idx]++;
+        int[] codeLen = HuffmanCodec.buildCodeLengths(freq, maxCodeLength);
+        int[] codeBits = new int[k];
+        HuffmanCodec.buildCanonicalCodes(codeLen, codeBits);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeBytes("PKCC");
+        dos.writeShort(version);
+        dos.writeInt(image.getWidth());
+        dos.writeInt(image.getHeight());
+        dos.writeByte(image.getBlockWidth());
+        dos.writeByte(image.getBlockHeight());
+        if (version >= 6) {
+            dos.writeInt(k);
+        } else {
+            dos.writeShort(k);
+        }
+        if (version >= 3) dos.writeByte(maxCodeLength);
+        if (version >= 4) dos.writeInt(tileRows);
+        if (version >= 5) dos.writeByte(0);
+        dos.write(cb.toBytes());
+        for (int len : codeLen) dos.writeByte(len);
+
+        if (version < 4) {
+            dos.write(encode(indices, 0, indices.length, codeLen, codeBits));
+        } else {
+            int blocksX = image.getWidth() / image.getBlockWidth();
+            int blocksY = image.getHeight() / image.getBlockHeight();
+            int tiles = (blocksY + tileRows - 1) / tileRows;
+            byte[][] segments = new byte[tiles][];
+            for (int t = 0; t < tiles; t++) {
+                segments[t] = encode(indices, t * tileRows * blocksX,
+                        Math.min(blocksY, (t + 1) * tileRows) * blocksX, codeLen, codeBits);
+                dos.writeInt(segments[t].length);
+            }
+            for (byte[] segment : segments) dos.write(segment);
+        }
+        dos.flush();
+        return out.toByteArray();
+    }
+
+    private static byte[] encode(int[] indices, int start, int end, int[] codeLen, int[] codeBits)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (BitOutputStream bout = new BitOutputStream(out)) {
+            for (int i = start; i < end; i++) {
+                bout.writeBits(codeBits[indices[i]], codeLen[indices[i]]);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    // Random image with whole-valued codewords (gray levels for stage 0, signed residuals after it)
+    // and skewed indices, some codewords left unused
+    private static EncodedImage image(int stages, int k, long seed) {
+        SplittableRandom rnd = new SplittableRandom(seed);
+        int blocks = (WIDTH / BLOCK) * (HEIGHT / BLOCK);
+        Codebook[] codebooks = new Codebook[stages];
+        int[][] indices = new int[stages][blocks];
+        for (int st = 0; st < stages; st++) {
+            float[][] centroids = new float[k][BLOCK * BLOCK];
+            for (float[] c : centroids) {
+                for (int j = 0; j < c.length; j++) {
+                    c[j] = st == 0 ? rnd.nextInt(256) : rnd.nextInt(-128, 128);
+                }
+            }
+            codebooks[st] = new Codebook(BLOCK, BLOCK, centroids);
+            for (int i = 0; i < blocks; i++) {
+                indices[st][i] = Math.min(rnd.nextInt(k), rnd.nextInt(k)) / 2;
+            }
+        }
+        return new EncodedImage(WIDTH, HEIGHT, BLOCK, BLOCK, codebooks, indices);
+    }
+}